@@ -0,0 +1,177 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+// Accepts build agents (PantWorker --connect) for a distributed build and hands them to the worker
+// pool. Listening anywhere but on the loopback address needs a token.
+public class AgentListener implements Runnable {
+    private static final String AGENTS_PROPERTY = "pant.agents";
+    private static final String AGENTS_TOKEN_PROPERTY = "pant.agents.token";
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_TOKEN_LENGTH = 1024;
+
+    private final Project project;
+    private final WorkerPool workerPool;
+    private final ServerSocket serverSocket;
+    private final byte[] token;
+    private Thread thread;
+
+    // address is [<host>:]<port>; without a host, only agents on this machine can connect
+    public AgentListener(final Project project, final WorkerPool workerPool, final String address,
+                         final String token) {
+        this.project = project;
+        this.workerPool = workerPool;
+        try {
+            this.token = (token == null ? "" : token).getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new BuildException(e);
+        }
+
+        final int colon = address.lastIndexOf(':');
+        try {
+            final InetAddress host = InetAddress.getByName(colon < 0 ? "127.0.0.1" : address.substring(0, colon));
+            if (!host.isLoopbackAddress() && this.token.length == 0) {
+                throw new BuildException("Build agents on other machines need a token; set pant.agents.token to "
+                                         + "listen on " + address);
+            }
+            serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(host, Integer.parseInt(address.substring(colon + 1))));
+        } catch (final IOException e) {
+            throw new BuildException("Unable to listen for build agents on " + address, e);
+        } catch (final NumberFormatException e) {
+            throw new BuildException("Invalid build agent address: " + address, e);
+        }
+    }
+
+    // Whether pant.agents gives an address to listen for build agents on
+    public static boolean isDistributed(final Project project) {
+        return project.getProperty(AGENTS_PROPERTY) != null;
+    }
+
+    // Off, and null, unless the build is distributed. Otherwise returns a listener which is already
+    // accepting agents into the pool
+    public static AgentListener startFor(final Project project, final WorkerPool workerPool) {
+        final String agents = project.getProperty(AGENTS_PROPERTY);
+        if (agents == null) {
+            return null;
+        }
+
+        final AgentListener agentListener =
+                new AgentListener(project, workerPool, agents, project.getProperty(AGENTS_TOKEN_PROPERTY));
+        agentListener.start();
+        return agentListener;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void start() {
+        project.log("Listening for build agents on " + serverSocket.getLocalSocketAddress(), Project.MSG_INFO);
+        thread = new Thread(this, "pant-agents");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (final IOException e) {
+            // closing anyway
+        }
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (final IOException e) {
+                // stopped
+                return;
+            }
+
+            try {
+                if (matches(readToken(socket))) {
+                    socket.setSoTimeout(0);
+                    workerPool.register(socket);
+                } else {
+                    project.log("Rejected a build agent from " + socket.getRemoteSocketAddress()
+                                + " with the wrong token", Project.MSG_WARN);
+                    socket.close();
+                }
+            } catch (final IOException e) {
+                project.log("Build agent from " + socket.getRemoteSocketAddress() + " failed to register: "
+                            + e.getMessage(), Project.MSG_WARN);
+                close(socket);
+            } catch (final BuildException e) {
+                project.log("Build agent from " + socket.getRemoteSocketAddress() + " failed to register: "
+                            + e.getMessage(), Project.MSG_WARN);
+                close(socket);
+            }
+        }
+    }
+
+    // Unbuffered, so nothing after the token is read ahead of the worker's own stream. Anything
+    // which doesn't look like a token in good time is someone else
+    private static byte[] readToken(final Socket socket) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_TOKEN_LENGTH) {
+            throw new IOException("Implausible token length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // In time which depends only on the expected token's length, so that the time taken to turn an
+    // agent away says nothing about how much of the token it got right
+    private boolean matches(final byte[] presented) {
+        int difference = presented.length ^ token.length;
+        for (int i = 0; i < token.length; i++) {
+            difference |= token[i] ^ (i < presented.length ? presented[i] : 0);
+        }
+        return difference == 0;
+    }
+
+    private static void close(final Socket socket) {
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            // nothing more we can do
+        }
+    }
+}
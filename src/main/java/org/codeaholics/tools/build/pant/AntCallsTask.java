@@ -0,0 +1,119 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+// Runs its nested <antcall>s concurrently through SharedPool, each in a sub-project made by
+// SubProjectCall. Every call runs; the first failure, in the order they're written, is reported.
+public class AntCallsTask extends Task {
+    private final List<Call> calls = new ArrayList<Call>();
+
+    public Call createAntcall() {
+        final Call call = new Call();
+        calls.add(call);
+        return call;
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        final List<Runnable> jobs = new ArrayList<Runnable>();
+        for (final Call call: calls) {
+            jobs.add(new Runnable() {
+                @Override
+                public void run() {
+                    call.toSubProjectCall(AntCallsTask.this).run();
+                }
+            });
+        }
+
+        final Throwable[] failures;
+        try {
+            failures = SharedPool.runOnPool(SharedPool.get(getProject()), jobs);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted waiting for antcalls", getLocation());
+        }
+
+        SharedPool.rethrowFirst(failures, getLocation());
+    }
+
+    public static class Call {
+        private final List<Param> params = new ArrayList<Param>();
+        private String target;
+        private boolean inheritAll = true;
+        private boolean inheritRefs;
+
+        public void setTarget(final String target) {
+            this.target = target;
+        }
+
+        public void setInheritAll(final boolean inheritAll) {
+            this.inheritAll = inheritAll;
+        }
+
+        public void setInheritRefs(final boolean inheritRefs) {
+            this.inheritRefs = inheritRefs;
+        }
+
+        public Param createParam() {
+            final Param param = new Param();
+            params.add(param);
+            return param;
+        }
+
+        private SubProjectCall toSubProjectCall(final Task caller) {
+            if (target == null) {
+                throw new BuildException("antcall requires a target", caller.getLocation());
+            }
+
+            final Map<String, String> paramValues = new LinkedHashMap<String, String>();
+            for (final Param param: params) {
+                if (param.name == null || param.value == null) {
+                    throw new BuildException("param requires a name and a value", caller.getLocation());
+                }
+                paramValues.put(param.name, param.value);
+            }
+
+            return new SubProjectCall(caller, target, paramValues, inheritAll, inheritRefs);
+        }
+    }
+
+    public static class Param {
+        private String name;
+        private String value;
+
+        public void setName(final String name) {
+            this.name = name;
+        }
+
+        public void setValue(final String value) {
+            this.value = value;
+        }
+
+        public void setLocation(final File location) {
+            this.value = location.getAbsolutePath();
+        }
+    }
+}
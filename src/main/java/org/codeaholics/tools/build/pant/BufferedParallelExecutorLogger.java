@@ -0,0 +1,151 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.util.StringUtils;
+
+// Writes each target's output in one block when the target finishes, so concurrent targets don't
+// interleave. Output is filed under its target, whichever thread logged it.
+public class BufferedParallelExecutorLogger extends ParallelExecutorLogger {
+    private static final int MAX_BUFFERED_CHARS = 64 * 1024;
+    private static final long MAX_BUFFERED_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final long maxBufferedNanos;
+
+    // consumer thread only; one buffer per target, reused if it runs again
+    private final Map<String, TargetOutputBuffer> buffers = new HashMap<String, TargetOutputBuffer>();
+
+    public BufferedParallelExecutorLogger() {
+        this(MAX_BUFFERED_NANOS);
+    }
+
+    BufferedParallelExecutorLogger(final long maxBufferedNanos) {
+        this.maxBufferedNanos = maxBufferedNanos;
+    }
+
+    @Override
+    protected void consume(final String targetName, final LogEventType type, final boolean error,
+                           final CharSequence text) {
+        TargetOutputBuffer buffer = targetName == null ? null : buffers.get(targetName);
+
+        if (type == LogEventType.TARGET_STARTED) {
+            // the start line goes straight out so that it's obvious what's running
+            super.consume(targetName, type, error, text);
+
+            if (buffer == null) {
+                buffer = new TargetOutputBuffer();
+                buffers.put(targetName, buffer);
+            }
+            buffer.targetStarted();
+        } else if (buffer != null && buffer.isActive()) {
+            // the finish line is still buffered, so it's written along with the rest of the target's output
+            buffer.append(error, text);
+
+            if (type == LogEventType.TARGET_FINISHED) {
+                buffer.targetFinished();
+            }
+        } else {
+            super.consume(targetName, type, error, text);
+        }
+    }
+
+    // Flushes whatever has been held for too long, and asks to be called again when the next buffer
+    // is due
+    @Override
+    protected long idle() {
+        final long now = System.nanoTime();
+        long timeoutNanos = 0;
+        for (final TargetOutputBuffer buffer: buffers.values()) {
+            final long remainingNanos = buffer.flushIfOverdue(now);
+            if (remainingNanos > 0 && (timeoutNanos == 0 || remainingNanos < timeoutNanos)) {
+                timeoutNanos = remainingNanos;
+            }
+        }
+        return timeoutNanos;
+    }
+
+    private final class TargetOutputBuffer {
+        private final StringBuilder outBuffer = new StringBuilder();
+        private final StringBuilder errBuffer = new StringBuilder();
+
+        // a target can run inside another run of itself (<antcall> for example); only the outermost
+        // one flushes
+        private int depth;
+        private long firstAppendNanos;
+
+        public boolean isActive() {
+            return depth > 0;
+        }
+
+        public void targetStarted() {
+            depth++;
+        }
+
+        public void targetFinished() {
+            if (--depth == 0) {
+                flush();
+            }
+        }
+
+        public void append(final boolean error, final CharSequence text) {
+            if (text == null) {
+                return;
+            }
+
+            if (outBuffer.length() == 0 && errBuffer.length() == 0) {
+                firstAppendNanos = System.nanoTime();
+            }
+
+            (error ? errBuffer : outBuffer).append(text).append(StringUtils.LINE_SEP);
+
+            if (outBuffer.length() + errBuffer.length() > MAX_BUFFERED_CHARS
+                || System.nanoTime() - firstAppendNanos > maxBufferedNanos) {
+                flush();
+            }
+        }
+
+        // Returns how long until the buffered output is due, or 0 if there's none
+        public long flushIfOverdue(final long now) {
+            if (outBuffer.length() == 0 && errBuffer.length() == 0) {
+                return 0;
+            }
+
+            final long remainingNanos = maxBufferedNanos - (now - firstAppendNanos);
+            if (remainingNanos <= 0) {
+                flush();
+                return 0;
+            }
+            return remainingNanos;
+        }
+
+        private void flush() {
+            if (outBuffer.length() > 0) {
+                write(false, outBuffer);
+                outBuffer.setLength(0);
+            }
+
+            if (errBuffer.length() > 0) {
+                write(true, errBuffer);
+                errBuffer.setLength(0);
+            }
+        }
+    }
+}
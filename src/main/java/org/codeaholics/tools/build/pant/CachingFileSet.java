@@ -0,0 +1,43 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+// A <fileset> whose scans come from the parallel executor's ScanCache. Targets which write into a
+// scanned tree must say so with pant.outputs.<target>.
+public class CachingFileSet extends FileSet {
+    @Override
+    public DirectoryScanner getDirectoryScanner(final Project project) {
+        if (isReference()) {
+            return getRef(project).getDirectoryScanner(project);
+        }
+
+        final ScanCache scanCache = (ScanCache) project.getReference(ScanCache.REFERENCE);
+        final File dir = getDir(project);
+        if (scanCache == null || hasSelectors() || dir == null || !dir.isDirectory()) {
+            return super.getDirectoryScanner(project);
+        }
+
+        dieOnCircularReference();
+        return scanCache.getDirectoryScanner(this, project);
+    }
+}
@@ -0,0 +1,151 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+// The files a change touched, one path per line, as from "git diff --name-only". Unlike pant's
+// other files it can't be treated as missing when unreadable, since that would skip targets.
+public class ChangedFiles {
+    private static final String CHANGED_PROPERTY = "pant.changed";
+    private static final String INPUTS_PROPERTY_PREFIX = "pant.inputs.";
+
+    private final List<String> paths = new ArrayList<String>();
+    private final Map<String, File[]> targetInputs;
+
+    private ChangedFiles(final Map<String, File[]> targetInputs) {
+        this.targetInputs = targetInputs;
+    }
+
+    // Off, and null, unless pant.changed names the list of changes. Targets say which files and
+    // directories they read with pant.inputs.<target>; those which don't are always run
+    public static ChangedFiles forBuild(final Project project) {
+        final String changed = project.getProperty(CHANGED_PROPERTY);
+        if (changed == null) {
+            return null;
+        }
+
+        return load(project, project.resolveFile(changed), TargetFiles.read(project, INPUTS_PROPERTY_PREFIX));
+    }
+
+    public static ChangedFiles load(final Project project, final File file) {
+        return load(project, file, Collections.<String, File[]>emptyMap());
+    }
+
+    private static ChangedFiles load(final Project project, final File file, final Map<String, File[]> targetInputs) {
+        final ChangedFiles changedFiles = new ChangedFiles(targetInputs);
+
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    changedFiles.paths.add(project.resolveFile(line).getPath());
+                }
+            }
+        } catch (final IOException e) {
+            throw new BuildException("Unable to read changed files from " + file + ": " + e.getMessage(), e);
+        } finally {
+            close(in);
+        }
+
+        return changedFiles;
+    }
+
+    public int size() {
+        return paths.size();
+    }
+
+    // True if any of the changed files is one of the inputs or somewhere beneath one of them
+    public boolean affects(final File[] inputs) {
+        for (final File input: inputs) {
+            final String inputPath = input.getPath();
+            final String inputDirPath = inputPath.endsWith(File.separator) ? inputPath : inputPath + File.separator;
+            for (int i = 0; i < paths.size(); i++) {
+                final String path = paths.get(i);
+                if (path.equals(inputPath) || path.startsWith(inputDirPath)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // A target is affected if a changed file is among its inputs or if any of its predecessors is
+    // affected, since those may have given it new inputs of their own. Everything else which says
+    // what its inputs are is taken to be up to date from the previous build, and is added to
+    // skippedTargets
+    public void selectUnaffectedTargets(final Project project,
+                                        final Collection<DependencyGraphEntry> dependencyGraphEntries,
+                                        final Set<String> skippedTargets) {
+        final Set<DependencyGraphEntry> affected = new HashSet<DependencyGraphEntry>();
+        final Queue<DependencyGraphEntry> unvisited = new ArrayDeque<DependencyGraphEntry>();
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraphEntries) {
+            final File[] inputs = targetInputs.get(dependencyGraphEntry.getTarget().getName());
+            if (inputs != null && affects(inputs) && affected.add(dependencyGraphEntry)) {
+                unvisited.add(dependencyGraphEntry);
+            }
+        }
+
+        DependencyGraphEntry dependencyGraphEntry;
+        while ((dependencyGraphEntry = unvisited.poll()) != null) {
+            for (final DependencyGraphEntry successor: dependencyGraphEntry.getSuccessorEntries()) {
+                if (affected.add(successor)) {
+                    unvisited.add(successor);
+                }
+            }
+        }
+
+        for (final DependencyGraphEntry entry: dependencyGraphEntries) {
+            final String targetName = entry.getTarget().getName();
+            if (targetInputs.containsKey(targetName) && !affected.contains(entry)) {
+                skippedTargets.add(targetName);
+            }
+        }
+
+        project.log(size() + " changed file(s) affect " + affected.size() + " of "
+                    + dependencyGraphEntries.size() + " target(s); skipping " + skippedTargets.size()
+                    + " unaffected target(s)", Project.MSG_INFO);
+    }
+
+    private static void close(final BufferedReader in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+}
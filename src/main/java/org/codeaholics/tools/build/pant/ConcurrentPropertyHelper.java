@@ -0,0 +1,224 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
+import org.apache.tools.ant.property.NullReturn;
+import org.apache.tools.ant.property.PropertyExpander;
+
+// A PropertyHelper whose reads don't lock. Writes go through ant's implementation under the
+// helper's lock, and are mirrored into the concurrent maps which reads use.
+public class ConcurrentPropertyHelper extends PropertyHelper {
+    private static final String CONCURRENT_PROPERTIES_PROPERTY = "pant.concurrent.properties";
+    private static final Class<?>[] DELEGATE_TYPES =
+            new Class<?>[] {PropertyEvaluator.class, PropertySetter.class, PropertyExpander.class};
+
+    private final Map<String, Object> properties = new ConcurrentHashMap<String, Object>();
+    private final Map<String, Object> userProperties = new ConcurrentHashMap<String, Object>();
+    private volatile Map<Class<?>, List<Delegate>> delegates = Collections.emptyMap();
+    private volatile List<PropertyEvaluator> evaluators = Collections.emptyList();
+
+    protected ConcurrentPropertyHelper() {
+        refreshDelegates();
+    }
+
+    // On unless pant.concurrent.properties turns it off, since parallel targets otherwise queue on
+    // the property tables' locks
+    public static void installUnlessDisabled(final Project project) {
+        final String concurrentProperties = project.getProperty(CONCURRENT_PROPERTIES_PROPERTY);
+        if (concurrentProperties == null || Project.toBoolean(concurrentProperties)) {
+            install(project);
+        }
+    }
+
+    // Replaces the project's helper, carrying over its properties and delegates. Leaves a helper
+    // which isn't Ant's own alone, because we can't know what it depends on. Returns the helper in
+    // use afterwards
+    public static PropertyHelper install(final Project project) {
+        synchronized (PropertyHelper.class) {
+            final PropertyHelper existing = PropertyHelper.getPropertyHelper(project);
+            if (existing.getClass() != PropertyHelper.class) {
+                return existing;
+            }
+
+            final ConcurrentPropertyHelper helper = new ConcurrentPropertyHelper();
+            helper.setProject(project);
+            helper.copyFrom(existing);
+            project.addReference(MagicNames.REFID_PROPERTY_HELPER, helper);
+            return helper;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void copyFrom(final PropertyHelper existing) {
+        getInternalProperties().putAll(existing.getProperties());
+        getInternalUserProperties().putAll(existing.getUserProperties());
+        getInternalInheritedProperties().putAll(existing.getInheritedProperties());
+        properties.putAll(getInternalProperties());
+        userProperties.putAll(getInternalUserProperties());
+
+        // getDelegates is protected, so only reachable reflectively on another instance. Lists are
+        // highest priority first and add() pushes to the front, so add in reverse
+        try {
+            final Method getDelegates = PropertyHelper.class.getDeclaredMethod("getDelegates", Class.class);
+            getDelegates.setAccessible(true);
+            for (final Class<?> type: DELEGATE_TYPES) {
+                final List<Delegate> existingDelegates =
+                        new ArrayList<Delegate>((List<Delegate>) getDelegates.invoke(existing, type));
+                Collections.reverse(existingDelegates);
+                for (final Delegate delegate: existingDelegates) {
+                    add(delegate);
+                }
+            }
+        } catch (final NoSuchMethodException e) {
+            throw new BuildException(e);
+        } catch (final IllegalAccessException e) {
+            throw new BuildException(e);
+        } catch (final InvocationTargetException e) {
+            throw new BuildException(e.getCause());
+        }
+    }
+
+    @Override
+    public Object getProperty(final String name) {
+        if (name == null) {
+            return null;
+        }
+
+        final List<PropertyEvaluator> currentEvaluators = evaluators;
+        for (int i = 0; i < currentEvaluators.size(); i++) {
+            final Object value = currentEvaluators.get(i).evaluate(name, this);
+            if (value != null) {
+                return value instanceof NullReturn ? null : value;
+            }
+        }
+
+        return properties.get(name);
+    }
+
+    @Override
+    public Object getUserProperty(final String name) {
+        return name == null ? null : userProperties.get(name);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    protected List getDelegates(final Class type) {
+        final List<Delegate> cached = delegates.get(type);
+        return cached != null ? cached : super.getDelegates(type);
+    }
+
+    @Override
+    public synchronized void add(final Delegate delegate) {
+        super.add(delegate);
+        refreshDelegates();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void refreshDelegates() {
+        final Map<Class<?>, List<Delegate>> refreshed = new HashMap<Class<?>, List<Delegate>>();
+        for (final Class<?> type: DELEGATE_TYPES) {
+            refreshed.put(type, Collections.unmodifiableList(new ArrayList<Delegate>(super.getDelegates(type))));
+        }
+        delegates = refreshed;
+        evaluators = (List<PropertyEvaluator>) (List<?>) refreshed.get(PropertyEvaluator.class);
+    }
+
+    @Override
+    public synchronized boolean setProperty(final String name, final Object value, final boolean verbose) {
+        final boolean set = super.setProperty(name, value, verbose);
+        mirror(name);
+        return set;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public synchronized boolean setProperty(final String ns, final String name, final Object value,
+                                            final boolean verbose) {
+        final boolean set = super.setProperty(ns, name, value, verbose);
+        mirror(name);
+        return set;
+    }
+
+    @Override
+    public synchronized void setNewProperty(final String name, final Object value) {
+        super.setNewProperty(name, value);
+        mirror(name);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public synchronized void setNewProperty(final String ns, final String name, final Object value) {
+        super.setNewProperty(ns, name, value);
+        mirror(name);
+    }
+
+    @Override
+    public synchronized void setUserProperty(final String name, final Object value) {
+        super.setUserProperty(name, value);
+        mirror(name);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public synchronized void setUserProperty(final String ns, final String name, final Object value) {
+        super.setUserProperty(ns, name, value);
+        mirror(name);
+    }
+
+    @Override
+    public synchronized void setInheritedProperty(final String name, final Object value) {
+        super.setInheritedProperty(name, value);
+        mirror(name);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public synchronized void setInheritedProperty(final String ns, final String name, final Object value) {
+        super.setInheritedProperty(ns, name, value);
+        mirror(name);
+    }
+
+    // Called with the lock held, after every write
+    private void mirror(final String name) {
+        if (name == null) {
+            return;
+        }
+        mirror(properties, name, getInternalProperties().get(name));
+        mirror(userProperties, name, getInternalUserProperties().get(name));
+    }
+
+    private static void mirror(final Map<String, Object> map, final String name, final Object value) {
+        if (value == null) {
+            map.remove(name);
+        } else {
+            map.put(name, value);
+        }
+    }
+}
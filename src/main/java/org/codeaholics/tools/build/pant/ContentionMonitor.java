@@ -0,0 +1,320 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+
+// Finds the tasks which serialise a parallel build, by sampling blocked threads and charging each
+// wait to the task running on the thread which holds the lock.
+public class ContentionMonitor implements BuildListener, Runnable {
+    private static final String CONTENTION_PROPERTY = "pant.contention";
+    private static final int REPORTED_HOLDERS = 10;
+    private static final int REPORTED_WAITERS = 5;
+    private static final long NANOS_PER_TENTH = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final Comparator<Contention> MOST_CONTENDED_FIRST = new Comparator<Contention>() {
+        @Override
+        public int compare(final Contention a, final Contention b) {
+            final long difference = b.getTotalNanos() - a.getTotalNanos();
+            return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+        }
+    };
+
+    private final ThreadMXBean threadMXBean;
+    private final long intervalMillis;
+    private final Map<Long, Task> runningTasks = new ConcurrentHashMap<Long, Task>();
+    private final ThreadLocal<Deque<Task>> taskStack = new ThreadLocal<Deque<Task>>() {
+        @Override
+        protected Deque<Task> initialValue() {
+            return new ArrayDeque<Task>();
+        }
+    };
+
+    // guarded by this
+    private final Map<String, Contention> contentions = new HashMap<String, Contention>();
+    private long unownedWaitingNanos;
+    private long lastSampleNanos;
+    private Thread thread;
+
+    public ContentionMonitor(final ThreadMXBean threadMXBean, final long intervalMillis) {
+        this.threadMXBean = threadMXBean;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public ContentionMonitor(final long intervalMillis) {
+        this(ManagementFactory.getThreadMXBean(), intervalMillis);
+    }
+
+    // Off, and null, unless pant.contention gives a sampling interval in milliseconds. Otherwise
+    // returns a monitor which is already listening to the project and sampling
+    public static ContentionMonitor startFor(final Project project) {
+        final String interval = project.getProperty(CONTENTION_PROPERTY);
+        if (interval == null) {
+            return null;
+        }
+
+        final ContentionMonitor contentionMonitor;
+        try {
+            contentionMonitor = new ContentionMonitor(Long.parseLong(interval));
+        } catch (final NumberFormatException e) {
+            throw new BuildException("Invalid " + CONTENTION_PROPERTY + " interval: " + interval, e);
+        }
+        project.addBuildListener(contentionMonitor);
+        contentionMonitor.start();
+        return contentionMonitor;
+    }
+
+    public void start() {
+        synchronized (this) {
+            lastSampleNanos = System.nanoTime();
+        }
+        thread = new Thread(this, "pant-contention");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Undoes startFor, and logs the report
+    public void stopFor(final Project project) {
+        stop();
+        project.removeBuildListener(this);
+        project.log(report(), Project.MSG_INFO);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(intervalMillis);
+                sample(System.nanoTime());
+            }
+        } catch (final InterruptedException e) {
+            // stopped
+        }
+    }
+
+    public synchronized void sample(final long nowNanos) {
+        final long elapsedNanos = nowNanos - lastSampleNanos;
+        lastSampleNanos = nowNanos;
+
+        final List<Long> threadIds = new ArrayList<Long>(runningTasks.keySet());
+        final long[] ids = new long[threadIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = threadIds.get(i);
+        }
+
+        for (final ThreadInfo info: threadMXBean.getThreadInfo(ids, 0)) {
+            if (info != null) {
+                sample(info, elapsedNanos);
+            }
+        }
+    }
+
+    private void sample(final ThreadInfo info, final long elapsedNanos) {
+        final boolean blocked;
+        switch (info.getThreadState()) {
+        case BLOCKED:
+            blocked = true;
+            break;
+        case WAITING:
+        case TIMED_WAITING:
+            blocked = false;
+            break;
+        default:
+            return;
+        }
+
+        final Task waiter = runningTasks.get(info.getThreadId());
+        if (waiter == null) {
+            // finished since we looked
+            return;
+        }
+
+        if (info.getLockOwnerId() == -1) {
+            unownedWaitingNanos += elapsedNanos;
+            return;
+        }
+
+        final Task owner = runningTasks.get(info.getLockOwnerId());
+        final String holder = (owner == null ? "thread " + info.getLockOwnerName() : describe(owner))
+                + " holding " + lockClass(info.getLockName());
+
+        Contention contention = contentions.get(holder);
+        if (contention == null) {
+            contention = new Contention(holder);
+            contentions.put(holder, contention);
+        }
+        contention.add(describe(waiter), blocked, elapsedNanos);
+    }
+
+    public synchronized String report() {
+        final String lineSeparator = System.getProperty("line.separator");
+        final List<Contention> worst = new ArrayList<Contention>(contentions.values());
+        Collections.sort(worst, MOST_CONTENDED_FIRST);
+
+        final StringBuilder report = new StringBuilder("Contention: ");
+        if (worst.isEmpty()) {
+            report.append("no task waited on a lock held by another");
+        } else {
+            report.append("tasks holding locks others waited for, worst first");
+        }
+
+        for (final Contention contention: worst.subList(0, Math.min(REPORTED_HOLDERS, worst.size()))) {
+            report.append(lineSeparator).append("  ").append(formatSeconds(contention.getTotalNanos()))
+                  .append(' ').append(contention.getHolder())
+                  .append(" (blocked ").append(formatSeconds(contention.blockedNanos))
+                  .append(", waiting ").append(formatSeconds(contention.waitingNanos))
+                  .append("; waiters: ");
+            int listed = 0;
+            for (final String waiter: contention.waiters) {
+                if (listed == REPORTED_WAITERS) {
+                    report.append(", ...");
+                    break;
+                }
+                report.append(listed++ == 0 ? "" : ", ").append(waiter);
+            }
+            report.append(')');
+        }
+
+        if (unownedWaitingNanos > 0) {
+            report.append(lineSeparator).append("  ").append(formatSeconds(unownedWaitingNanos))
+                  .append(" spent waiting with no owning thread (processes, sleeps, I/O)");
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void taskStarted(final BuildEvent event) {
+        final Deque<Task> stack = taskStack.get();
+        stack.push(event.getTask());
+        runningTasks.put(Thread.currentThread().getId(), event.getTask());
+    }
+
+    @Override
+    public void taskFinished(final BuildEvent event) {
+        final Deque<Task> stack = taskStack.get();
+        stack.poll();
+        final Task enclosing = stack.peek();
+        if (enclosing == null) {
+            runningTasks.remove(Thread.currentThread().getId());
+        } else {
+            runningTasks.put(Thread.currentThread().getId(), enclosing);
+        }
+    }
+
+    @Override
+    public void buildStarted(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void buildFinished(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void targetStarted(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void targetFinished(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void messageLogged(final BuildEvent event) {
+        // not interested
+    }
+
+    private static String describe(final Task task) {
+        final Target target = task.getOwningTarget();
+        final String taskName = "[" + task.getTaskName() + "]";
+        return target == null || target.getName().length() == 0 ? taskName : taskName + " in " + target.getName();
+    }
+
+    // identity hash codes differ between builds, so only the class is worth reporting
+    private static String lockClass(final String lockName) {
+        if (lockName == null) {
+            return "a lock";
+        }
+        final int at = lockName.indexOf('@');
+        return at < 0 ? lockName : lockName.substring(0, at);
+    }
+
+    private static String formatSeconds(final long nanos) {
+        final long tenths = nanos / NANOS_PER_TENTH;
+        return tenths / 10 + "." + tenths % 10 + "s";
+    }
+
+    private static final class Contention {
+        private final String holder;
+        private final Set<String> waiters = new LinkedHashSet<String>();
+        private long blockedNanos;
+        private long waitingNanos;
+
+        public Contention(final String holder) {
+            this.holder = holder;
+        }
+
+        public String getHolder() {
+            return holder;
+        }
+
+        public long getTotalNanos() {
+            return blockedNanos + waitingNanos;
+        }
+
+        public void add(final String waiter, final boolean blocked, final long nanos) {
+            waiters.add(waiter);
+            if (blocked) {
+                blockedNanos += nanos;
+            } else {
+                waitingNanos += nanos;
+            }
+        }
+    }
+}
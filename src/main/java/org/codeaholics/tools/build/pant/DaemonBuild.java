@@ -0,0 +1,169 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Vector;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildLogger;
+import org.apache.tools.ant.DemuxInputStream;
+import org.apache.tools.ant.DemuxOutputStream;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+
+// One build run inside the daemon for a client, from the subset of the ant command line which makes
+// sense there. The build file is parsed afresh each time, since ant properties are write-once.
+public class DaemonBuild {
+    private static final String DEFAULT_BUILD_FILE = "build.xml";
+    private static final String DEFAULT_LOGGER = ParallelExecutorLogger.class.getName();
+
+    private final File workingDirectory;
+    private final Map<String, GraphCache> graphCaches;
+    private final Map<String, String> userProperties = new HashMap<String, String>();
+    private final List<String> targetNames = new LinkedList<String>();
+    private File buildFile;
+    private String loggerClassName = DEFAULT_LOGGER;
+    private int messageOutputLevel = Project.MSG_INFO;
+    private boolean keepGoing;
+
+    public DaemonBuild(final File workingDirectory, final List<String> args,
+                       final Map<String, GraphCache> graphCaches) {
+        this.workingDirectory = workingDirectory;
+        this.graphCaches = graphCaches;
+        buildFile = new File(workingDirectory, DEFAULT_BUILD_FILE);
+        parseArgs(args);
+    }
+
+    private void parseArgs(final List<String> args) {
+        for (int i = 0; i < args.size(); i++) {
+            final String arg = args.get(i);
+
+            if (arg.equals("-f") || arg.equals("-file") || arg.equals("-buildfile")) {
+                buildFile = resolve(requireValue(args, ++i, arg));
+            } else if (arg.equals("-logger")) {
+                loggerClassName = requireValue(args, ++i, arg);
+            } else if (arg.startsWith("-D")) {
+                final String property = arg.substring(2);
+                final int equals = property.indexOf('=');
+                if (equals > 0) {
+                    userProperties.put(property.substring(0, equals), property.substring(equals + 1));
+                } else {
+                    userProperties.put(property, "");
+                }
+            } else if (arg.equals("-k") || arg.equals("-keep-going")) {
+                keepGoing = true;
+            } else if (arg.equals("-q") || arg.equals("-quiet")) {
+                messageOutputLevel = Project.MSG_WARN;
+            } else if (arg.equals("-v") || arg.equals("-verbose")) {
+                messageOutputLevel = Project.MSG_VERBOSE;
+            } else if (arg.equals("-d") || arg.equals("-debug")) {
+                messageOutputLevel = Project.MSG_DEBUG;
+            } else if (arg.startsWith("-")) {
+                throw new BuildException("Option not supported by the pant daemon: " + arg);
+            } else {
+                targetNames.add(arg);
+            }
+        }
+    }
+
+    private File resolve(final String fileName) {
+        final File file = new File(fileName);
+        return file.isAbsolute() ? file : new File(workingDirectory, fileName);
+    }
+
+    private static String requireValue(final List<String> args, final int index, final String option) {
+        if (index >= args.size()) {
+            throw new BuildException("Missing value for " + option);
+        }
+        return args.get(index);
+    }
+
+    // Returns true if the build succeeded. Everything the build prints goes to out
+    public boolean run(final PrintStream out) {
+        final Project project = new Project();
+        final BuildLogger logger = createLogger(out);
+        project.addBuildListener(logger);
+
+        // tasks which write straight to the standard streams need to end up in the client's output
+        // rather than the daemon's
+        final PrintStream savedOut = System.out;
+        final PrintStream savedErr = System.err;
+        final InputStream savedIn = System.in;
+        System.setOut(new PrintStream(new DemuxOutputStream(project, false)));
+        System.setErr(new PrintStream(new DemuxOutputStream(project, true)));
+        System.setIn(new DemuxInputStream(project));
+
+        Throwable error = null;
+        try {
+            project.fireBuildStarted();
+            project.init();
+            project.addReference(GraphCache.STORE_REFERENCE, graphCaches);
+
+            for (final Entry<String, String> entry: userProperties.entrySet()) {
+                project.setUserProperty(entry.getKey(), entry.getValue());
+            }
+            project.setUserProperty(MagicNames.ANT_FILE, buildFile.getAbsolutePath());
+            project.setUserProperty(MagicNames.ANT_FILE_TYPE, MagicNames.ANT_FILE_TYPE_FILE);
+            project.setKeepGoingMode(keepGoing);
+
+            if (!buildFile.isFile()) {
+                throw new BuildException("Build file " + buildFile + " does not exist");
+            }
+            ProjectHelper.configureProject(project, buildFile);
+
+            final Vector<String> targets = new Vector<String>(targetNames);
+            if (targets.isEmpty() && project.getDefaultTarget() != null) {
+                targets.add(project.getDefaultTarget());
+            }
+            project.executeTargets(targets);
+        } catch (final RuntimeException e) {
+            error = e;
+        } catch (final Error e) {
+            error = e;
+        } finally {
+            System.setOut(savedOut);
+            System.setErr(savedErr);
+            System.setIn(savedIn);
+            project.fireBuildFinished(error);
+        }
+
+        return error == null;
+    }
+
+    private BuildLogger createLogger(final PrintStream out) {
+        final BuildLogger logger;
+        try {
+            logger = (BuildLogger) Class.forName(loggerClassName).getDeclaredConstructor().newInstance();
+        } catch (final Exception e) {
+            throw new BuildException("Unable to create logger " + loggerClassName, e);
+        }
+
+        logger.setOutputPrintStream(out);
+        logger.setErrorPrintStream(out);
+        logger.setMessageOutputLevel(messageOutputLevel);
+        return logger;
+    }
+}
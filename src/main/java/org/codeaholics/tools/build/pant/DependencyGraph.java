@@ -16,6 +16,12 @@ package org.codeaholics.tools.build.pant;
  *   limitations under the License.
  */
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -25,15 +31,23 @@ import java.util.Map;
 import org.apache.tools.ant.Target;
 
 public class DependencyGraph {
+    public static final Comparator<DependencyGraphEntry> LONGEST_CRITICAL_PATH_FIRST = new Comparator<DependencyGraphEntry>() {
+        @Override
+        public int compare(final DependencyGraphEntry entry1, final DependencyGraphEntry entry2) {
+            return entry2.getCriticalPathLength() - entry1.getCriticalPathLength();
+        }
+    };
+
     private final Map<String, DependencyGraphEntry> dependencyGraphEntries = new HashMap<String, DependencyGraphEntry>();
+    private final List<DependencyGraphEntry> topologicalOrder = new ArrayList<DependencyGraphEntry>();
     private final Map<String, Target> targets;
-    private final List<String> prePhaseTargets;
+    private final Map<String, Integer> targetPhases;
     private final DependencyGraphEntryFactory dependencyGraphEntryFactory;
 
-    public DependencyGraph(final Map<String, Target> targets, final List<String> prePhaseTargets,
+    public DependencyGraph(final Map<String, Target> targets, final Map<String, Integer> targetPhases,
                            final DependencyGraphEntryFactory dependencyGraphEntryFactory) {
         this.targets = targets;
-        this.prePhaseTargets = prePhaseTargets;
+        this.targetPhases = targetPhases;
         this.dependencyGraphEntryFactory = dependencyGraphEntryFactory;
     }
 
@@ -45,9 +59,10 @@ public class DependencyGraph {
             return dependencyGraphEntries.get(targetName);
         }
 
-        final boolean isPrePhase = prePhaseTargets.contains(targetName);
+        final Integer phase = targetPhases.get(targetName);
 
-        final DependencyGraphEntry dependencyGraphEntry = dependencyGraphEntryFactory.create(target, isPrePhase);
+        final DependencyGraphEntry dependencyGraphEntry =
+                dependencyGraphEntryFactory.create(target, phase == null ? DependencyGraphEntry.UNPHASED : phase);
         dependencyGraphEntries.put(targetName, dependencyGraphEntry);
 
         processDependencies(dependencyGraphEntry);
@@ -55,6 +70,50 @@ public class DependencyGraph {
         return dependencyGraphEntry;
     }
 
+    // Rebuilds the graph for a target from a previously calculated topological order and critical
+    // path lengths, in one pass and without recursion. Returns null if the order no longer matches
+    // the targets, in which case the graph is left empty
+    public DependencyGraphEntry restoreDependencies(final Target target, final String[] topologicalOrderNames,
+                                                    final int[] criticalPathLengths) {
+        for (int i = 0; i < topologicalOrderNames.length; i++) {
+            final Target orderedTarget = targets.get(topologicalOrderNames[i]);
+            if (orderedTarget == null) {
+                dependencyGraphEntries.clear();
+                topologicalOrder.clear();
+                return null;
+            }
+
+            final Integer phase = targetPhases.get(orderedTarget.getName());
+            final DependencyGraphEntry dependencyGraphEntry =
+                    dependencyGraphEntryFactory.create(orderedTarget, phase == null ? DependencyGraphEntry.UNPHASED : phase);
+            dependencyGraphEntry.setCriticalPathLength(criticalPathLengths[i]);
+            dependencyGraphEntries.put(orderedTarget.getName(), dependencyGraphEntry);
+            topologicalOrder.add(dependencyGraphEntry);
+
+            @SuppressWarnings("unchecked")
+            final Enumeration<String> dependencies = orderedTarget.getDependencies();
+            while (dependencies.hasMoreElements()) {
+                final String dependency = dependencies.nextElement();
+                final DependencyGraphEntry predecessor = dependencyGraphEntries.get(dependency);
+                if (predecessor == null) {
+                    // not in order after all
+                    dependencyGraphEntries.clear();
+                    topologicalOrder.clear();
+                    return null;
+                }
+
+                dependencyGraphEntry.addPredecessor(dependency);
+                predecessor.addSuccessor(dependencyGraphEntry);
+            }
+        }
+
+        for (final DependencyGraphEntry dependencyGraphEntry: topologicalOrder) {
+            Collections.sort(dependencyGraphEntry.getSuccessorEntries(), LONGEST_CRITICAL_PATH_FIRST);
+        }
+
+        return dependencyGraphEntries.get(target.getName());
+    }
+
     private void processDependencies(final DependencyGraphEntry dependencyGraphEntry) {
         @SuppressWarnings("unchecked")
         final Enumeration<String> dependencies = dependencyGraphEntry.getTarget().getDependencies();
@@ -64,8 +123,127 @@ public class DependencyGraph {
 
             dependencyGraphEntry.addPredecessor(dependency);
             final DependencyGraphEntry predecessorDependencyGraphEntry = buildDependencies(targets.get(dependency));
-            predecessorDependencyGraphEntry.addSuccessor(dependencyGraphEntry.getTarget().getName());
+            predecessorDependencyGraphEntry.addSuccessor(dependencyGraphEntry);
+        }
+    }
+
+    // Works back from the entries with no successors, so that every entry is visited after all of its
+    // successors. Done iteratively because generated builds can have very long chains. Each entry's
+    // successors are then ordered longest path first, so that's the order they're released in
+    public void calculateCriticalPathLengths() {
+        topologicalOrder.clear();
+        final Map<DependencyGraphEntry, Integer> unvisitedSuccessors = new HashMap<DependencyGraphEntry, Integer>();
+        final ArrayDeque<DependencyGraphEntry> visitable = new ArrayDeque<DependencyGraphEntry>();
+
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraphEntries.values()) {
+            final int successors = dependencyGraphEntry.getSuccessorEntries().size();
+            unvisitedSuccessors.put(dependencyGraphEntry, successors);
+            if (successors == 0) {
+                visitable.add(dependencyGraphEntry);
+            }
+        }
+
+        while (!visitable.isEmpty()) {
+            final DependencyGraphEntry dependencyGraphEntry = visitable.poll();
+
+            int longestSuccessorPath = 0;
+            for (final DependencyGraphEntry successor: dependencyGraphEntry.getSuccessorEntries()) {
+                longestSuccessorPath = Math.max(longestSuccessorPath, successor.getCriticalPathLength());
+            }
+            dependencyGraphEntry.setCriticalPathLength(longestSuccessorPath + 1);
+            topologicalOrder.add(dependencyGraphEntry);
+
+            for (final String predecessorName: dependencyGraphEntry.getPredecessors()) {
+                final DependencyGraphEntry predecessor = dependencyGraphEntries.get(predecessorName);
+                final int remaining = unvisitedSuccessors.get(predecessor) - 1;
+                unvisitedSuccessors.put(predecessor, remaining);
+                if (remaining == 0) {
+                    visitable.add(predecessor);
+                }
+            }
+        }
+
+        // sinks were visited first
+        Collections.reverse(topologicalOrder);
+
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraphEntries.values()) {
+            Collections.sort(dependencyGraphEntry.getSuccessorEntries(), LONGEST_CRITICAL_PATH_FIRST);
+        }
+    }
+
+    // Removes every edge which is implied by a longer path, so the scheduler has fewer to deal with,
+    // and returns them in topological order of the dependent target. Needs the topological order.
+    // Reachability, and therefore the critical path lengths, are unchanged
+    public List<RedundantDependency> reduceTransitively() {
+        final Map<DependencyGraphEntry, Integer> indices = new HashMap<DependencyGraphEntry, Integer>();
+        for (int i = 0; i < topologicalOrder.size(); i++) {
+            indices.put(topologicalOrder.get(i), i);
+        }
+
+        // every entry's ancestors, by index; complete for each entry before any of its successors
+        final BitSet[] ancestors = new BitSet[topologicalOrder.size()];
+        final List<RedundantDependency> redundantDependencies = new ArrayList<RedundantDependency>();
+
+        for (int i = 0; i < topologicalOrder.size(); i++) {
+            final DependencyGraphEntry dependencyGraphEntry = topologicalOrder.get(i);
+            final List<DependencyGraphEntry> predecessors = new ArrayList<DependencyGraphEntry>();
+            for (final String predecessorName: dependencyGraphEntry.getPredecessors()) {
+                predecessors.add(dependencyGraphEntries.get(predecessorName));
+            }
+
+            ancestors[i] = new BitSet(topologicalOrder.size());
+            for (final DependencyGraphEntry predecessor: predecessors) {
+                final int predecessorIndex = indices.get(predecessor);
+                ancestors[i].or(ancestors[predecessorIndex]);
+                ancestors[i].set(predecessorIndex);
+            }
+
+            for (final DependencyGraphEntry predecessor: predecessors) {
+                final DependencyGraphEntry impliedBy = findImplyingPredecessor(predecessor, predecessors, indices,
+                                                                               ancestors);
+                if (impliedBy != null) {
+                    dependencyGraphEntry.removePredecessor(predecessor.getTarget().getName());
+                    predecessor.removeSuccessor(dependencyGraphEntry);
+                    redundantDependencies.add(new RedundantDependency(dependencyGraphEntry.getTarget().getName(),
+                                                                      predecessor.getTarget().getName(),
+                                                                      impliedBy.getTarget().getName()));
+                }
+            }
         }
+
+        return redundantDependencies;
+    }
+
+    private static DependencyGraphEntry findImplyingPredecessor(final DependencyGraphEntry predecessor,
+                                                                final List<DependencyGraphEntry> predecessors,
+                                                                final Map<DependencyGraphEntry, Integer> indices,
+                                                                final BitSet[] ancestors) {
+        final int predecessorIndex = indices.get(predecessor);
+        for (final DependencyGraphEntry other: predecessors) {
+            if (other != predecessor && ancestors[indices.get(other)].get(predecessorIndex)) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    // Links each entry with a single successor to it, where it is that successor's only predecessor
+    public void fuseChains() {
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraphEntries.values()) {
+            final List<DependencyGraphEntry> successors = dependencyGraphEntry.getSuccessorEntries();
+            if (successors.size() == 1 && successors.get(0).getPredecessors().size() == 1) {
+                dependencyGraphEntry.setFusedSuccessor(successors.get(0));
+            }
+        }
+    }
+
+    // Every entry after all of its predecessors; only populated by calculateCriticalPathLengths
+    public List<DependencyGraphEntry> getTopologicalOrder() {
+        return topologicalOrder;
+    }
+
+    public Collection<DependencyGraphEntry> getDependencyGraphEntries() {
+        return dependencyGraphEntries.values();
     }
 
     public List<DependencyGraphEntry> discoverAllSchedulableTargets() {
@@ -16,27 +16,50 @@ package org.codeaholics.tools.build.pant;
  *   limitations under the License.
  */
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.UnknownElement;
 
 public class DependencyGraphEntry implements Runnable {
+    public static final int UNPHASED = Integer.MAX_VALUE;
+
+    private static final String RELEASE_PROPERTY = "pant.release";
+    private static final int[] NO_BLOCKING_PHASES = new int[0];
+    private static final ExclusionGroup[] NO_EXCLUSION_GROUPS = new ExclusionGroup[0];
+
     private final Target target;
-    private final boolean isPrePhase;
+    private final int phase;
     private final TargetExecutionNotifier executionNotifier;
     private final AntWrapper targetExecutor;
 
     private final Set<String> predecessors = new HashSet<String>();
     private final Set<String> successors = new HashSet<String>();
+    private final List<DependencyGraphEntry> predecessorEntries = new ArrayList<DependencyGraphEntry>();
+    private final List<DependencyGraphEntry> successorEntries = new ArrayList<DependencyGraphEntry>();
+    private DependencyGraphEntry fusedSuccessor;
 
     private TargetState state = TargetState.WAITING;
+    private int outstandingPredecessors;
+    private int incompleteSuccessors;
+    private int[] blockingPhases = NO_BLOCKING_PHASES;
+    private ExclusionGroup[] exclusionGroups = NO_EXCLUSION_GROUPS;
+    private int criticalPathLength;
+    private long startedNanos;
+    private long finishedNanos;
+    // Read by the target preparer's thread
+    private volatile boolean started;
 
-    public DependencyGraphEntry(final Target target, final boolean isPrePhase,
+    public DependencyGraphEntry(final Target target, final int phase,
                                 final TargetExecutionNotifier executionNotifier,
                                 final AntWrapper targetExecutor) {
         this.target = target;
-        this.isPrePhase = isPrePhase;
+        this.phase = phase;
         this.executionNotifier = executionNotifier;
         this.targetExecutor = targetExecutor;
     }
@@ -46,11 +69,32 @@ public class DependencyGraphEntry implements Runnable {
     }
 
     public void addPredecessor(final String predecessor) {
-        predecessors.add(predecessor);
+        if (predecessors.add(predecessor)) {
+            outstandingPredecessors++;
+        }
+    }
+
+    public void addSuccessor(final DependencyGraphEntry successor) {
+        if (successors.add(successor.getTarget().getName())) {
+            successorEntries.add(successor);
+            successor.predecessorEntries.add(this);
+            incompleteSuccessors++;
+        }
+    }
+
+    // Only for edges which are implied by others, before anything has run
+    public void removePredecessor(final String predecessor) {
+        if (predecessors.remove(predecessor)) {
+            outstandingPredecessors--;
+        }
     }
 
-    public void addSuccessor(final String successor) {
-        successors.add(successor);
+    public void removeSuccessor(final DependencyGraphEntry successor) {
+        if (successors.remove(successor.getTarget().getName())) {
+            successorEntries.remove(successor);
+            successor.predecessorEntries.remove(this);
+            incompleteSuccessors--;
+        }
     }
 
     public Set<String> getPredecessors() {
@@ -61,6 +105,43 @@ public class DependencyGraphEntry implements Runnable {
         return successors;
     }
 
+    // Indexed, rather than iterated, by the scheduler so that releasing successors doesn't allocate
+    public List<DependencyGraphEntry> getSuccessorEntries() {
+        return successorEntries;
+    }
+
+    public List<DependencyGraphEntry> getPredecessorEntries() {
+        return predecessorEntries;
+    }
+
+    // The only successor, when this is also its only predecessor. Such chains are run link after
+    // link on one thread rather than going back through the executor each time
+    public DependencyGraphEntry getFusedSuccessor() {
+        return fusedSuccessor;
+    }
+
+    public void setFusedSuccessor(final DependencyGraphEntry fusedSuccessor) {
+        this.fusedSuccessor = fusedSuccessor;
+    }
+
+    public int getOutstandingPredecessors() {
+        return outstandingPredecessors;
+    }
+
+    // Returns true when the last outstanding predecessor of this entry has completed
+    public boolean predecessorComplete() {
+        return --outstandingPredecessors == 0;
+    }
+
+    // Returns true when the last successor of this entry has completed
+    public boolean successorComplete() {
+        return --incompleteSuccessors == 0;
+    }
+
+    public boolean hasIncompleteSuccessors() {
+        return incompleteSuccessors > 0;
+    }
+
     public boolean isTargetComplete() {
         return state == TargetState.COMPLETE;
     }
@@ -69,12 +150,118 @@ public class DependencyGraphEntry implements Runnable {
         return state == TargetState.WAITING;
     }
 
-    public boolean isPrePhase() {
-        return isPrePhase;
+    public boolean isPhased() {
+        return phase != UNPHASED;
+    }
+
+    public int getPhase() {
+        return phase;
+    }
+
+    // The earlier phases whose barriers this entry must wait for
+    public int[] getBlockingPhases() {
+        return blockingPhases;
+    }
+
+    public void setBlockingPhases(final int[] blockingPhases) {
+        this.blockingPhases = blockingPhases;
+    }
+
+    public ExclusionGroup[] getExclusionGroups() {
+        return exclusionGroups;
+    }
+
+    public void setExclusionGroups(final ExclusionGroup[] exclusionGroups) {
+        this.exclusionGroups = exclusionGroups;
+    }
+
+    // The number of targets on the longest chain from this entry to the end of the build, inclusive
+    public int getCriticalPathLength() {
+        return criticalPathLength;
+    }
+
+    public void setCriticalPathLength(final int criticalPathLength) {
+        this.criticalPathLength = criticalPathLength;
+    }
+
+    public TargetState getState() {
+        return state;
     }
 
     public void setState(final TargetState state) {
         this.state = state;
+
+        if (state == TargetState.RUNNING) {
+            started = true;
+            startedNanos = System.nanoTime();
+        } else if (state == TargetState.COMPLETE) {
+            finishedNanos = System.nanoTime();
+        }
+    }
+
+    // Only meaningful once the entry is running
+    public long getElapsedNanos(final long nowNanos) {
+        return (state == TargetState.COMPLETE ? finishedNanos : nowNanos) - startedNanos;
+    }
+
+    // Gets the target ready on the preparer's thread, unless it has already started. Holds the entry's
+    // lock, so its tasks can't be released underneath it
+    public synchronized void prepare(final TargetPreparer targetPreparer) {
+        if (!started) {
+            targetPreparer.prepareNow(target);
+        }
+    }
+
+    // Off unless pant.release turns it on
+    public static boolean isReleaseEnabled(final Project project) {
+        final String release = project.getProperty(RELEASE_PROPERTY);
+        return release != null && Project.toBoolean(release);
+    }
+
+    // Once a target and all of its successors are complete, this build has no more use for the
+    // objects its tasks were configured into, so they can go, leaving just the entry's name, state
+    // and timings. Called as this entry completes, for it and for the predecessors it was the last to
+    // need. Should the target be named again, Ant configures its tasks afresh
+    public void releaseUnusedTasks() {
+        if (!hasIncompleteSuccessors()) {
+            releaseTasks();
+        }
+
+        for (int i = 0; i < predecessorEntries.size(); i++) {
+            final DependencyGraphEntry predecessor = predecessorEntries.get(i);
+            if (predecessor.successorComplete()) {
+                predecessor.releaseTasks();
+            }
+        }
+    }
+
+    // Drops the objects which the target's tasks and their nested elements were configured into,
+    // leaving the parsed tree that Ant would configure them from again. Anything with an id is kept,
+    // as the project refers to it
+    public synchronized void releaseTasks() {
+        final Task[] tasks = target.getTasks();
+        for (int i = 0; i < tasks.length; i++) {
+            if (tasks[i] instanceof UnknownElement) {
+                release((UnknownElement) tasks[i]);
+            }
+        }
+    }
+
+    private static void release(final UnknownElement element) {
+        if (element.getWrapper().getId() != null) {
+            return;
+        }
+
+        element.setRealThing(null);
+        element.getWrapper().setProxy(null);
+
+        @SuppressWarnings("unchecked")
+        final List<UnknownElement> children = element.getChildren();
+        if (children != null) {
+            for (int i = 0; i < children.size(); i++) {
+                release(children.get(i));
+            }
+        }
     }
 
     @Override
@@ -82,13 +269,31 @@ public class DependencyGraphEntry implements Runnable {
         return String.format("%s [%s]", target.getName(), state);
     }
 
+    // Carries on down a fused chain for as long as the notifier hands back the next link. A failure
+    // doesn't stop the chain, any more than it would stop a successor submitted separately, but the
+    // first one is rethrown at the end
     @Override
     public void run() {
         executionNotifier.notifyStarting(this);
-        try {
-            targetExecutor.executeTarget(target);
-        } finally {
-            executionNotifier.notifyComplete(this);
+
+        Throwable failure = null;
+        DependencyGraphEntry current = this;
+        while (current != null) {
+            try {
+                current.targetExecutor.executeTarget(current.target);
+            } catch (final RuntimeException e) {
+                failure = failure == null ? e : failure;
+            } catch (final Error e) {
+                failure = failure == null ? e : failure;
+            }
+            current = executionNotifier.notifyComplete(current);
+        }
+
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw (RuntimeException) failure;
         }
     }
 }
@@ -19,5 +19,5 @@ package org.codeaholics.tools.build.pant;
 import org.apache.tools.ant.Target;
 
 public interface DependencyGraphEntryFactory {
-    public DependencyGraphEntry create(Target target, boolean isPrePhase);
+    public DependencyGraphEntry create(Target target, int phase);
 }
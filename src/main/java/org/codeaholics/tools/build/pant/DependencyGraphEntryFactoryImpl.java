@@ -29,7 +29,7 @@ public class DependencyGraphEntryFactoryImpl implements DependencyGraphEntryFact
     }
 
     @Override
-    public DependencyGraphEntry create(final Target target, final boolean isPrePhase) {
-        return new DependencyGraphEntry(target, isPrePhase, targetExecutionNotifier, targetExecutor);
+    public DependencyGraphEntry create(final Target target, final int phase) {
+        return new DependencyGraphEntry(target, phase, targetExecutionNotifier, targetExecutor);
     }
 }
\ No newline at end of file
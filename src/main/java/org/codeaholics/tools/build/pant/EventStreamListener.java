@@ -0,0 +1,412 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+// Writes a JSON record per line for every build event, to a file or to "socket:<port>" locally.
+// Build threads only fill in a ring buffer slot; a writer thread of its own does the rest.
+public class EventStreamListener implements BuildListener {
+    private static final String EVENTS_PROPERTY = "pant.events";
+    private static final String SOCKET_PREFIX = "socket:";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RING_BUFFER_CAPACITY = 8192;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final WritableByteChannel channel;
+    private final long origin = System.nanoTime();
+    private final long epochMillis = System.currentTimeMillis();
+
+    private final LogRingBuffer ringBuffer = new LogRingBuffer(RING_BUFFER_CAPACITY);
+    private final Writer writer = new Writer();
+
+    // Producers which have seen the ring open but may not have published into it yet. The writer
+    // doesn't stop until there are none, so nothing is published into a ring which nobody drains
+    private final AtomicInteger publishing = new AtomicInteger();
+
+    private volatile boolean writerStarted;
+
+    // the number of records the writer has handed to the channel (or dropped, once it has broken)
+    private volatile long written;
+
+    // everything below is only touched by the writer thread
+    private final StringBuilder record = new StringBuilder();
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private boolean closed;
+
+    public EventStreamListener(final WritableByteChannel channel) {
+        this.channel = channel;
+
+        publish(LogEventType.STREAM_STARTED, 0, null, null, null, null);
+    }
+
+    public static EventStreamListener open(final Project project, final String destination) {
+        try {
+            if (destination.startsWith(SOCKET_PREFIX)) {
+                final int port = Integer.parseInt(destination.substring(SOCKET_PREFIX.length()));
+                return new EventStreamListener(SocketChannel.open(new InetSocketAddress("127.0.0.1", port)));
+            }
+
+            return new EventStreamListener(new FileOutputStream(project.resolveFile(destination)).getChannel());
+        } catch (final IOException e) {
+            throw new BuildException("Unable to open event stream: " + destination, e);
+        } catch (final NumberFormatException e) {
+            throw new BuildException("Invalid event stream port: " + destination, e);
+        }
+    }
+
+    // Off unless pant.events names a destination. A listener which is still open belongs to the build
+    // that is still running, so it carries on; one which has closed is taken off the project
+    public static EventStreamListener forBuild(final Project project, final EventStreamListener current) {
+        if (current != null) {
+            if (!current.isClosed()) {
+                return current;
+            }
+            project.removeBuildListener(current);
+        }
+
+        final String destination = project.getProperty(EVENTS_PROPERTY);
+        if (destination == null) {
+            return null;
+        }
+
+        final EventStreamListener eventStreamListener = open(project, destination);
+        project.addBuildListener(eventStreamListener);
+        return eventStreamListener;
+    }
+
+    public void targetQueued(final String targetName) {
+        publish(LogEventType.TARGET_QUEUED, 0, targetName, null, null, null);
+    }
+
+    @Override
+    public void buildStarted(final BuildEvent event) {
+        // the stream is normally opened after the build has started
+    }
+
+    @Override
+    public void buildFinished(final BuildEvent event) {
+        publish(LogEventType.BUILD_FINISHED, 0, null, null, null, event.getException());
+        close();
+    }
+
+    @Override
+    public void targetStarted(final BuildEvent event) {
+        publish(LogEventType.TARGET_STARTED, 0, event.getTarget().getName(), null, null, null);
+    }
+
+    @Override
+    public void targetFinished(final BuildEvent event) {
+        publish(LogEventType.TARGET_FINISHED, 0, event.getTarget().getName(), null, null, event.getException());
+    }
+
+    @Override
+    public void taskStarted(final BuildEvent event) {
+        final Task task = event.getTask();
+        publish(LogEventType.TASK_STARTED, 0, getTargetName(task), task.getTaskName(), null, null);
+    }
+
+    @Override
+    public void taskFinished(final BuildEvent event) {
+        final Task task = event.getTask();
+        publish(LogEventType.TASK_FINISHED, 0, getTargetName(task), task.getTaskName(), null, event.getException());
+    }
+
+    @Override
+    public void messageLogged(final BuildEvent event) {
+        if (event.getPriority() > Project.MSG_INFO) {
+            return;
+        }
+
+        final Task task = event.getTask();
+        if (task != null) {
+            publish(LogEventType.MESSAGE, event.getPriority(), getTargetName(task), task.getTaskName(),
+                    event.getMessage(), null);
+        } else {
+            final String targetName = event.getTarget() == null ? null : event.getTarget().getName();
+            publish(LogEventType.MESSAGE, event.getPriority(), targetName, null, event.getMessage(), null);
+        }
+    }
+
+    // Once the build has finished the stream is closed for good
+    public boolean isClosed() {
+        return ringBuffer.isClosed();
+    }
+
+    // Blocks until everything recorded so far has been written out
+    public void flush() {
+        final long recorded = ringBuffer.getClaimed();
+        int attempts = 0;
+        while (written < recorded && writer.isAlive()) {
+            LogRingBuffer.backOff(attempts++);
+        }
+    }
+
+    // Blocks until everything recorded so far has been written, then stops the writer and closes
+    // the channel. Anything recorded after this is dropped
+    private void close() {
+        ringBuffer.close();
+        try {
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publish(final LogEventType type, final int priority, final String targetName,
+                         final String taskName, final String message, final Throwable exception) {
+        startWriter();
+        publishing.incrementAndGet();
+        try {
+            if (ringBuffer.isClosed()) {
+                return;
+            }
+
+            final LogEvent event = ringBuffer.claim(false);
+            event.set(type, priority, false, targetName, taskName, message, exception);
+            ringBuffer.publish(event);
+        } finally {
+            publishing.decrementAndGet();
+        }
+    }
+
+    private void startWriter() {
+        if (!writerStarted) {
+            synchronized (writer) {
+                if (!writerStarted) {
+                    writer.start();
+                    writerStarted = true;
+                }
+            }
+        }
+    }
+
+    private static String getTargetName(final Task task) {
+        return task.getOwningTarget() == null ? null : task.getOwningTarget().getName();
+    }
+
+    // Writer thread only
+    private void write(final LogEvent event) {
+        if (event.getException() != null) {
+            begin(event, "failure");
+            location(event);
+            field("error", String.valueOf(event.getException().getMessage()));
+            end();
+        }
+
+        switch (event.getType()) {
+        case STREAM_STARTED:
+            begin(event, "streamStarted").append(",\"epochMillis\":").append(epochMillis);
+            break;
+
+        case TARGET_QUEUED:
+            begin(event, "targetQueued");
+            break;
+
+        case TARGET_STARTED:
+            begin(event, "targetStarted");
+            break;
+
+        case TARGET_FINISHED:
+            begin(event, "targetFinished");
+            break;
+
+        case TASK_STARTED:
+            begin(event, "taskStarted");
+            break;
+
+        case TASK_FINISHED:
+            begin(event, "taskFinished");
+            break;
+
+        case MESSAGE:
+            begin(event, "message").append(",\"priority\":").append(event.getPriority());
+            break;
+
+        case BUILD_FINISHED:
+            begin(event, "buildFinished");
+            break;
+
+        default:
+            return;
+        }
+
+        location(event);
+        if (event.getType() == LogEventType.MESSAGE) {
+            field("message", event.getMessage());
+        }
+        end();
+    }
+
+    // Writer thread only. Writes out anything still buffered
+    private void flushBuffer() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        } catch (final IOException e) {
+            // a broken stream mustn't break the build
+            closed = true;
+        }
+    }
+
+    // Writer thread only
+    private void closeChannel() {
+        flushBuffer();
+        closed = true;
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // nothing more we can do
+        }
+    }
+
+    private void location(final LogEvent event) {
+        if (event.getTargetName() != null) {
+            field("target", event.getTargetName());
+        }
+        if (event.getTaskName() != null) {
+            field("task", event.getTaskName());
+        }
+    }
+
+    private StringBuilder begin(final LogEvent event, final String eventName) {
+        record.setLength(0);
+        record.append("{\"t\":").append(event.getTime() - origin);
+        record.append(",\"thread\":").append(event.getProducer().getId());
+        record.append(",\"event\":\"").append(eventName).append('"');
+        return record;
+    }
+
+    private void field(final String name, final String value) {
+        record.append(",\"").append(name).append("\":");
+        if (value == null) {
+            record.append("null");
+            return;
+        }
+
+        record.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                record.append("\\\"");
+                break;
+            case '\\':
+                record.append("\\\\");
+                break;
+            case '\n':
+                record.append("\\n");
+                break;
+            case '\r':
+                record.append("\\r");
+                break;
+            case '\t':
+                record.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    record.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                } else {
+                    record.append(c);
+                }
+            }
+        }
+        record.append('"');
+    }
+
+    private void end() {
+        if (closed) {
+            return;
+        }
+
+        record.append("}\n");
+
+        final CharBuffer chars = CharBuffer.wrap(record);
+        encoder.reset();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                flushBuffer();
+            }
+        } while (result.isOverflow() && !closed);
+    }
+
+    private final class Writer extends Thread {
+        public Writer() {
+            super("pant-event-stream");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int attempts = 0;
+            long consumed = 0;
+            while (true) {
+                final LogEvent event = ringBuffer.poll();
+                if (event != null) {
+                    write(event);
+                    consumed = event.getSequence() + 1;
+                    ringBuffer.release(event);
+                    attempts = 0;
+                    continue;
+                }
+
+                // caught up, so this is a good time to write
+                flushBuffer();
+                written = consumed;
+
+                if (!ringBuffer.isClosed()) {
+                    ringBuffer.park(0);
+                } else if (publishing.get() == 0 && ringBuffer.isDrained()) {
+                    closeChannel();
+                    return;
+                } else {
+                    // a producer is still on its way into the ring
+                    LogRingBuffer.backOff(attempts++);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A set of targets which may run in any order, but never at the same time as each other
+public class ExclusionGroup {
+    private final String name;
+    private final List<String> targets;
+
+    // Entries which are otherwise schedulable but are waiting for this group to become free
+    private final List<DependencyGraphEntry> waiting = new ArrayList<DependencyGraphEntry>();
+
+    private DependencyGraphEntry holder;
+
+    public ExclusionGroup(final String name, final List<String> targets) {
+        this.name = name;
+        this.targets = targets;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getTargets() {
+        return targets;
+    }
+
+    public boolean isFree() {
+        return holder == null;
+    }
+
+    public void acquire(final DependencyGraphEntry dependencyGraphEntry) {
+        holder = dependencyGraphEntry;
+    }
+
+    public void release() {
+        holder = null;
+    }
+
+    public void addWaiting(final DependencyGraphEntry dependencyGraphEntry) {
+        waiting.add(dependencyGraphEntry);
+    }
+
+    public boolean hasWaiting() {
+        return !waiting.isEmpty();
+    }
+
+    // Removes and returns the waiting entry with the longest critical path, favouring the one that
+    // has waited longest when there's a tie
+    public DependencyGraphEntry removeBestWaiting() {
+        int best = 0;
+        for (int i = 1; i < waiting.size(); i++) {
+            if (waiting.get(i).getCriticalPathLength() > waiting.get(best).getCriticalPathLength()) {
+                best = i;
+            }
+        }
+        return waiting.remove(best);
+    }
+
+    public void reset() {
+        waiting.clear();
+        holder = null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
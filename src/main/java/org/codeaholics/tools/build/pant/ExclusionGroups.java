@@ -0,0 +1,107 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+// The build's exclusion groups, by member. Entries take all of their groups before they're
+// scheduled and give them back when they complete.
+public class ExclusionGroups {
+    private static final String EXCLUSIVE_TARGET_PREFIX = "pant:exclusive.";
+
+    private final Map<String, List<ExclusionGroup>> targetExclusionGroups = new HashMap<String, List<ExclusionGroup>>();
+
+    public static boolean isExclusionGroupName(final String targetName) {
+        return targetName.startsWith(EXCLUSIVE_TARGET_PREFIX) && targetName.length() > EXCLUSIVE_TARGET_PREFIX.length();
+    }
+
+    public void addGroup(final String name, final List<String> targets) {
+        final ExclusionGroup exclusionGroup = new ExclusionGroup(name, targets);
+
+        for (final String targetName: targets) {
+            List<ExclusionGroup> exclusionGroups = targetExclusionGroups.get(targetName);
+            if (exclusionGroups == null) {
+                exclusionGroups = new LinkedList<ExclusionGroup>();
+                targetExclusionGroups.put(targetName, exclusionGroups);
+            }
+            // a target listed twice would otherwise wait for itself
+            if (!exclusionGroups.contains(exclusionGroup)) {
+                exclusionGroups.add(exclusionGroup);
+            }
+        }
+    }
+
+    // Frees every group and tells each entry which groups it's in
+    public void prepare(final Collection<DependencyGraphEntry> dependencyGraphEntries) {
+        for (final List<ExclusionGroup> exclusionGroups: targetExclusionGroups.values()) {
+            for (final ExclusionGroup exclusionGroup: exclusionGroups) {
+                exclusionGroup.reset();
+            }
+        }
+
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraphEntries) {
+            final List<ExclusionGroup> exclusionGroups =
+                    targetExclusionGroups.get(dependencyGraphEntry.getTarget().getName());
+            if (exclusionGroups != null) {
+                dependencyGraphEntry.setExclusionGroups(
+                        exclusionGroups.toArray(new ExclusionGroup[exclusionGroups.size()]));
+            }
+        }
+    }
+
+    // Adds the entry to schedulableTargets once it holds all of its groups, or leaves it waiting for
+    // one. Groups are only ever acquired all at once, so entries never hold one group while waiting
+    // for another and can't deadlock
+    public void acquireOrWait(final DependencyGraphEntry dependencyGraphEntry,
+                              final Queue<DependencyGraphEntry> schedulableTargets) {
+        final ExclusionGroup[] exclusionGroups = dependencyGraphEntry.getExclusionGroups();
+        for (int i = 0; i < exclusionGroups.length; i++) {
+            if (!exclusionGroups[i].isFree()) {
+                exclusionGroups[i].addWaiting(dependencyGraphEntry);
+                return;
+            }
+        }
+
+        for (int i = 0; i < exclusionGroups.length; i++) {
+            exclusionGroups[i].acquire(dependencyGraphEntry);
+        }
+        schedulableTargets.add(dependencyGraphEntry);
+    }
+
+    // Waiting members which can now take all of their groups are added to schedulableTargets
+    public void release(final DependencyGraphEntry dependencyGraphEntry,
+                        final Queue<DependencyGraphEntry> schedulableTargets) {
+        final ExclusionGroup[] exclusionGroups = dependencyGraphEntry.getExclusionGroups();
+        for (int i = 0; i < exclusionGroups.length; i++) {
+            exclusionGroups[i].release();
+        }
+
+        // hand each group to the best member waiting for it, unless that member still has to wait
+        // for another of its groups, in which case try the next best
+        for (int i = 0; i < exclusionGroups.length; i++) {
+            final ExclusionGroup exclusionGroup = exclusionGroups[i];
+            while (exclusionGroup.isFree() && exclusionGroup.hasWaiting()) {
+                acquireOrWait(exclusionGroup.removeBestWaiting(), schedulableTargets);
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+
+// Remembers validated dependency graphs between builds, in a memory-mapped file or a daemon's
+// store, keyed on a digest of every build file and the requested targets.
+public class GraphCache {
+    // The store a daemon keeps caches in between builds
+    public static final String STORE_REFERENCE = "pant.graph.cache.store";
+
+    private static final String GRAPH_CACHE_PROPERTY = "pant.graph.cache";
+    private static final int MAGIC = 0x70616e74;  // "pant"
+    private static final int VERSION = 2;
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final String ENCODING = "UTF-8";
+    private static final int STORE_CAPACITY = 16;
+
+    private final Project project;
+    private final File file;
+    private final byte[] key;
+    private final Map<String, String[]> topologicalOrders = new HashMap<String, String[]>();
+    private final Map<String, int[]> criticalPathLengths = new HashMap<String, int[]>();
+    private boolean valid;
+    private boolean modified;
+
+    public GraphCache(final Project project, final File file, final byte[] key) {
+        this.project = project;
+        this.file = file;
+        this.key = key;
+    }
+
+    // Off, and null, unless pant.graph.cache names a file or a daemon has provided a store. A file
+    // named by the build wins over the store
+    public static GraphCache forBuild(final Project project, final Map<String, Target> targetsByName,
+                                      final String[] targetNames) {
+        final String cacheFile = project.getProperty(GRAPH_CACHE_PROPERTY);
+        if (cacheFile != null) {
+            return open(project, project.resolveFile(cacheFile), targetsByName, targetNames);
+        }
+
+        @SuppressWarnings("unchecked")
+        final Map<String, GraphCache> store = (Map<String, GraphCache>) project.getReference(STORE_REFERENCE);
+        return store == null ? null : open(project, store, targetsByName, targetNames);
+    }
+
+    public static GraphCache open(final Project project, final File file, final Map<String, Target> targetsByName,
+                                  final String[] targetNames) {
+        final GraphCache graphCache = new GraphCache(project, file, calculateKey(project, targetsByName, targetNames));
+
+        if (file.isFile()) {
+            try {
+                graphCache.read();
+            } catch (final IOException e) {
+                project.log("Ignoring unreadable graph cache " + file + ": " + e.getMessage(), Project.MSG_VERBOSE);
+            } catch (final BufferUnderflowException e) {
+                project.log("Ignoring truncated graph cache " + file, Project.MSG_VERBOSE);
+            }
+        }
+
+        return graphCache;
+    }
+
+    // Caches are stored under their keys, so a changed build file or a different set of requested
+    // targets gets a cache of its own; the least recently used are dropped
+    public static Map<String, GraphCache> createStore() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, GraphCache>(STORE_CAPACITY, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, GraphCache> eldest) {
+                return size() > STORE_CAPACITY;
+            }
+        });
+    }
+
+    // A cache which is kept in the store rather than in a file. It's valid once it has been saved
+    public static GraphCache open(final Project project, final Map<String, GraphCache> store,
+                                  final Map<String, Target> targetsByName, final String[] targetNames) {
+        final byte[] key = calculateKey(project, targetsByName, targetNames);
+        final String storeKey = new BigInteger(1, key).toString(16);
+        synchronized (store) {
+            GraphCache graphCache = store.get(storeKey);
+            if (graphCache == null) {
+                // not kept by the project, which the store outlives
+                graphCache = new GraphCache(null, null, key);
+                store.put(storeKey, graphCache);
+            }
+            return graphCache;
+        }
+    }
+
+    private static byte[] calculateKey(final Project project, final Map<String, Target> targetsByName,
+                                       final String[] targetNames) {
+        // sorted, so the key doesn't depend on hash map ordering
+        final TreeSet<String> buildFiles = new TreeSet<String>();
+        final String antFile = project.getProperty(MagicNames.ANT_FILE);
+        if (antFile != null) {
+            buildFiles.add(antFile);
+        }
+        for (final Target target: targetsByName.values()) {
+            final Location location = target.getLocation();
+            if (location != null && location.getFileName() != null) {
+                buildFiles.add(location.getFileName());
+            }
+        }
+
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digest.update(intBytes(VERSION));
+            for (final String targetName: targetNames) {
+                update(digest, targetName);
+            }
+            for (final String buildFile: buildFiles) {
+                update(digest, buildFile);
+                updateWithContents(digest, new File(buildFile));
+            }
+            return digest.digest();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new BuildException(e);
+        } catch (final IOException e) {
+            throw new BuildException("Unable to read build file for graph cache key", e);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(ENCODING);
+        digest.update(intBytes(bytes.length));
+        digest.update(bytes);
+    }
+
+    private static void updateWithContents(final MessageDigest digest, final File buildFile) throws IOException {
+        final InputStream in = new FileInputStream(buildFile);
+        try {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] intBytes(final int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private void read() throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return;
+            }
+
+            final byte[] cachedKey = new byte[buffer.getInt()];
+            buffer.get(cachedKey);
+            if (!Arrays.equals(key, cachedKey)) {
+                return;
+            }
+
+            final int graphs = buffer.getInt();
+            for (int graph = 0; graph < graphs; graph++) {
+                final String rootName = readString(buffer);
+                final int entries = buffer.getInt();
+                final String[] topologicalOrder = new String[entries];
+                final int[] lengths = new int[entries];
+                for (int entry = 0; entry < entries; entry++) {
+                    topologicalOrder[entry] = readString(buffer);
+                    lengths[entry] = buffer.getInt();
+                }
+                topologicalOrders.put(rootName, topologicalOrder);
+                criticalPathLengths.put(rootName, lengths);
+            }
+
+            valid = true;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) throws IOException {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, ENCODING);
+    }
+
+    // True if the build files and requested targets are exactly as they were when the cache was
+    // written, and so have already been validated
+    public boolean isValid() {
+        return valid;
+    }
+
+    // Returns null if the graph for this target isn't cached
+    public String[] getTopologicalOrder(final String rootName) {
+        return topologicalOrders.get(rootName);
+    }
+
+    public int[] getCriticalPathLengths(final String rootName) {
+        return criticalPathLengths.get(rootName);
+    }
+
+    // Returns null if there's no usable cached graph for the target
+    public DependencyGraphEntry restore(final DependencyGraph dependencyGraph, final Target target) {
+        final String[] topologicalOrder = valid ? getTopologicalOrder(target.getName()) : null;
+        if (topologicalOrder == null) {
+            return null;
+        }
+
+        return dependencyGraph.restoreDependencies(target, topologicalOrder, getCriticalPathLengths(target.getName()));
+    }
+
+    public void record(final String rootName, final List<DependencyGraphEntry> topologicalOrder) {
+        final String[] names = new String[topologicalOrder.size()];
+        final int[] lengths = new int[topologicalOrder.size()];
+        for (int i = 0; i < names.length; i++) {
+            final DependencyGraphEntry dependencyGraphEntry = topologicalOrder.get(i);
+            names[i] = dependencyGraphEntry.getTarget().getName();
+            lengths[i] = dependencyGraphEntry.getCriticalPathLength();
+        }
+
+        topologicalOrders.put(rootName, names);
+        criticalPathLengths.put(rootName, lengths);
+        modified = true;
+    }
+
+    // Only called once everything has been validated and built. The new cache is written alongside
+    // and renamed over the old one, which another build may have mapped
+    public void save() {
+        if (!modified) {
+            return;
+        }
+
+        if (file == null) {
+            valid = true;
+            modified = false;
+            return;
+        }
+
+        try {
+            final File temporaryFile =
+                    File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            try {
+                write(temporaryFile);
+                replace(temporaryFile);
+            } finally {
+                temporaryFile.delete();
+            }
+            modified = false;
+        } catch (final IOException e) {
+            project.log("Unable to write graph cache " + file + ": " + e.getMessage(), Project.MSG_WARN);
+        }
+    }
+
+    private void write(final File destination) throws IOException {
+        final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destination)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(key.length);
+            out.write(key);
+
+            out.writeInt(topologicalOrders.size());
+            for (final Map.Entry<String, String[]> entry: topologicalOrders.entrySet()) {
+                final String[] names = entry.getValue();
+                final int[] lengths = criticalPathLengths.get(entry.getKey());
+
+                writeString(out, entry.getKey());
+                out.writeInt(names.length);
+                for (int i = 0; i < names.length; i++) {
+                    writeString(out, names[i]);
+                    out.writeInt(lengths[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void replace(final File replacement) throws IOException {
+        if (!replacement.renameTo(file)) {
+            // Windows won't rename over an existing file
+            file.delete();
+            if (!replacement.renameTo(file)) {
+                throw new IOException("unable to replace it with " + replacement);
+            }
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(ENCODING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
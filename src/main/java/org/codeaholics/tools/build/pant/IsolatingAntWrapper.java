@@ -0,0 +1,63 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Set;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+
+// Runs the targets named in pant:isolated, or every target in a distributed build, in the worker
+// pool, through a stand-in target here so that listeners see the usual events.
+public class IsolatingAntWrapper implements AntWrapper {
+    private final AntWrapper delegate;
+    private final Set<String> isolatedTargets;
+    private final boolean distributed;
+    private final WorkerPool workerPool;
+
+    public IsolatingAntWrapper(final AntWrapper delegate, final Set<String> isolatedTargets,
+                               final boolean distributed, final WorkerPool workerPool) {
+        this.delegate = delegate;
+        this.isolatedTargets = isolatedTargets;
+        this.distributed = distributed;
+        this.workerPool = workerPool;
+    }
+
+    @Override
+    public void executeTarget(final Target target) {
+        final Task[] tasks = target.getTasks();
+        final boolean remote = isolatedTargets.contains(target.getName())
+                || (distributed && tasks != null && tasks.length > 0);
+        if (!remote) {
+            delegate.executeTarget(target);
+            return;
+        }
+
+        new Target(target) {
+            @Override
+            public void execute() {
+                workerPool.execute(this);
+            }
+        }.performTasks();
+    }
+
+    @Override
+    public void topologicalSortProject(final Project project, final String[] roots, final boolean returnAll) {
+        delegate.topologicalSortProject(project, roots, returnAll);
+    }
+}
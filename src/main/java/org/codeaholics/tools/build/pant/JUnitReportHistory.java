@@ -0,0 +1,104 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.tools.ant.Project;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+// How long each test class took last time, read from the XML reports <junit> left behind. Reports
+// which can't be read are skipped.
+public class JUnitReportHistory {
+    private static final FileFilter XML_FILES = new FileFilter() {
+        @Override
+        public boolean accept(final File file) {
+            return file.isFile() && file.getName().endsWith(".xml");
+        }
+    };
+
+    public static Map<String, Long> load(final Project project, final File dir) {
+        final Map<String, Long> durations = new HashMap<String, Long>();
+        final File[] reports = dir == null ? null : dir.listFiles(XML_FILES);
+        if (reports == null) {
+            return durations;
+        }
+
+        final SAXParser parser;
+        try {
+            parser = SAXParserFactory.newInstance().newSAXParser();
+        } catch (final ParserConfigurationException e) {
+            project.log("Unable to read test durations: " + e.getMessage(), Project.MSG_WARN);
+            return durations;
+        } catch (final SAXException e) {
+            project.log("Unable to read test durations: " + e.getMessage(), Project.MSG_WARN);
+            return durations;
+        }
+
+        final DefaultHandler handler = new DefaultHandler() {
+            @Override
+            public void startElement(final String uri, final String localName, final String qName,
+                                     final Attributes attributes) {
+                if (qName.equals("testsuite")) {
+                    record(durations, attributes);
+                }
+            }
+        };
+
+        for (final File report: reports) {
+            try {
+                parser.reset();
+                parser.parse(report, handler);
+            } catch (final SAXException e) {
+                project.log("Skipping test report " + report + ": " + e.getMessage(), Project.MSG_VERBOSE);
+            } catch (final IOException e) {
+                project.log("Skipping test report " + report + ": " + e.getMessage(), Project.MSG_VERBOSE);
+            }
+        }
+
+        return durations;
+    }
+
+    // The merged report gives suites their short name and the package separately
+    private static void record(final Map<String, Long> durations, final Attributes attributes) {
+        String name = attributes.getValue("name");
+        final String packageName = attributes.getValue("package");
+        final String time = attributes.getValue("time");
+        if (name == null || time == null) {
+            return;
+        }
+        if (packageName != null && packageName.length() > 0 && !name.startsWith(packageName + ".")) {
+            name = packageName + "." + name;
+        }
+
+        try {
+            durations.put(name, Math.round(Double.parseDouble(time) * 1000));
+        } catch (final NumberFormatException e) {
+            // treat a mangled entry as missing
+        }
+    }
+}
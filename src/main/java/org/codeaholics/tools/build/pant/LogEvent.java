@@ -0,0 +1,100 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+// A slot in a LogRingBuffer. Slots are reused for the life of the logger, so nothing here may be
+// held on to once the consumer has released it
+public class LogEvent {
+    private long sequence;
+
+    private LogEventType type;
+    private long time;
+    private int priority;
+    private boolean error;
+    private Thread producer;
+    private String targetName;
+    private String taskName;
+    private String message;
+    private Throwable exception;
+
+    public void set(final LogEventType type, final int priority, final boolean error, final String targetName,
+                    final String taskName, final String message, final Throwable exception) {
+        this.type = type;
+        this.time = System.nanoTime();
+        this.priority = priority;
+        this.error = error;
+        this.producer = Thread.currentThread();
+        this.targetName = targetName;
+        this.taskName = taskName;
+        this.message = message;
+        this.exception = exception;
+    }
+
+    public void clear() {
+        type = null;
+        producer = null;
+        targetName = null;
+        taskName = null;
+        message = null;
+        exception = null;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(final long sequence) {
+        this.sequence = sequence;
+    }
+
+    public LogEventType getType() {
+        return type;
+    }
+
+    // System.nanoTime() when the event was set
+    public long getTime() {
+        return time;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public Thread getProducer() {
+        return producer;
+    }
+
+    public String getTargetName() {
+        return targetName;
+    }
+
+    public String getTaskName() {
+        return taskName;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Throwable getException() {
+        return exception;
+    }
+}
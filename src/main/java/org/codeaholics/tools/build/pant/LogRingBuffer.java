@@ -0,0 +1,157 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// A bounded, lock-free, multiple-producer single-consumer queue of pre-allocated LogEvents. The
+// consumer reads slots in sequence order once they're published, and parks when it has caught up.
+public class LogRingBuffer {
+    private static final long MAX_BACK_OFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LogEvent[] events;
+    private final int mask;
+
+    // the sequence number most recently published into each slot
+    private final AtomicLongArray published;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // only written by the consumer
+    private volatile long consumed;
+
+    private volatile Thread parkedConsumer;
+    private volatile boolean closed;
+
+    public LogRingBuffer(final int minimumCapacity) {
+        int capacity = 1;
+        while (capacity < minimumCapacity) {
+            capacity <<= 1;
+        }
+
+        events = new LogEvent[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            events[i] = new LogEvent();
+            published.set(i, -1);
+        }
+        mask = capacity - 1;
+    }
+
+    // Returns a slot for the caller to fill in and publish. When the buffer is full, droppable events
+    // are counted and discarded (null is returned); anything else waits for the consumer to catch up.
+    public LogEvent claim(final boolean droppable) {
+        int attempts = 0;
+        while (true) {
+            final long sequence = claimed.get();
+            if (sequence - consumed >= events.length) {
+                if (droppable) {
+                    dropped.incrementAndGet();
+                    return null;
+                }
+                backOff(attempts++);
+            } else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                final LogEvent event = events[index(sequence)];
+                event.setSequence(sequence);
+                return event;
+            }
+        }
+    }
+
+    public void publish(final LogEvent event) {
+        published.set(index(event.getSequence()), event.getSequence());
+        wakeConsumer();
+    }
+
+    // Consumer only. Parks until something is published, the buffer is closed or the timeout (in
+    // nanoseconds; 0 for none) runs out. The consumer announces itself before its last look at the
+    // buffer, and producers look for it after publishing, so one of them always sees the other
+    public void park(final long timeoutNanos) {
+        parkedConsumer = Thread.currentThread();
+        try {
+            if (poll() == null && !closed) {
+                if (timeoutNanos > 0) {
+                    LockSupport.parkNanos(this, timeoutNanos);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            parkedConsumer = null;
+        }
+    }
+
+    // The consumer no longer parks once the buffer is closed
+    public void close() {
+        closed = true;
+        wakeConsumer();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Consumer only. Returns the next event, or null if it hasn't been published yet
+    public LogEvent poll() {
+        final long sequence = consumed;
+        final int index = index(sequence);
+        return published.get(index) == sequence ? events[index] : null;
+    }
+
+    // Consumer only. Hands the slot back to the producers
+    public void release(final LogEvent event) {
+        event.clear();
+        consumed = event.getSequence() + 1;
+    }
+
+    // The number of slots claimed so far, published or not
+    public long getClaimed() {
+        return claimed.get();
+    }
+
+    // true once everything claimed so far has been consumed
+    public boolean isDrained() {
+        return consumed == claimed.get();
+    }
+
+    public long getAndResetDropped() {
+        return dropped.getAndSet(0);
+    }
+
+    public static void backOff(final int attempts) {
+        if (attempts < 16) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_BACK_OFF_NANOS, 1000L << Math.min(attempts - 16, 10)));
+        }
+    }
+
+    private void wakeConsumer() {
+        final Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private int index(final long sequence) {
+        return (int)sequence & mask;
+    }
+}
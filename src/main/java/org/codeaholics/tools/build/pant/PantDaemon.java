@@ -0,0 +1,176 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.launch.AntMain;
+
+// A long-lived JVM which runs builds for etc/pant one at a time, started through the launcher:
+//     ant -lib parallel-ant.jar -main org.codeaholics.tools.build.pant.PantDaemon [<port file>]
+public class PantDaemon implements AntMain {
+    public static final String EXIT_MARKER = "@@pant-exit@@ ";
+    public static final String BUILD_COMMAND = "build";
+    public static final String STOP_COMMAND = "stop";
+
+    private static final String DEFAULT_PORT_FILE = ".pant" + File.separator + "daemon";
+    private static final String ENCODING = "UTF-8";
+
+    private ServerSocket serverSocket;
+    private String token;
+    private volatile boolean stopped;
+    // outlive each build, so an unchanged build file's graphs needn't be checked and sorted again
+    private final Map<String, GraphCache> graphCaches = GraphCache.createStore();
+
+    public PantDaemon() {
+        // for the ant launcher
+    }
+
+    public PantDaemon(final ServerSocket serverSocket, final String token) {
+        this.serverSocket = serverSocket;
+        this.token = token;
+    }
+
+    @Override
+    public void startAnt(final String[] args, final Properties additionalUserProperties, final ClassLoader coreLoader) {
+        final File portFile = args.length > 0
+                ? new File(args[0])
+                : new File(System.getProperty("user.home"), DEFAULT_PORT_FILE);
+
+        try {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            token = new BigInteger(128, new SecureRandom()).toString(16);
+            writePortFile(portFile);
+            try {
+                serve();
+            } finally {
+                portFile.delete();
+            }
+        } catch (final IOException e) {
+            throw new BuildException("pant daemon failed", e);
+        }
+    }
+
+    private void writePortFile(final File portFile) throws IOException {
+        final File directory = portFile.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        // restrict before writing; the token is all that stops other local users running builds as us
+        portFile.delete();
+        portFile.createNewFile();
+        portFile.setReadable(false, false);
+        portFile.setReadable(true, true);
+        portFile.setWritable(false, false);
+        portFile.setWritable(true, true);
+
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(portFile), ENCODING);
+        try {
+            writer.write(serverSocket.getLocalPort() + " " + token + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void serve() throws IOException {
+        while (!stopped) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (final IOException e) {
+                if (stopped) {
+                    return;
+                }
+                throw e;
+            }
+
+            try {
+                handle(socket);
+            } catch (final IOException e) {
+                // the client went away; carry on serving others
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (final IOException e) {
+            // ignore
+        }
+    }
+
+    private void handle(final Socket socket) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), ENCODING));
+        final PrintStream out = new PrintStream(socket.getOutputStream(), true, ENCODING);
+
+        if (!token.equals(reader.readLine())) {
+            return;
+        }
+
+        final String command = reader.readLine();
+        final String workingDirectory = reader.readLine();
+        final List<String> args = new LinkedList<String>();
+        String arg;
+        while ((arg = reader.readLine()) != null && arg.length() > 0) {
+            args.add(arg);
+        }
+
+        if (STOP_COMMAND.equals(command)) {
+            out.println(EXIT_MARKER + 0);
+            stop();
+            return;
+        }
+
+        if (!BUILD_COMMAND.equals(command) || workingDirectory == null) {
+            out.println("Unknown pant daemon command: " + command);
+            out.println(EXIT_MARKER + 1);
+            return;
+        }
+
+        boolean succeeded;
+        try {
+            succeeded = new DaemonBuild(new File(workingDirectory), args, graphCaches).run(out);
+        } catch (final BuildException e) {
+            out.println(e.getMessage());
+            succeeded = false;
+        }
+
+        out.println(EXIT_MARKER + (succeeded ? 0 : 1));
+    }
+}
@@ -0,0 +1,306 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.Target;
+
+// A JVM which keeps one parsed Project for a WorkerPool and runs its targets on request, over stdin
+// and stdout, or as a build agent with --connect <host>:<port> [<token>].
+public class PantWorker implements BuildListener {
+    public static final int INIT = 'I';
+    public static final int RUN = 'R';
+    public static final int QUIT = 'Q';
+    public static final int LOG = 'L';
+    public static final int PROPERTY = 'P';
+    public static final int DONE = 'D';
+    public static final int FAILED = 'F';
+
+    public static final String CONNECT_OPTION = "--connect";
+
+    private static final String ENCODING = "UTF-8";
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private Project project;
+
+    public PantWorker(final DataInputStream in, final DataOutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length > 1 && args[0].equals(CONNECT_OPTION)) {
+            serveAgent(args[1], args.length > 2 ? args[2] : "");
+            return;
+        }
+
+        final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+
+        // stdin and stdout belong to the protocol now
+        System.setOut(System.err);
+        System.setIn(new ByteArrayInputStream(new byte[0]));
+
+        new PantWorker(in, out).serve();
+        System.exit(0);
+    }
+
+    private static void serveAgent(final String address, final String token) throws InterruptedException {
+        final int colon = address.lastIndexOf(':');
+        final String host = colon < 0 ? "127.0.0.1" : address.substring(0, colon);
+        final int port = Integer.parseInt(address.substring(colon + 1));
+
+        while (true) {
+            try {
+                final Socket socket = new Socket(host, port);
+                try {
+                    final DataOutputStream out =
+                            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    writeString(out, token);
+                    out.flush();
+                    new PantWorker(new DataInputStream(new BufferedInputStream(socket.getInputStream())), out)
+                            .serve();
+                } finally {
+                    socket.close();
+                }
+            } catch (final IOException e) {
+                // no coordinator yet, or it went away; try again shortly
+            }
+            Thread.sleep(RECONNECT_MILLIS);
+        }
+    }
+
+    public void serve() throws IOException {
+        while (true) {
+            final int command;
+            try {
+                command = in.readUnsignedByte();
+            } catch (final EOFException e) {
+                // the coordinator has gone
+                return;
+            }
+
+            switch (command) {
+            case INIT:
+                final File buildFile = new File(readString(in));
+                final Map<String, String> userProperties = readProperties(in);
+                respond(new Runnable() {
+                    @Override
+                    public void run() {
+                        init(buildFile, userProperties);
+                    }
+                });
+                break;
+            case RUN:
+                final Map<String, String> properties = readProperties(in);
+                final String targetName = readString(in);
+                respond(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTarget(properties, targetName);
+                    }
+                });
+                break;
+            case QUIT:
+                return;
+            default:
+                throw new IOException("Unknown command: " + command);
+            }
+        }
+    }
+
+    private void init(final File buildFile, final Map<String, String> userProperties) {
+        project = new Project();
+        project.addBuildListener(this);
+        project.init();
+        for (final Entry<String, String> entry: userProperties.entrySet()) {
+            project.setUserProperty(entry.getKey(), entry.getValue());
+        }
+        ProjectHelper.configureProject(project, buildFile);
+    }
+
+    private void runTarget(final Map<String, String> properties, final String targetName) {
+        if (project == null) {
+            throw new BuildException("Worker was never initialised");
+        }
+
+        for (final Entry<String, String> entry: properties.entrySet()) {
+            project.setProperty(entry.getKey(), entry.getValue());
+        }
+
+        final Target target = (Target) project.getTargets().get(targetName);
+        if (target == null) {
+            throw new BuildException("Target \"" + targetName + "\" does not exist in the worker's project");
+        }
+
+        final Map<String, String> before = getStringProperties(project);
+        try {
+            target.execute();
+        } finally {
+            reportNewProperties(before);
+        }
+    }
+
+    private void reportNewProperties(final Map<String, String> before) {
+        for (final Entry<String, String> entry: getStringProperties(project).entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) {
+                synchronized (out) {
+                    try {
+                        out.writeByte(PROPERTY);
+                        writeString(out, entry.getKey());
+                        writeString(out, entry.getValue());
+                    } catch (final IOException e) {
+                        throw new BuildException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void respond(final Runnable action) throws IOException {
+        String failure = null;
+        try {
+            action.run();
+        } catch (final BuildException e) {
+            failure = e.toString();
+        } catch (final RuntimeException e) {
+            failure = e.toString();
+        }
+
+        synchronized (out) {
+            if (failure == null) {
+                out.writeByte(DONE);
+            } else {
+                out.writeByte(FAILED);
+                writeString(out, failure);
+            }
+            out.flush();
+        }
+    }
+
+    @Override
+    public void messageLogged(final BuildEvent event) {
+        synchronized (out) {
+            try {
+                out.writeByte(LOG);
+                out.writeInt(event.getPriority());
+                writeString(out, event.getTask() == null ? "" : event.getTask().getTaskName());
+                writeString(out, event.getMessage());
+                // let the coordinator show progress as it happens
+                out.flush();
+            } catch (final IOException e) {
+                // the coordinator has gone; there's no one left to tell
+            }
+        }
+    }
+
+    @Override
+    public void buildStarted(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void buildFinished(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void targetStarted(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void targetFinished(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void taskStarted(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void taskFinished(final BuildEvent event) {
+        // not interested
+    }
+
+    public static Map<String, String> getStringProperties(final Project project) {
+        @SuppressWarnings("unchecked")
+        final Hashtable<String, Object> properties = project.getProperties();
+        final Map<String, String> stringProperties = new HashMap<String, String>();
+        for (final Entry<String, Object> entry: properties.entrySet()) {
+            if (entry.getValue() instanceof String) {
+                stringProperties.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        return stringProperties;
+    }
+
+    public static void writeProperties(final DataOutputStream out, final Map<String, String> properties)
+            throws IOException {
+        out.writeInt(properties.size());
+        for (final Entry<String, String> entry: properties.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    public static Map<String, String> readProperties(final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final Map<String, String> properties = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            properties.put(readString(in), readString(in));
+        }
+        return properties;
+    }
+
+    // writeUTF can't manage strings over 64KB, which long compiler messages easily exceed
+    public static void writeString(final DataOutputStream out, final String string) throws IOException {
+        final byte[] bytes = (string == null ? "" : string).getBytes(ENCODING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, ENCODING);
+    }
+}
@@ -16,11 +16,19 @@ package org.codeaholics.tools.build.pant;
  *   limitations under the License.
  */
 
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -32,54 +40,117 @@ import org.apache.tools.ant.Task;
 import org.apache.tools.ant.helper.SingleCheckExecutor;
 
 public class ParallelExecutor implements Executor {
+    // The worker pool, while a build is running, for tasks which want to share it
+    public static final String EXECUTOR_SERVICE_REFERENCE = "pant.executor.service";
+
     private static final SingleCheckExecutor SUB_EXECUTOR = new SingleCheckExecutor();
     private static final String PRIVATE_TARGET_PREFIX = "pant:";
-    private static final String PRE_PHASE_TARGET = PRIVATE_TARGET_PREFIX + "pre-phase";
+    private static final String ISOLATED_TARGET_NAME = PRIVATE_TARGET_PREFIX + "isolated";
     private static final int DEFAULT_THREAD_COUNT = 2;
 
-    private final List<String> prePhaseTargets = new LinkedList<String>();
+    private PhaseBarriers phaseBarriers;
+    private ExclusionGroups exclusionGroups;
+
+    // Targets to run out of process, in the worker pool
+    private final Set<String> isolatedTargets = new HashSet<String>();
+
+    // Targets whose predecessors have all completed but which haven't yet been submitted. These are
+    // kept across completions (rather than rediscovered from the graph each time) so that the
+    // steady-state scheduling path doesn't allocate
+    private final Queue<DependencyGraphEntry> schedulableTargets = new ArrayDeque<DependencyGraphEntry>();
 
     private DependencyGraph dependencyGraph;
     private DependencyGraphEntry rootDependencyGraphEntry;
     private ExecutorServiceFactory executorServiceFactory = new ExecutorServiceFactoryImpl();
     private AntWrapper antWrapper = new AntWrapperImpl();
     private ExecutorService executorService;
-
-    private int queued;
-    @SuppressWarnings("unused")
-    private int started;
-    private int finished;
-
-    private boolean isPrePhase;
+    private EventStreamListener eventStreamListener;
+    private GraphCache graphCache;
+    private TargetExecutionNotifier targetExecutionNotifier;
+    private TargetDurations targetDurations;
+    private ContentionMonitor contentionMonitor;
+    private WorkerPool workerPool;
+    private AgentListener agentListener;
+    private TargetPreparer targetPreparer;
+    private ScanCache scanCache;
+    private ChangedFiles changedFiles;
+
+    // Targets which declare their inputs but aren't affected by any of the changed files, or by any
+    // of their predecessors being run
+    private final Set<String> skippedTargets = new HashSet<String>();
+    private long progressIntervalMillis;
+    private boolean releaseCompletedTargets;
 
     @Override
     public void executeTargets(final Project project, final String[] targetNames) throws BuildException {
         @SuppressWarnings("unchecked")
         final Map<String, Target> targetsByName = project.getTargets();
 
-        // check for cycles and unknown targets
-        antWrapper.topologicalSortProject(project, targetNames, true);
+        graphCache = GraphCache.forBuild(project, targetsByName, targetNames);
+        final boolean validated = graphCache != null && graphCache.isValid();
+
+        if (!validated) {
+            // check for cycles and unknown targets
+            antWrapper.topologicalSortProject(project, targetNames, true);
+        }
 
         configure(targetsByName);
 
-        verifyPrePhaseTargets(targetsByName);
+        if (!validated) {
+            phaseBarriers.verify(targetsByName);
+        }
 
-        BuildException thrownException = null;
+        ConcurrentPropertyHelper.installUnlessDisabled(project);
+        releaseCompletedTargets = DependencyGraphEntry.isReleaseEnabled(project);
+        eventStreamListener = EventStreamListener.forBuild(project, eventStreamListener);
+        progressIntervalMillis = ProgressReporter.readIntervalMillis(project);
+        targetDurations = TargetDurations.forBuild(project);
 
-        for (final String targetName: targetNames) {
-            try {
-                if (targetName.startsWith(PRIVATE_TARGET_PREFIX)) {
-                    throw new CannotExecutePrivateTargetException(targetName);
-                }
+        contentionMonitor = ContentionMonitor.startFor(project);
+        startWorkerPool(project);
+        targetPreparer = TargetPreparer.startUnlessDisabled(project);
+        scanCache = ScanCache.forBuild(project);
+        skippedTargets.clear();
+        changedFiles = ChangedFiles.forBuild(project);
 
-                executeTarget(targetsByName.get(targetName), targetsByName, project);
-            } catch (final BuildException ex) {
-                if (project.isKeepGoingMode()) {
-                    thrownException = ex;
-                } else {
-                    throw ex;
+        BuildException thrownException = null;
+
+        try {
+            for (final String targetName: targetNames) {
+                try {
+                    if (targetName.startsWith(PRIVATE_TARGET_PREFIX)) {
+                        throw new CannotExecutePrivateTargetException(targetName);
+                    }
+
+                    executeTarget(targetsByName.get(targetName), targetsByName, project);
+                } catch (final BuildException ex) {
+                    if (project.isKeepGoingMode()) {
+                        thrownException = ex;
+                    } else {
+                        throw ex;
+                    }
                 }
             }
+        } finally {
+            // the report matters most when the build has gone wrong
+            if (contentionMonitor != null) {
+                contentionMonitor.stopFor(project);
+                contentionMonitor = null;
+            }
+            stopWorkerPool();
+            stopTargetPreparer();
+        }
+
+        if (eventStreamListener != null) {
+            eventStreamListener.flush();
+        }
+
+        if (targetDurations != null) {
+            targetDurations.save();
+        }
+
+        if (graphCache != null) {
+            graphCache.save();
         }
 
         if (thrownException != null) {
@@ -96,59 +167,168 @@ public class ParallelExecutor implements Executor {
     }
 
     private void executeTarget(final Target target, final Map<String, Target> targetsByName, final Project project) {
+        targetExecutionNotifier = getTargetExecutionNotifier();
+        final AntWrapper isolatingAntWrapper = workerPool == null
+                ? antWrapper
+                : new IsolatingAntWrapper(antWrapper, isolatedTargets, agentListener != null, workerPool);
         final DependencyGraphEntryFactory dependencyGraphEntryFactory =
-                new DependencyGraphEntryFactoryImpl(getTargetExecutionNotifier(), antWrapper);
-        dependencyGraph = new DependencyGraph(targetsByName, prePhaseTargets, dependencyGraphEntryFactory);
-        rootDependencyGraphEntry = dependencyGraph.buildDependencies(target);
-        isPrePhase = true;
+                new DependencyGraphEntryFactoryImpl(targetExecutionNotifier,
+                                                    changedFiles == null
+                                                            ? isolatingAntWrapper
+                                                            : new SkippingAntWrapper(isolatingAntWrapper,
+                                                                                     skippedTargets));
+        dependencyGraph = new DependencyGraph(targetsByName, phaseBarriers.getTargetPhases(),
+                                              dependencyGraphEntryFactory);
+        rootDependencyGraphEntry = graphCache == null ? null : graphCache.restore(dependencyGraph, target);
+        if (rootDependencyGraphEntry == null) {
+            rootDependencyGraphEntry = dependencyGraph.buildDependencies(target);
+            dependencyGraph.calculateCriticalPathLengths();
+            if (graphCache != null) {
+                graphCache.record(target.getName(), dependencyGraph.getTopologicalOrder());
+            }
+        }
+
+        if (changedFiles != null) {
+            changedFiles.selectUnaffectedTargets(project, dependencyGraph.getDependencyGraphEntries(), skippedTargets);
+        }
+
+        RedundantDependency.removeFrom(project, dependencyGraph);
+        dependencyGraph.fuseChains();
+        phaseBarriers.prepare(dependencyGraph.getDependencyGraphEntries());
+        exclusionGroups.prepare(dependencyGraph.getDependencyGraphEntries());
+
+        schedulableTargets.clear();
+        final List<DependencyGraphEntry> initialTargets = dependencyGraph.discoverAllSchedulableTargets();
+        Collections.sort(initialTargets, DependencyGraph.LONGEST_CRITICAL_PATH_FIRST);
+        for (final DependencyGraphEntry dependencyGraphEntry: initialTargets) {
+            makeSchedulable(dependencyGraphEntry);
+        }
 
         final int numberOfThreads = getNumberOfThreads(project);
         executorService = executorServiceFactory.create(numberOfThreads);
+        project.addReference(EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        final ProgressReporter progressReporter = progressIntervalMillis > 0
+                ? new ProgressReporter(project, dependencyGraph, targetExecutionNotifier, targetDurations,
+                                       numberOfThreads, progressIntervalMillis)
+                : null;
+        if (progressReporter != null) {
+            progressReporter.start();
+        }
 
-        scheduleMore();
+        // the first targets may complete, and schedule more, before we've finished submitting
+        synchronized (targetExecutionNotifier) {
+            scheduleMore();
+        }
 
         try {
             executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
         } catch (final InterruptedException e) {
             // ignore
         }
+
+        if (progressReporter != null) {
+            progressReporter.stop();
+        }
+
+        if (targetDurations != null) {
+            targetDurations.recordCompleted(dependencyGraph.getDependencyGraphEntries(), skippedTargets);
+        }
+    }
+
+    private void stopTargetPreparer() {
+        if (targetPreparer != null) {
+            targetPreparer.stop();
+            targetPreparer = null;
+        }
+    }
+
+    private void startWorkerPool(final Project project) {
+        workerPool = WorkerPool.forBuild(project, isolatedTargets, readNumberOfThreads(project),
+                                         AgentListener.isDistributed(project));
+        agentListener = AgentListener.startFor(project, workerPool);
+    }
+
+    private void stopWorkerPool() {
+        if (agentListener != null) {
+            agentListener.stop();
+            agentListener = null;
+        }
+        if (workerPool != null) {
+            workerPool.shutdown();
+            workerPool = null;
+        }
     }
 
     private int getNumberOfThreads(final Project project) {
-        final String threads = project.getProperty("pant.threads");
-        final int numberOfThreads = threads == null ? DEFAULT_THREAD_COUNT : Integer.parseInt(threads);
+        final int numberOfThreads = readNumberOfThreads(project);
         project.log("Building with " + numberOfThreads + " thread(s)", Project.MSG_INFO);
         return numberOfThreads;
     }
 
-    private void scheduleMore() {
-        final List<DependencyGraphEntry> schedulableTargets = dependencyGraph.discoverAllSchedulableTargets();
+    private static int readNumberOfThreads(final Project project) {
+        final String threads = project.getProperty("pant.threads");
+        return threads == null ? DEFAULT_THREAD_COUNT : Integer.parseInt(threads);
+    }
 
-        if (isPrePhase) {
-            final List<DependencyGraphEntry> schedulablePrePhaseTargets = new LinkedList<DependencyGraphEntry>();
-            for (final DependencyGraphEntry dependencyGraphEntry: schedulableTargets) {
-                if (dependencyGraphEntry.isPrePhase()) {
-                    schedulablePrePhaseTargets.add(dependencyGraphEntry);
-                }
+    private void scheduleMore() {
+        // Entries are removed before being submitted because the executor may run them (and hence
+        // re-enter this method) before submit returns
+        DependencyGraphEntry dependencyGraphEntry;
+        while ((dependencyGraphEntry = schedulableTargets.poll()) != null) {
+            dependencyGraphEntry.setState(TargetState.QUEUED);
+            if (eventStreamListener != null) {
+                eventStreamListener.targetQueued(dependencyGraphEntry.getTarget().getName());
             }
+            executorService.submit(dependencyGraphEntry);
+        }
+    }
+
+    private void makeSchedulable(final DependencyGraphEntry dependencyGraphEntry) {
+        if (!phaseBarriers.hold(dependencyGraphEntry)) {
+            exclusionGroups.acquireOrWait(dependencyGraphEntry, schedulableTargets);
+        }
+    }
 
-            if (schedulablePrePhaseTargets.size() == 0 && queued == finished) {
-                // All queued tasks have finished and no new pre-tasks found
-                isPrePhase = false;
-            } else {
-                // More pre-phase work to do. Replace schedulable targets with filtered list
-                schedulableTargets.clear();
-                schedulableTargets.addAll(schedulablePrePhaseTargets);
+    private void phaseTargetComplete(final int phase) {
+        if (phaseBarriers.phaseTargetComplete(phase)) {
+            // barrier lifted; anything held by it either becomes schedulable or moves on to the next
+            // unfinished phase that blocks it
+            DependencyGraphEntry dependencyGraphEntry;
+            while ((dependencyGraphEntry = phaseBarriers.pollHeld(phase)) != null) {
+                makeSchedulable(dependencyGraphEntry);
             }
         }
+    }
 
-        for (final DependencyGraphEntry dependencyGraphEntry: schedulableTargets) {
-            dependencyGraphEntry.setState(TargetState.QUEUED);
+    // Returns the fused successor instead of scheduling it, if it can run straight away
+    private DependencyGraphEntry releaseSuccessors(final DependencyGraphEntry dependencyGraphEntry) {
+        DependencyGraphEntry continuation = null;
+        final List<DependencyGraphEntry> successors = dependencyGraphEntry.getSuccessorEntries();
+        for (int i = 0; i < successors.size(); i++) {
+            final DependencyGraphEntry successor = successors.get(i);
+            if (successor.predecessorComplete() && successor.isTargetWaiting()) {
+                if (successor == dependencyGraphEntry.getFusedSuccessor() && canRunImmediately(successor)) {
+                    continuation = successor;
+                } else {
+                    makeSchedulable(successor);
+                }
+            }
         }
+        return continuation;
+    }
 
-        for (final DependencyGraphEntry dependencyGraphEntry: schedulableTargets) {
-            queued++;
-            executorService.submit(dependencyGraphEntry);
+    // Anything held by a phase barrier or in an exclusion group goes through the usual route
+    private boolean canRunImmediately(final DependencyGraphEntry dependencyGraphEntry) {
+        return dependencyGraphEntry.getExclusionGroups().length == 0 && !phaseBarriers.isBlocked(dependencyGraphEntry);
+    }
+
+    // Whether the entry was submitted or is being run straight after its fused predecessor
+    private void markStarted(final DependencyGraphEntry dependencyGraphEntry) {
+        dependencyGraphEntry.setState(TargetState.RUNNING);
+        scanCache.invalidateOutputsOf(dependencyGraphEntry.getTarget().getName());
+        if (targetPreparer != null) {
+            targetPreparer.prepareSuccessors(dependencyGraphEntry);
         }
     }
 
@@ -156,30 +336,50 @@ public class ParallelExecutor implements Executor {
         return new TargetExecutionNotifier() {
             @Override
             public synchronized void notifyStarting(final DependencyGraphEntry dependencyGraphEntry) {
-                dependencyGraphEntry.setState(TargetState.RUNNING);
-                started++;
+                markStarted(dependencyGraphEntry);
             }
 
             @Override
-            public synchronized void notifyComplete(final DependencyGraphEntry dependencyGraphEntry) {
+            public synchronized DependencyGraphEntry notifyComplete(final DependencyGraphEntry dependencyGraphEntry) {
                 dependencyGraphEntry.setState(TargetState.COMPLETE);
-                finished++;
+                scanCache.invalidateOutputsOf(dependencyGraphEntry.getTarget().getName());
 
+                if (dependencyGraphEntry.isPhased()) {
+                    phaseTargetComplete(dependencyGraphEntry.getPhase());
+                }
+                final DependencyGraphEntry continuation = releaseSuccessors(dependencyGraphEntry);
+                if (releaseCompletedTargets) {
+                    dependencyGraphEntry.releaseUnusedTasks();
+                }
+                // released last, so that newly ready group members are considered too
+                exclusionGroups.release(dependencyGraphEntry, schedulableTargets);
                 scheduleMore();
 
                 if (dependencyGraphEntry == rootDependencyGraphEntry) {
                     executorService.shutdown();
                 }
+
+                // queued and started in one go, without a trip through the executor
+                if (continuation != null) {
+                    continuation.setState(TargetState.QUEUED);
+                    if (eventStreamListener != null) {
+                        eventStreamListener.targetQueued(continuation.getTarget().getName());
+                    }
+                    markStarted(continuation);
+                }
+                return continuation;
             }
         };
     }
 
     private void configure(final Map<String, Target> targetsByName) {
-        final Target prePhaseConfig = targetsByName.get(PRE_PHASE_TARGET);
+        phaseBarriers = new PhaseBarriers();
+        exclusionGroups = new ExclusionGroups();
+        isolatedTargets.clear();
 
-        if (prePhaseConfig != null) {
-            configurePrePhase(prePhaseConfig);
-        }
+        final SortedMap<Integer, Target> phaseConfigs = new TreeMap<Integer, Target>();
+        final Map<String, Target> phaseBlocksConfigs = new HashMap<String, Target>();
+        final List<Target> exclusionGroupConfigs = new LinkedList<Target>();
 
         for (final Entry<String, Target> entry: targetsByName.entrySet()) {
             final String targetName = entry.getKey();
@@ -187,7 +387,17 @@ public class ParallelExecutor implements Executor {
 
             // check for unknown private targets
             if (targetName.startsWith(PRIVATE_TARGET_PREFIX)) {
-                if (!targetName.equals(PRE_PHASE_TARGET)) {
+                final Integer phaseOrder = PhaseBarriers.getPhaseOrder(targetName);
+                final String blockedPhaseName = PhaseBarriers.getBlockedPhaseName(targetName);
+                if (phaseOrder != null) {
+                    phaseConfigs.put(phaseOrder, target);
+                } else if (blockedPhaseName != null) {
+                    phaseBlocksConfigs.put(blockedPhaseName, target);
+                } else if (ExclusionGroups.isExclusionGroupName(targetName)) {
+                    exclusionGroupConfigs.add(target);
+                } else if (targetName.equals(ISOLATED_TARGET_NAME)) {
+                    isolatedTargets.addAll(getDependencyNames(target));
+                } else {
                     throw new UnknownPrivateTargetException(target);
                 }
 
@@ -207,28 +417,37 @@ public class ParallelExecutor implements Executor {
                 }
             }
         }
-    }
 
-    private void configurePrePhase(final Target prePhaseConfig) {
-        @SuppressWarnings("unchecked")
-        final Enumeration<String> dependencies = prePhaseConfig.getDependencies();
-        while (dependencies.hasMoreElements()) {
-            prePhaseTargets.add(dependencies.nextElement());
+        for (final Entry<String, Target> entry: phaseBlocksConfigs.entrySet()) {
+            if (!targetsByName.containsKey(entry.getKey())) {
+                // the phase this would configure doesn't exist
+                throw new UnknownPrivateTargetException(entry.getValue());
+            }
+        }
+
+        for (final Target phaseConfig: phaseConfigs.values()) {
+            final Target phaseBlocksConfig = phaseBlocksConfigs.get(phaseConfig.getName());
+            phaseBarriers.addPhase(phaseConfig.getName(), getDependencyNames(phaseConfig),
+                                   phaseBlocksConfig == null
+                                           ? null
+                                           : new HashSet<String>(getDependencyNames(phaseBlocksConfig)));
+        }
+
+        for (final Target exclusionGroupConfig: exclusionGroupConfigs) {
+            exclusionGroups.addGroup(exclusionGroupConfig.getName(), getDependencyNames(exclusionGroupConfig));
         }
     }
 
-    private void verifyPrePhaseTargets(final Map<String, Target> targetsByName) {
-        for (final String prePhaseTargetName: prePhaseTargets) {
-            final Target prePhaseTarget = targetsByName.get(prePhaseTargetName);
+    private static List<String> getDependencyNames(final Target target) {
+        final List<String> dependencyNames = new LinkedList<String>();
 
-            @SuppressWarnings("unchecked")
-            final Enumeration<String> dependencies = prePhaseTarget.getDependencies();
-            while (dependencies.hasMoreElements()) {
-                if (!prePhaseTargets.contains(dependencies.nextElement())) {
-                    throw new PrePhaseTargetCanOnlyDependOnPrePhaseTargetsException(prePhaseTargetName);
-                }
-            }
+        @SuppressWarnings("unchecked")
+        final Enumeration<String> dependencies = target.getDependencies();
+        while (dependencies.hasMoreElements()) {
+            dependencyNames.add(dependencies.nextElement());
         }
+
+        return dependencyNames;
     }
 
     @Override
@@ -16,39 +16,58 @@ package org.codeaholics.tools.build.pant;
  *   limitations under the License.
  */
 
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.io.PrintStream;
-import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.Project;
-import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.ant.Task;
 import org.apache.tools.ant.util.StringUtils;
 
+// Build threads only fill in a slot of a LogRingBuffer; one consumer thread formats and writes.
+// When the ring is full, verbose and debug messages are dropped and anything else waits.
 public class ParallelExecutorLogger extends DefaultLogger {
 //    private static final int LEFT_COLUMN_SIZE = 26;
 
     private static final String STARTED_SYMBOL = "+ ";
     private static final String FINISHED_SYMBOL = "- ";
 
+    private static final int RING_BUFFER_CAPACITY = 8192;
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+    private static final String PADDING = "                                                                ";
+
+    private final LogRingBuffer ringBuffer = new LogRingBuffer(RING_BUFFER_CAPACITY);
+    private final Consumer consumer = new Consumer();
+    private final boolean logHookOverridden = isLogHookOverridden();
+
+    // used instead of the ring buffer once the consumer has shut down
+    private final LogEvent directEvent = new LogEvent();
+
+    // Producers which have seen the ring open but may not have published into it yet. The consumer
+    // doesn't stop until there are none, so nothing is published into a ring which nobody drains
+    private final AtomicInteger publishing = new AtomicInteger();
+
+    // Started on first use rather than in the constructor, where it could call back into a subclass
+    // whose fields aren't set yet
+    private volatile boolean consumerStarted;
+
     @Override
     public void targetStarted(final BuildEvent event) {
-        if (Project.MSG_INFO <= msgOutputLevel && !event.getTarget().getName().equals("")) {
-            final String msg = STARTED_SYMBOL + event.getTarget().getName();
-            printMessage(msg, out, event.getPriority());
-            log(msg);
-        }
+        // always recorded, even when not printed, so subclasses know which targets are running
+        publish(LogEventType.TARGET_STARTED, event.getPriority(), false, event.getTarget().getName(), null, null, null);
     }
 
     @Override
     public void targetFinished(final BuildEvent event) {
-        if (Project.MSG_INFO <= msgOutputLevel && !event.getTarget().getName().equals("")) {
-            final String msg = FINISHED_SYMBOL + event.getTarget().getName();
-            printMessage(msg, out, event.getPriority());
-            log(msg);
-        }
+        publish(LogEventType.TARGET_FINISHED, event.getPriority(), false, event.getTarget().getName(), null, null, null);
     }
 
     @Override
@@ -56,72 +75,308 @@ public class ParallelExecutorLogger extends DefaultLogger {
         final int priority = event.getPriority();
         // Filter out messages based on priority
         if (priority <= msgOutputLevel) {
+            String targetName = event.getTarget() == null ? null : event.getTarget().getName();
+            String taskName = null;
+            final Task task = event.getTask();
+            if (task != null && task.getOwningTarget() != null) {
+                targetName = task.getOwningTarget().getName();
+            }
+            if (task != null && !emacsMode) {
+                // label the message with the (target, task) if we're in one
+                taskName = task.getTaskName();
+            }
+
+            final Throwable exception = Project.MSG_DEBUG <= msgOutputLevel ? event.getException() : null;
+
+            publish(LogEventType.MESSAGE, priority, priority == Project.MSG_ERR, targetName, taskName,
+                    event.getMessage(), exception);
+        }
+    }
 
-            final StringBuffer message = new StringBuffer();
-            if (event.getTask() != null && !emacsMode) {
-                // Print out the name of the (target, task) if we're in one
-                final String targetName = event.getTask().getOwningTarget().getName();
-                final String taskName = event.getTask().getTaskName();
-                String label = "[" + targetName + " / " + taskName + "] ";
-                final int size = LEFT_COLUMN_SIZE - label.length();
-                final StringBuffer tmp = new StringBuffer();
-                for (int i = 0; i < size + 1; i++) {
-                    tmp.append(" ");
+    @Override
+    public void buildFinished(final BuildEvent event) {
+        super.buildFinished(event);
+        close();
+    }
+
+    @Override
+    protected void printMessage(final String message, final PrintStream stream, final int priority) {
+        publish(LogEventType.TEXT, priority, stream == err, null, null, message, null);
+    }
+
+    // Consumer thread only. Called with each formatted event (null if there's nothing to print for it)
+    // and the target it belongs to, if any, in the order the events were published. Subclasses can
+    // override this to regroup output
+    protected void consume(final String targetName, final LogEventType type, final boolean error,
+                           final CharSequence text) {
+        if (text != null) {
+            write(error, text);
+            write(error, StringUtils.LINE_SEP);
+        }
+    }
+
+    // Consumer thread only. Called whenever the consumer has caught up, and again once the time it
+    // returns (in nanoseconds) has passed without anything more being logged; 0 means not until
+    // something is
+    protected long idle() {
+        return 0;
+    }
+
+    // Consumer thread only. Queues text for the console
+    protected final void write(final boolean error, final CharSequence text) {
+        consumer.write(error, text);
+    }
+
+    // Blocks until everything logged so far has been written, then stops the consumer
+    private void close() {
+        startConsumer();
+        ringBuffer.close();
+        awaitConsumer();
+    }
+
+    private void startConsumer() {
+        if (!consumerStarted) {
+            synchronized (consumer) {
+                if (!consumerStarted) {
+                    consumer.start();
+                    consumerStarted = true;
                 }
-                tmp.append(label);
-                label = tmp.toString();
-
-                BufferedReader r = null;
-                try {
-                    r = new BufferedReader(new StringReader(event.getMessage()));
-                    String line = r.readLine();
-                    boolean first = true;
-                    do {
-                        if (first) {
-                            if (line == null) {
-                                message.append(label);
-                                break;
-                            }
-                        } else {
-                            message.append(StringUtils.LINE_SEP);
-                        }
-                        first = false;
-                        message.append(label).append(line);
-                        line = r.readLine();
-                    } while (line != null);
-                } catch (final IOException e) {
-                    // shouldn't be possible
-                    message.append(label).append(event.getMessage());
-                } finally {
-                    if (r != null) {
-                        FileUtils.close(r);
+            }
+        }
+    }
+
+    private void awaitConsumer() {
+        try {
+            consumer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publish(final LogEventType type, final int priority, final boolean error, final String targetName,
+                         final String taskName, final String message, final Throwable exception) {
+        startConsumer();
+        publishing.incrementAndGet();
+        if (ringBuffer.isClosed()) {
+            publishing.decrementAndGet();
+
+            // too late for the consumer; do it all here
+            synchronized (directEvent) {
+                // the consumer's buffers are only ours once it has stopped
+                awaitConsumer();
+                directEvent.set(type, priority, error, targetName, taskName, message, exception);
+                consumer.consume(directEvent);
+                consumer.flush();
+            }
+            return;
+        }
+
+        try {
+            final LogEvent event = ringBuffer.claim(priority > Project.MSG_INFO);
+            if (event != null) {
+                event.set(type, priority, error, targetName, taskName, message, exception);
+                ringBuffer.publish(event);
+            }
+        } finally {
+            publishing.decrementAndGet();
+        }
+    }
+
+    private boolean isLogHookOverridden() {
+        for (Class<?> clazz = getClass(); clazz != ParallelExecutorLogger.class; clazz = clazz.getSuperclass()) {
+            for (final Method method: clazz.getDeclaredMethods()) {
+                if (method.getName().equals("log") && method.getParameterTypes().length == 1
+                    && method.getParameterTypes()[0] == String.class) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private final class Consumer extends Thread {
+        private final StringBuilder formatted = new StringBuilder();
+        private final StringBuilder label = new StringBuilder();
+        private final StringBuilder outBatch = new StringBuilder();
+        private final StringBuilder errBatch = new StringBuilder();
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+
+        public Consumer() {
+            super("pant-logger");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int attempts = 0;
+            while (true) {
+                final LogEvent event = ringBuffer.poll();
+                if (event != null) {
+                    consume(event);
+                    ringBuffer.release(event);
+                    attempts = 0;
+
+                    if (outBatch.length() + errBatch.length() > MAX_BATCH_CHARS) {
+                        flush();
                     }
+                    continue;
                 }
 
-            } else {
-                // emacs mode or there is no task
-                message.append(event.getMessage());
+                // caught up, so this is a good time to write
+                reportDroppedMessages();
+                final long timeoutNanos = idle();
+                flush();
+
+                if (!ringBuffer.isClosed()) {
+                    ringBuffer.park(timeoutNanos);
+                } else if (publishing.get() == 0 && ringBuffer.isDrained()) {
+                    return;
+                } else {
+                    // a producer is still on its way into the ring
+                    LogRingBuffer.backOff(attempts++);
+                }
             }
-            final Throwable ex = event.getException();
-            if (Project.MSG_DEBUG <= msgOutputLevel && ex != null) {
-                message.append(StringUtils.getStackTrace(ex));
+        }
+
+        public void consume(final LogEvent event) {
+            final CharSequence text = format(event);
+
+            ParallelExecutorLogger.this.consume(event.getTargetName(), event.getType(), event.isError(), text);
+
+            if (logHookOverridden && text != null && event.getType() != LogEventType.TEXT) {
+                // DefaultLogger has already called log() for TEXT
+                log(text.toString());
             }
+        }
 
-            final String msg = message.toString();
-            if (priority != Project.MSG_ERR) {
-                printMessage(msg, out, priority);
+        public void write(final boolean error, final CharSequence text) {
+            // keep output in order when it switches between streams
+            if (error) {
+                flush(outBatch, out);
+                errBatch.append(text);
             } else {
-                printMessage(msg, err, priority);
+                flush(errBatch, err);
+                outBatch.append(text);
             }
-            log(msg);
         }
-    }
 
-    @Override
-    protected void printMessage(final String message, final PrintStream stream, final int priority) {
-        synchronized (this) {
-            super.printMessage(message, stream, priority);
+        public void flush() {
+            flush(outBatch, out);
+            flush(errBatch, err);
         }
-    }
 
+        private CharSequence format(final LogEvent event) {
+            formatted.setLength(0);
+
+            switch (event.getType()) {
+            case TARGET_STARTED:
+            case TARGET_FINISHED:
+                if (Project.MSG_INFO > msgOutputLevel || event.getTargetName().equals("")) {
+                    return null;
+                }
+                formatted.append(event.getType() == LogEventType.TARGET_STARTED ? STARTED_SYMBOL : FINISHED_SYMBOL);
+                formatted.append(event.getTargetName());
+                break;
+
+            case MESSAGE:
+                final String message = event.getMessage() == null ? "" : event.getMessage();
+                if (event.getTaskName() != null) {
+                    formatLabel(event.getTargetName(), event.getTaskName());
+                    appendLabelledLines(message);
+                } else {
+                    // emacs mode or there is no task
+                    formatted.append(message);
+                }
+                if (event.getException() != null) {
+                    formatted.append(StringUtils.getStackTrace(event.getException()));
+                }
+                break;
+
+            default:
+                formatted.append(event.getMessage());
+            }
+
+            return formatted;
+        }
+
+        private void formatLabel(final String targetName, final String taskName) {
+            label.setLength(0);
+
+            final int labelLength = targetName.length() + taskName.length() + 6;  // "[" + " / " + "] "
+            int padding = LEFT_COLUMN_SIZE - labelLength + 1;
+            while (padding > 0) {
+                final int chunk = Math.min(padding, PADDING.length());
+                label.append(PADDING, 0, chunk);
+                padding -= chunk;
+            }
+
+            label.append('[').append(targetName).append(" / ").append(taskName).append("] ");
+        }
+
+        // Prefixes every line of the message with the label, splitting lines the same way
+        // BufferedReader.readLine() does
+        private void appendLabelledLines(final String message) {
+            final int length = message.length();
+            if (length == 0) {
+                formatted.append(label);
+                return;
+            }
+
+            int start = 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && message.charAt(end) != '\n' && message.charAt(end) != '\r') {
+                    end++;
+                }
+
+                if (start > 0) {
+                    formatted.append(StringUtils.LINE_SEP);
+                }
+                formatted.append(label).append(message, start, end);
+
+                if (end + 1 < length && message.charAt(end) == '\r' && message.charAt(end + 1) == '\n') {
+                    end++;
+                }
+                start = end + 1;
+            }
+        }
+
+        private void reportDroppedMessages() {
+            final long dropped = ringBuffer.getAndResetDropped();
+            if (dropped > 0) {
+                outBatch.append("[pant: ").append(dropped).append(" verbose/debug message(s) dropped; output couldn't keep up]")
+                        .append(StringUtils.LINE_SEP);
+            }
+        }
+
+        private void flush(final StringBuilder batch, final PrintStream stream) {
+            if (batch.length() == 0) {
+                return;
+            }
+
+            final CharBuffer chars = CharBuffer.wrap(batch);
+            encoder.reset();
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, bytes, true);
+                drain(stream);
+            } while (result.isOverflow());
+
+            while (encoder.flush(bytes).isOverflow()) {
+                drain(stream);
+            }
+            drain(stream);
+
+            stream.flush();
+            batch.setLength(0);
+        }
+
+        private void drain(final PrintStream stream) {
+            stream.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.taskdefs.Manifest;
+import org.apache.tools.ant.taskdefs.ManifestException;
+
+// ParallelZipTask for jars: the archive starts with META-INF/ and a manifest, Ant's default one
+// merged with the manifest attribute's file if there is one, as <jar> does. A META-INF/MANIFEST.MF
+// among the filesets is left out, as with filesetmanifest="skip".
+public class ParallelJarTask extends ParallelZipTask {
+    private static final String META_INF = "META-INF/";
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    // the extra field which marks an archive as a jar
+    private static final byte[] JAR_MARKER = {(byte) 0xfe, (byte) 0xca, 0, 0};
+
+    private File manifestFile;
+
+    public void setManifest(final File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    @Override
+    protected void addLeadingEntries(final Map<String, ArchiveEntry> entries) {
+        final ArchiveEntry metaInf = new ArchiveEntry(META_INF, null, null, DEFAULT_DIR_MODE);
+        metaInf.setExtra(JAR_MARKER);
+        add(entries, metaInf);
+        add(entries, new ArchiveEntry(MANIFEST_NAME, manifestFile, createManifest(), DEFAULT_FILE_MODE));
+    }
+
+    @Override
+    protected boolean isReserved(final String name) {
+        return name.equalsIgnoreCase(MANIFEST_NAME);
+    }
+
+    private byte[] createManifest() {
+        try {
+            final Manifest manifest = Manifest.getDefaultManifest();
+            if (manifestFile != null) {
+                final Reader reader = new InputStreamReader(new FileInputStream(manifestFile), Manifest.JAR_ENCODING);
+                try {
+                    manifest.merge(new Manifest(reader));
+                } finally {
+                    reader.close();
+                }
+            }
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final PrintWriter writer = new PrintWriter(new OutputStreamWriter(bytes, Manifest.JAR_ENCODING));
+            manifest.write(writer);
+            writer.close();
+            return bytes.toByteArray();
+        } catch (final ManifestException e) {
+            throw new BuildException("Invalid manifest " + manifestFile + ": " + e.getMessage(), e, getLocation());
+        } catch (final IOException e) {
+            throw new BuildException("Unable to read manifest " + manifestFile + ": " + e.getMessage(), e,
+                                     getLocation());
+        }
+    }
+}
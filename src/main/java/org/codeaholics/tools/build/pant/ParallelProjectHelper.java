@@ -0,0 +1,167 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.helper.AntXMLContext;
+import org.apache.tools.ant.helper.ProjectHelper2;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.ant.util.FileUtils;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+// A ProjectHelper which parses imported build files concurrently and replays them in ant's usual
+// order. etc/pant -p selects it with
+//     -Dorg.apache.tools.ant.ProjectHelper=org.codeaholics.tools.build.pant.ParallelProjectHelper
+public class ParallelProjectHelper extends ProjectHelper2 {
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+    private static final String PARSING_CONTEXT_REFERENCE = "ant.parsing.context";
+
+    private final ConcurrentMap<File, Future<RecordedBuildFile>> recordings =
+            new ConcurrentHashMap<File, Future<RecordedBuildFile>>();
+    private ExecutorService executorService;
+    private int depth;
+
+    @Override
+    public void parse(final Project project, final Object source, final RootHandler handler) throws BuildException {
+        final File file = getFile(source);
+        final AntXMLContext context = (AntXMLContext) project.getReference(PARSING_CONTEXT_REFERENCE);
+        if (file == null || context == null) {
+            super.parse(project, source, handler);
+            return;
+        }
+
+        // the outermost parse owns the pool; imports are parsed while it's still in progress
+        if (depth++ == 0) {
+            executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                           new DaemonThreadFactory());
+        }
+
+        try {
+            final RecordedBuildFile recordedBuildFile = getRecording(file);
+            if (recordedBuildFile == null || !recordedBuildFile.isReplayable()) {
+                super.parse(project, source, handler);
+                return;
+            }
+
+            project.log("parsing buildfile " + file + " from a concurrent parse", Project.MSG_VERBOSE);
+            context.setBuildFile(FILE_UTILS.normalize(file.getAbsolutePath()));
+            try {
+                recordedBuildFile.replay(handler);
+            } catch (final SAXParseException e) {
+                final Location location = new Location(e.getSystemId(), e.getLineNumber(), e.getColumnNumber());
+                if (e.getException() instanceof BuildException) {
+                    throw addLocationToBuildException((BuildException) e.getException(), location);
+                }
+                throw new BuildException(e.getMessage(), e, location);
+            } catch (final SAXException e) {
+                final Throwable cause = e.getException();
+                if (cause instanceof BuildException) {
+                    throw (BuildException) cause;
+                }
+                throw new BuildException(e.getMessage(), cause == null ? e : cause);
+            }
+        } finally {
+            if (--depth == 0) {
+                executorService.shutdownNow();
+                executorService = null;
+                recordings.clear();
+            }
+        }
+    }
+
+    private static File getFile(final Object source) {
+        if (source instanceof File) {
+            return (File) source;
+        }
+        if (source instanceof Resource) {
+            final FileProvider fileProvider = (FileProvider) ((Resource) source).as(FileProvider.class);
+            return fileProvider == null ? null : fileProvider.getFile();
+        }
+        return null;
+    }
+
+    // Returns null if the file couldn't be parsed, so that ant reports the problem in its usual way
+    private RecordedBuildFile getRecording(final File file) {
+        final Future<RecordedBuildFile> recording = startRecording(file);
+        try {
+            return recording.get();
+        } catch (final ExecutionException e) {
+            return null;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private Future<RecordedBuildFile> startRecording(final File file) {
+        final File key = FILE_UTILS.normalize(file.getAbsolutePath());
+        Future<RecordedBuildFile> recording = recordings.get(key);
+        if (recording == null) {
+            recording = executorService.submit(new RecordingTask(key));
+            final Future<RecordedBuildFile> existing = recordings.putIfAbsent(key, recording);
+            if (existing != null) {
+                recording.cancel(false);
+                recording = existing;
+            }
+        }
+        return recording;
+    }
+
+    private final class RecordingTask implements Callable<RecordedBuildFile> {
+        private final File file;
+
+        public RecordingTask(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        public RecordedBuildFile call() throws Exception {
+            final RecordedBuildFile recordedBuildFile = RecordedBuildFile.record(file);
+
+            final List<File> imports = recordedBuildFile.getImports();
+            for (final File imported: imports) {
+                startRecording(imported);
+            }
+
+            return recordedBuildFile;
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "pant-parser");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.property.LocalProperties;
+import org.apache.tools.ant.property.LocalPropertyStack;
+import org.apache.tools.ant.util.StringUtils;
+
+// A <parallel> whose nested tasks run through SharedPool, so pant.threads stays the limit. On a
+// busy pool they run in turn on the caller, so tasks which must overlap (a server and a <waitfor>
+// for it) need ant's own <parallel>. <daemons>, timeout and pollinterval aren't supported.
+public class ParallelTask extends Task implements TaskContainer {
+    private final List<Task> tasks = new ArrayList<Task>();
+    private int threadCount;
+    private int threadsPerProcessor;
+    private boolean failOnAny;
+
+    @Override
+    public void addTask(final Task task) {
+        tasks.add(task);
+    }
+
+    public void setThreadCount(final int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setThreadsPerProcessor(final int threadsPerProcessor) {
+        this.threadsPerProcessor = threadsPerProcessor;
+    }
+
+    public void setFailOnAny(final boolean failOnAny) {
+        this.failOnAny = failOnAny;
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        // as Ant's <parallel> does, each nested task sees the caller's local properties, and any it
+        // declares itself stay with it rather than with the thread it happened to run on
+        final LocalProperties localProperties = LocalProperties.get(getProject());
+        final LocalPropertyStack callerStack = (LocalPropertyStack) localProperties.get();
+
+        final List<Runnable> jobs = new ArrayList<Runnable>();
+        for (final Task task: tasks) {
+            final LocalPropertyStack stack = callerStack.copy();
+            jobs.add(new Runnable() {
+                @Override
+                public void run() {
+                    final Object threadStack = localProperties.get();
+                    localProperties.set(stack);
+                    try {
+                        task.perform();
+                    } finally {
+                        localProperties.set(threadStack);
+                    }
+                }
+            });
+        }
+
+        final Throwable[] failures;
+        try {
+            failures = SharedPool.runOnPool(SharedPool.get(getProject()), jobs, getConcurrency(), failOnAny);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted waiting for parallel tasks", getLocation());
+        }
+
+        rethrow(failures);
+    }
+
+    private int getConcurrency() {
+        if (threadsPerProcessor > 0) {
+            return threadsPerProcessor * Runtime.getRuntime().availableProcessors();
+        }
+        return threadCount > 0 ? threadCount : tasks.size();
+    }
+
+    // The only failure as it was; several together, in the order the tasks are written
+    private void rethrow(final Throwable[] failures) {
+        Throwable first = null;
+        final StringBuilder messages = new StringBuilder();
+        int count = 0;
+        for (final Throwable failure: failures) {
+            if (failure != null) {
+                first = first == null ? failure : first;
+                messages.append(StringUtils.LINE_SEP).append(failure.getMessage());
+                count++;
+            }
+        }
+
+        if (count == 1 && first instanceof RuntimeException) {
+            throw (RuntimeException) first;
+        }
+        if (count == 1) {
+            throw (Error) first;
+        }
+        if (count > 1) {
+            throw new BuildException(count + " nested tasks failed:" + messages, first, getLocation());
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.MatchingTask;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.ZipFileSet;
+
+// A <zip> which deflates entries on the shared pool, a bounded window ahead of the writer. Supports
+// the common subset of <zip>; update and <zipfileset src> aren't.
+public class ParallelZipTask extends MatchingTask {
+    private static final int WINDOW = 256;
+    // of input; an entry is held both as read and as compressed until it's written
+    private static final long WINDOW_BYTES = 32 * 1024 * 1024;
+    protected static final int DEFAULT_FILE_MODE = 0100644;
+    protected static final int DEFAULT_DIR_MODE = 040755;
+    private static final long ROUND_UP_MILLIS = 1999;
+
+    private final List<FileSet> fileSets = new ArrayList<FileSet>();
+    private File destFile;
+    private File baseDir;
+    private boolean compress = true;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private boolean roundUp = true;
+
+    public void setDestFile(final File destFile) {
+        this.destFile = destFile;
+    }
+
+    public void setBasedir(final File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    public void setCompress(final boolean compress) {
+        this.compress = compress;
+    }
+
+    public void setLevel(final int level) {
+        this.level = level;
+    }
+
+    public void setRoundUp(final boolean roundUp) {
+        this.roundUp = roundUp;
+    }
+
+    public void addFileset(final FileSet fileSet) {
+        fileSets.add(fileSet);
+    }
+
+    public void addZipfileset(final ZipFileSet fileSet) {
+        fileSets.add(fileSet);
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        if (destFile == null) {
+            throw new BuildException(getTaskName() + " requires a destfile", getLocation());
+        }
+
+        final Map<String, ArchiveEntry> entries = new LinkedHashMap<String, ArchiveEntry>();
+        addLeadingEntries(entries);
+        if (baseDir != null) {
+            addFileSet(entries, getDirectoryScanner(baseDir), null);
+        }
+        for (final FileSet fileSet: fileSets) {
+            addFileSet(entries, fileSet.getDirectoryScanner(getProject()), fileSet);
+        }
+
+        if (isUpToDate(entries)) {
+            log(destFile + " is up to date", Project.MSG_VERBOSE);
+            return;
+        }
+
+        log("Building " + getTaskName() + ": " + destFile.getAbsolutePath());
+        destFile.getParentFile().mkdirs();
+        boolean written = false;
+        try {
+            write(new ArrayList<ArchiveEntry>(entries.values()));
+            written = true;
+        } catch (final IOException e) {
+            throw new BuildException("Problem creating " + destFile + ": " + e.getMessage(), e, getLocation());
+        } finally {
+            if (!written) {
+                destFile.delete();
+            }
+        }
+    }
+
+    // For entries which come before any file, such as a jar's manifest
+    protected void addLeadingEntries(final Map<String, ArchiveEntry> entries) {
+        // none for a zip
+    }
+
+    // For names which only the task itself may add
+    protected boolean isReserved(final String name) {
+        return false;
+    }
+
+    protected void add(final Map<String, ArchiveEntry> entries, final ArchiveEntry entry) {
+        if (entries.containsKey(entry.name)) {
+            log(entry.name + " is already in the archive", Project.MSG_VERBOSE);
+            return;
+        }
+        entries.put(entry.name, entry);
+    }
+
+    private void addFile(final Map<String, ArchiveEntry> entries, final ArchiveEntry entry) {
+        if (isReserved(entry.name)) {
+            log("Skipping " + entry.name + " from " + entry.input, Project.MSG_VERBOSE);
+            return;
+        }
+        add(entries, entry);
+    }
+
+    private void addFileSet(final Map<String, ArchiveEntry> entries, final DirectoryScanner scanner,
+                            final FileSet fileSet) {
+        final File dir = scanner.getBasedir();
+        String prefix = "";
+        String fullPath = "";
+        int fileMode = DEFAULT_FILE_MODE;
+        int dirMode = DEFAULT_DIR_MODE;
+        if (fileSet instanceof ZipFileSet) {
+            final ZipFileSet zipFileSet = (ZipFileSet) fileSet;
+            if (zipFileSet.getSrc(getProject()) != null) {
+                throw new BuildException(getTaskName() + " can't take entries from another archive", getLocation());
+            }
+            prefix = zipFileSet.getPrefix(getProject());
+            fullPath = zipFileSet.getFullpath(getProject());
+            fileMode = zipFileSet.getFileMode(getProject());
+            dirMode = zipFileSet.getDirMode(getProject());
+        }
+        if (prefix.length() > 0 && !prefix.endsWith("/")) {
+            prefix += "/";
+        }
+
+        final String[] files = scanner.getIncludedFiles();
+        if (fullPath.length() > 0) {
+            if (files.length != 1) {
+                throw new BuildException("fullpath can only be used with a single file", getLocation());
+            }
+            addParentDirs(entries, fullPath, dirMode);
+            addFile(entries, new ArchiveEntry(fullPath, new File(dir, files[0]), null, fileMode));
+            return;
+        }
+
+        if (prefix.length() > 0) {
+            addParentDirs(entries, prefix, dirMode);
+            add(entries, new ArchiveEntry(prefix, null, null, dirMode));
+        }
+        for (final String directory: scanner.getIncludedDirectories()) {
+            if (directory.length() > 0) {
+                final String name = prefix + directory.replace(File.separatorChar, '/') + "/";
+                addParentDirs(entries, name, dirMode);
+                add(entries, new ArchiveEntry(name, new File(dir, directory), null, dirMode));
+            }
+        }
+        for (final String file: files) {
+            final String name = prefix + file.replace(File.separatorChar, '/');
+            addParentDirs(entries, name, dirMode);
+            addFile(entries, new ArchiveEntry(name, new File(dir, file), null, fileMode));
+        }
+    }
+
+    private void addParentDirs(final Map<String, ArchiveEntry> entries, final String name, final int dirMode) {
+        int slash = name.indexOf('/');
+        while (slash >= 0 && slash < name.length() - 1) {
+            final String parent = name.substring(0, slash + 1);
+            if (!entries.containsKey(parent)) {
+                entries.put(parent, new ArchiveEntry(parent, null, null, dirMode));
+            }
+            slash = name.indexOf('/', slash + 1);
+        }
+    }
+
+    private boolean isUpToDate(final Map<String, ArchiveEntry> entries) {
+        if (!destFile.isFile()) {
+            return false;
+        }
+
+        final long built = destFile.lastModified();
+        for (final ArchiveEntry entry: entries.values()) {
+            if (entry.input != null && entry.input.lastModified() > built) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write(final List<ArchiveEntry> entries) throws IOException {
+        final ExecutorService executorService =
+                (ExecutorService) getProject().getReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE);
+        // kept so that their deflaters' native memory can be freed as soon as the archive is written
+        final List<Compressor> created = new ArrayList<Compressor>();
+        final ThreadLocal<Compressor> compressors = new ThreadLocal<Compressor>() {
+            @Override
+            protected Compressor initialValue() {
+                final Compressor compressor = new Compressor();
+                synchronized (created) {
+                    created.add(compressor);
+                }
+                return compressor;
+            }
+        };
+        final long now = System.currentTimeMillis();
+
+        final List<FutureTask<Compressed>> compressions = new ArrayList<FutureTask<Compressed>>(entries.size());
+        int queued = 0;
+        long queuedBytes = 0;
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile), 64 * 1024);
+        try {
+            final ZipEntryWriter writer = new ZipEntryWriter(out);
+            for (int i = 0; i < entries.size(); i++) {
+                // the entry about to be written is always let in, however big it is
+                while (queued < entries.size() && queued <= i + WINDOW
+                       && (queued == i || queuedBytes + entries.get(queued).getSize() <= WINDOW_BYTES)) {
+                    final ArchiveEntry entry = entries.get(queued);
+                    queuedBytes += entry.getSize();
+                    final FutureTask<Compressed> compression =
+                            new FutureTask<Compressed>(new Callable<Compressed>() {
+                                @Override
+                                public Compressed call() throws IOException {
+                                    return compressors.get().compress(entry);
+                                }
+                            });
+                    compressions.add(compression);
+                    if (executorService != null && queued > i) {
+                        try {
+                            executorService.execute(compression);
+                        } catch (final RejectedExecutionException e) {
+                            // the build is shutting down; it'll be done here
+                        }
+                    }
+                    queued++;
+                }
+
+                compressions.get(i).run();
+                final Compressed compressed = await(compressions.get(i));
+                compressions.set(i, null);
+
+                final ArchiveEntry entry = entries.get(i);
+                queuedBytes -= entry.getSize();
+                final long time = entry.input == null
+                        ? now
+                        : entry.input.lastModified() + (roundUp ? ROUND_UP_MILLIS : 0);
+                writer.write(entry.name, compressed.method, compressed.data, compressed.length, compressed.crc,
+                             compressed.size, time, entry.mode, entry.extra);
+            }
+            writer.finish();
+        } finally {
+            for (final FutureTask<Compressed> compression: compressions) {
+                if (compression != null) {
+                    compression.cancel(false);
+                }
+            }
+            out.close();
+            synchronized (created) {
+                for (final Compressor compressor: created) {
+                    compressor.end();
+                }
+            }
+        }
+    }
+
+    private Compressed await(final FutureTask<Compressed> compression) throws IOException {
+        try {
+            return compression.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted waiting for entries to be compressed", getLocation());
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BuildException(e.getCause(), getLocation());
+        }
+    }
+
+    // A file or directory to add, or some content made by the task
+    public static class ArchiveEntry {
+        private final String name;
+        private final File input;
+        private final byte[] content;
+        private final int mode;
+        private byte[] extra;
+        private long size = -1;
+
+        public ArchiveEntry(final String name, final File input, final byte[] content, final int mode) {
+            this.name = name;
+            this.input = input;
+            this.content = content;
+            this.mode = mode;
+        }
+
+        public void setExtra(final byte[] extra) {
+            this.extra = extra;
+        }
+
+        private boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        // As near as can be told before it's read
+        private long getSize() {
+            if (size < 0) {
+                size = isDirectory() ? 0 : content != null ? content.length : input.length();
+            }
+            return size;
+        }
+    }
+
+    private static final class Compressed {
+        private int method;
+        private byte[] data;
+        private int length;
+        private long crc;
+        private long size;
+    }
+
+    // One per thread, since a Deflater is expensive to make and can be reset between entries
+    private final class Compressor {
+        private final Deflater deflater = new Deflater(level, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[64 * 1024];
+
+        public Compressed compress(final ArchiveEntry entry) throws IOException {
+            final Compressed compressed = new Compressed();
+            final byte[] contents = entry.isDirectory() ? new byte[0] : read(entry);
+            crc.reset();
+            crc.update(contents);
+            compressed.crc = crc.getValue();
+            compressed.size = contents.length;
+
+            if (!compress || entry.isDirectory()) {
+                compressed.method = ZipEntry.STORED;
+                compressed.data = contents;
+                compressed.length = contents.length;
+                return compressed;
+            }
+
+            deflater.reset();
+            deflater.setInput(contents);
+            deflater.finish();
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream(contents.length / 2 + 64);
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            compressed.method = ZipEntry.DEFLATED;
+            compressed.data = deflated.toByteArray();
+            compressed.length = compressed.data.length;
+            return compressed;
+        }
+
+        // Anything still compressing with it, after a failure, fails in turn
+        public void end() {
+            deflater.end();
+        }
+
+        // Whole, through the file's channel
+        private byte[] read(final ArchiveEntry entry) throws IOException {
+            if (entry.content != null) {
+                return entry.content;
+            }
+
+            final FileInputStream in = new FileInputStream(entry.input);
+            try {
+                final FileChannel channel = in.getChannel();
+                final long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException(entry.input + " is too big for an archive without Zip64");
+                }
+                final ByteBuffer contents = ByteBuffer.allocate((int) size);
+                while (contents.hasRemaining() && channel.read(contents) >= 0) {
+                    // keep reading
+                }
+                if (contents.hasRemaining()) {
+                    throw new IOException(entry.input + " changed while it was being read");
+                }
+                return contents.array();
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.List;
+import java.util.Set;
+
+public class Phase {
+    private final String name;
+    private final List<String> targets;
+
+    // null means the phase holds back every target in a later phase
+    private Set<String> blockedTargets;
+
+    public Phase(final String name, final List<String> targets) {
+        this.name = name;
+        this.targets = targets;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getTargets() {
+        return targets;
+    }
+
+    public void setBlockedTargets(final Set<String> blockedTargets) {
+        this.blockedTargets = blockedTargets;
+    }
+
+    public boolean blocks(final String targetName) {
+        return blockedTargets == null || blockedTargets.contains(targetName);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
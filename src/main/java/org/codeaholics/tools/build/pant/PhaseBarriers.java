@@ -0,0 +1,194 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+
+import org.apache.tools.ant.Target;
+
+// The build's phases, in execution order, and the barriers between them. Until every target of a
+// phase which is part of the build has completed, the later targets it blocks are held back.
+public class PhaseBarriers {
+    private static final String PRE_PHASE_TARGET = "pant:pre-phase";
+    private static final String PHASE_TARGET_PREFIX = "pant:phase.";
+    private static final String PHASE_BLOCKS_SUFFIX = ".blocks";
+
+    // the pre-phase, if there is one, always comes first
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private final Map<String, Integer> targetPhases = new HashMap<String, Integer>();
+
+    // Targets which would otherwise be schedulable but are held back by the barrier of an unfinished
+    // phase, indexed by that phase
+    private final List<Queue<DependencyGraphEntry>> heldTargets = new ArrayList<Queue<DependencyGraphEntry>>();
+    private int[] outstandingPhaseTargets = new int[0];
+
+    // The pre-phase sorts ahead of all numbered phases. Returns null if the name isn't a phase
+    public static Integer getPhaseOrder(final String targetName) {
+        if (targetName.equals(PRE_PHASE_TARGET)) {
+            return -1;
+        }
+
+        if (targetName.startsWith(PHASE_TARGET_PREFIX)) {
+            final String number = targetName.substring(PHASE_TARGET_PREFIX.length());
+            try {
+                final int phaseOrder = Integer.parseInt(number);
+                // reject things like "pant:phase.01" which would otherwise collide with "pant:phase.1"
+                if (phaseOrder >= 0 && String.valueOf(phaseOrder).equals(number)) {
+                    return phaseOrder;
+                }
+            } catch (final NumberFormatException e) {
+                // not a phase
+            }
+        }
+
+        return null;
+    }
+
+    // The phase which a "<phase>.blocks" target says the targets of, or null if the name isn't one
+    public static String getBlockedPhaseName(final String targetName) {
+        if (!targetName.endsWith(PHASE_BLOCKS_SUFFIX)) {
+            return null;
+        }
+
+        final String phaseName = targetName.substring(0, targetName.length() - PHASE_BLOCKS_SUFFIX.length());
+        return getPhaseOrder(phaseName) == null ? null : phaseName;
+    }
+
+    // In execution order. blockedTargets may be null if the phase holds back every later target
+    public void addPhase(final String name, final List<String> targets, final Set<String> blockedTargets) {
+        final int phaseIndex = phases.size();
+        final Phase phase = new Phase(name, targets);
+        if (blockedTargets != null) {
+            phase.setBlockedTargets(blockedTargets);
+        }
+
+        for (final String targetName: targets) {
+            final Integer existingPhase = targetPhases.get(targetName);
+            if (existingPhase != null && existingPhase != phaseIndex) {
+                throw new TargetInMultiplePhasesException(targetName);
+            }
+            targetPhases.put(targetName, phaseIndex);
+        }
+
+        phases.add(phase);
+    }
+
+    public Map<String, Integer> getTargetPhases() {
+        return targetPhases;
+    }
+
+    public void verify(final Map<String, Target> targetsByName) {
+        for (final Entry<String, Integer> entry: targetPhases.entrySet()) {
+            final String phaseTargetName = entry.getKey();
+            final int phase = entry.getValue();
+            final Target phaseTarget = targetsByName.get(phaseTargetName);
+
+            @SuppressWarnings("unchecked")
+            final Enumeration<String> dependencies = phaseTarget.getDependencies();
+            while (dependencies.hasMoreElements()) {
+                final Integer dependencyPhase = targetPhases.get(dependencies.nextElement());
+                if (dependencyPhase == null || dependencyPhase > phase) {
+                    if (phases.get(phase).getName().equals(PRE_PHASE_TARGET)) {
+                        throw new PrePhaseTargetCanOnlyDependOnPrePhaseTargetsException(phaseTargetName);
+                    }
+                    throw new PhaseTargetCanOnlyDependOnEarlierPhaseTargetsException(phaseTargetName);
+                }
+            }
+        }
+    }
+
+    // Sets up the barriers for a graph, telling each entry which phases it waits for
+    public void prepare(final Collection<DependencyGraphEntry> dependencyGraphEntries) {
+        // only phase targets which are actually part of this build hold anything back
+        outstandingPhaseTargets = new int[phases.size()];
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraphEntries) {
+            if (dependencyGraphEntry.isPhased()) {
+                outstandingPhaseTargets[dependencyGraphEntry.getPhase()]++;
+            }
+        }
+
+        heldTargets.clear();
+        for (int phase = 0; phase < phases.size(); phase++) {
+            heldTargets.add(new ArrayDeque<DependencyGraphEntry>());
+        }
+
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraphEntries) {
+            dependencyGraphEntry.setBlockingPhases(findBlockingPhases(dependencyGraphEntry));
+        }
+    }
+
+    // Holds the entry back, and returns true, if an unfinished phase blocks it
+    public boolean hold(final DependencyGraphEntry dependencyGraphEntry) {
+        final int[] blockingPhases = dependencyGraphEntry.getBlockingPhases();
+        for (int i = 0; i < blockingPhases.length; i++) {
+            final int phase = blockingPhases[i];
+            if (outstandingPhaseTargets[phase] > 0) {
+                heldTargets.get(phase).add(dependencyGraphEntry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isBlocked(final DependencyGraphEntry dependencyGraphEntry) {
+        final int[] blockingPhases = dependencyGraphEntry.getBlockingPhases();
+        for (int i = 0; i < blockingPhases.length; i++) {
+            if (outstandingPhaseTargets[blockingPhases[i]] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns true if that was the phase's last target, lifting its barrier. Whatever it held can
+    // then be taken back with pollHeld
+    public boolean phaseTargetComplete(final int phase) {
+        return --outstandingPhaseTargets[phase] == 0;
+    }
+
+    // Returns null once nothing more is held by the phase
+    public DependencyGraphEntry pollHeld(final int phase) {
+        return heldTargets.get(phase).poll();
+    }
+
+    private int[] findBlockingPhases(final DependencyGraphEntry dependencyGraphEntry) {
+        final String targetName = dependencyGraphEntry.getTarget().getName();
+        final int laterThan = Math.min(dependencyGraphEntry.getPhase(), phases.size());
+
+        final List<Integer> blockingPhases = new ArrayList<Integer>();
+        for (int phase = 0; phase < laterThan; phase++) {
+            if (outstandingPhaseTargets[phase] > 0 && phases.get(phase).blocks(targetName)) {
+                blockingPhases.add(phase);
+            }
+        }
+
+        final int[] result = new int[blockingPhases.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = blockingPhases.get(i);
+        }
+        return result;
+    }
+}
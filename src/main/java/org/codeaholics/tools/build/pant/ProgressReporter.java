@@ -0,0 +1,198 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+// Periodically logs which targets are running, how many are complete, queued and waiting, and an
+// estimate of the time remaining, from earlier builds' durations where there are any.
+public class ProgressReporter implements Runnable {
+    private static final String PROGRESS_PROPERTY = "pant.progress";
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Project project;
+    private final DependencyGraph dependencyGraph;
+    private final Object lock;
+    private final TargetDurations targetDurations;
+    private final int numberOfThreads;
+    private final long intervalMillis;
+    private Thread thread;
+
+    // targetDurations may be null if there's no history
+    public ProgressReporter(final Project project, final DependencyGraph dependencyGraph, final Object lock,
+                            final TargetDurations targetDurations, final int numberOfThreads,
+                            final long intervalMillis) {
+        this.project = project;
+        this.dependencyGraph = dependencyGraph;
+        this.lock = lock;
+        this.targetDurations = targetDurations;
+        this.numberOfThreads = numberOfThreads;
+        this.intervalMillis = intervalMillis;
+    }
+
+    // Off, and zero, unless pant.progress gives an interval. The interval is in seconds
+    public static long readIntervalMillis(final Project project) {
+        final String interval = project.getProperty(PROGRESS_PROPERTY);
+        if (interval == null) {
+            return 0;
+        }
+
+        try {
+            return TimeUnit.SECONDS.toMillis(Integer.parseInt(interval));
+        } catch (final NumberFormatException e) {
+            throw new BuildException("Invalid " + PROGRESS_PROPERTY + " interval: " + interval, e);
+        }
+    }
+
+    public void start() {
+        thread = new Thread(this, "pant-progress");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(intervalMillis);
+                // logged outside the lock, since listeners may be slow
+                project.log(report(System.nanoTime()), Project.MSG_INFO);
+            }
+        } catch (final InterruptedException e) {
+            // stopped
+        }
+    }
+
+    public String report(final long nowNanos) {
+        synchronized (lock) {
+            final List<DependencyGraphEntry> entries = dependencyGraph.getTopologicalOrder();
+
+            int complete = 0;
+            int queued = 0;
+            int waiting = 0;
+            long completedNanos = 0;
+            final StringBuilder running = new StringBuilder();
+
+            for (final DependencyGraphEntry dependencyGraphEntry: entries) {
+                switch (dependencyGraphEntry.getState()) {
+                case COMPLETE:
+                    complete++;
+                    completedNanos += dependencyGraphEntry.getElapsedNanos(nowNanos);
+                    break;
+                case RUNNING:
+                    running.append(running.length() == 0 ? "" : ", ")
+                           .append(dependencyGraphEntry.getTarget().getName())
+                           .append(" (").append(formatDuration(dependencyGraphEntry.getElapsedNanos(nowNanos)))
+                           .append(')');
+                    break;
+                case QUEUED:
+                    queued++;
+                    break;
+                default:
+                    waiting++;
+                    break;
+                }
+            }
+
+            final long meanNanos = complete == 0 ? TargetDurations.UNKNOWN : completedNanos / complete;
+            final long remainingNanos = estimateRemainingNanos(entries, meanNanos, nowNanos);
+            final int runningCount = entries.size() - complete - queued - waiting;
+
+            final StringBuilder report = new StringBuilder();
+            report.append("Progress: ").append(complete).append('/').append(entries.size()).append(" complete, ")
+                  .append(runningCount).append(" running, ")
+                  .append(queued).append(" queued, ")
+                  .append(waiting).append(" waiting, ETA ")
+                  .append(remainingNanos == TargetDurations.UNKNOWN ? "unknown" : formatDuration(remainingNanos));
+            if (running.length() > 0) {
+                report.append(System.getProperty("line.separator")).append("Running: ").append(running);
+            }
+            return report.toString();
+        }
+    }
+
+    // Returns UNKNOWN if any outstanding target has no estimate
+    private long estimateRemainingNanos(final List<DependencyGraphEntry> entries, final long meanNanos,
+                                        final long nowNanos) {
+        final Map<DependencyGraphEntry, Long> earliestStarts = new HashMap<DependencyGraphEntry, Long>();
+        long longestChain = 0;
+        long totalWork = 0;
+
+        for (final DependencyGraphEntry dependencyGraphEntry: entries) {
+            long remaining = 0;
+            if (!dependencyGraphEntry.isTargetComplete()) {
+                final long estimate = estimateNanos(dependencyGraphEntry, meanNanos);
+                if (estimate == TargetDurations.UNKNOWN) {
+                    return TargetDurations.UNKNOWN;
+                }
+
+                remaining = estimate;
+                if (dependencyGraphEntry.getState() == TargetState.RUNNING) {
+                    // a target that has overrun its estimate could finish at any moment
+                    remaining = Math.max(0, estimate - dependencyGraphEntry.getElapsedNanos(nowNanos));
+                }
+            }
+
+            final Long earliestStart = earliestStarts.get(dependencyGraphEntry);
+            final long finish = (earliestStart == null ? 0 : earliestStart) + remaining;
+            longestChain = Math.max(longestChain, finish);
+            totalWork += remaining;
+
+            for (final DependencyGraphEntry successor: dependencyGraphEntry.getSuccessorEntries()) {
+                final Long successorStart = earliestStarts.get(successor);
+                if (successorStart == null || successorStart < finish) {
+                    earliestStarts.put(successor, finish);
+                }
+            }
+        }
+
+        return Math.max(longestChain, totalWork / Math.max(1, numberOfThreads));
+    }
+
+    private long estimateNanos(final DependencyGraphEntry dependencyGraphEntry, final long meanNanos) {
+        if (targetDurations != null) {
+            final long millis = targetDurations.getMillis(dependencyGraphEntry.getTarget().getName());
+            if (millis != TargetDurations.UNKNOWN) {
+                return millis * NANOS_PER_MILLI;
+            }
+        }
+        return meanNanos;
+    }
+
+    private static String formatDuration(final long nanos) {
+        final long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        return String.format("%dm%02ds", seconds / 60, seconds % 60);
+    }
+}
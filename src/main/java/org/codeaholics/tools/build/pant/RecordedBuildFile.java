@@ -0,0 +1,284 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.tools.ant.util.JAXPUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+// The SAX events of one build file, recorded on another thread to be replayed into ant's own
+// handler later. Documents with a DTD aren't recorded.
+public class RecordedBuildFile {
+    private static final int START_ELEMENT = 0;
+    private static final int END_ELEMENT = 1;
+    private static final int CHARACTERS = 2;
+    private static final int START_PREFIX_MAPPING = 3;
+    private static final int END_PREFIX_MAPPING = 4;
+
+    private static final String[] IMPORTING_ELEMENTS = {"import", "include"};
+
+    private final File file;
+    private final String systemId;
+    private final List<Event> events = new ArrayList<Event>();
+    private final List<File> imports = new LinkedList<File>();
+    private boolean replayable = true;
+
+    public RecordedBuildFile(final File file) {
+        this.file = file;
+        this.systemId = JAXPUtils.getSystemId(file);
+    }
+
+    public static RecordedBuildFile record(final File file) throws IOException, SAXException {
+        final RecordedBuildFile recordedBuildFile = new RecordedBuildFile(file);
+
+        try {
+            final SAXParserFactory factory = JAXPUtils.newParserFactory();
+            factory.setNamespaceAware(true);
+            final XMLReader reader = factory.newSAXParser().getXMLReader();
+            final Recorder recorder = recordedBuildFile.new Recorder();
+            reader.setContentHandler(recorder);
+            reader.setProperty("http://xml.org/sax/properties/lexical-handler", recorder);
+
+            final InputSource inputSource = new InputSource(recordedBuildFile.systemId);
+            reader.parse(inputSource);
+        } catch (final ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+
+        return recordedBuildFile;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isReplayable() {
+        return replayable;
+    }
+
+    // Build files imported by literal paths which exist; anything involving properties can only be
+    // resolved by ant as it goes
+    public List<File> getImports() {
+        return imports;
+    }
+
+    public void replay(final ContentHandler handler) throws SAXException {
+        final ReplayLocator locator = new ReplayLocator(systemId);
+        handler.setDocumentLocator(locator);
+        handler.startDocument();
+
+        for (final Event event: events) {
+            locator.lineNumber = event.lineNumber;
+            locator.columnNumber = event.columnNumber;
+
+            switch (event.type) {
+            case START_ELEMENT:
+                handler.startElement(event.uri, event.localName, event.qName, event.attributes);
+                break;
+            case END_ELEMENT:
+                handler.endElement(event.uri, event.localName, event.qName);
+                break;
+            case CHARACTERS:
+                handler.characters(event.text, 0, event.text.length);
+                break;
+            case START_PREFIX_MAPPING:
+                handler.startPrefixMapping(event.localName, event.uri);
+                break;
+            default:
+                handler.endPrefixMapping(event.localName);
+                break;
+            }
+        }
+
+        handler.endDocument();
+    }
+
+    private static final class Event {
+        private final int type;
+        private final int lineNumber;
+        private final int columnNumber;
+        private String uri;
+        private String localName;
+        private String qName;
+        private Attributes attributes;
+        private char[] text;
+
+        public Event(final int type, final Locator locator) {
+            this.type = type;
+            this.lineNumber = locator == null ? -1 : locator.getLineNumber();
+            this.columnNumber = locator == null ? -1 : locator.getColumnNumber();
+        }
+    }
+
+    private static final class ReplayLocator implements Locator {
+        private final String systemId;
+        private int lineNumber;
+        private int columnNumber;
+
+        public ReplayLocator(final String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getPublicId() {
+            return null;
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        @Override
+        public int getColumnNumber() {
+            return columnNumber;
+        }
+    }
+
+    private final class Recorder extends DefaultHandler implements LexicalHandler {
+        private Locator locator;
+        private int depth;
+
+        @Override
+        public void setDocumentLocator(final Locator locator) {
+            this.locator = locator;
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName,
+                                 final Attributes attributes) {
+            final Event event = new Event(START_ELEMENT, locator);
+            event.uri = uri;
+            event.localName = localName;
+            event.qName = qName;
+            event.attributes = new AttributesImpl(attributes);
+            events.add(event);
+
+            // imports are only processed at the top level of a build file
+            if (depth == 1) {
+                noteImport(localName, attributes);
+            }
+            depth++;
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            depth--;
+            final Event event = new Event(END_ELEMENT, locator);
+            event.uri = uri;
+            event.localName = localName;
+            event.qName = qName;
+            events.add(event);
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) {
+            final Event event = new Event(CHARACTERS, locator);
+            event.text = new char[length];
+            System.arraycopy(ch, start, event.text, 0, length);
+            events.add(event);
+        }
+
+        @Override
+        public void startPrefixMapping(final String prefix, final String uri) {
+            final Event event = new Event(START_PREFIX_MAPPING, locator);
+            event.localName = prefix;
+            event.uri = uri;
+            events.add(event);
+        }
+
+        @Override
+        public void endPrefixMapping(final String prefix) {
+            final Event event = new Event(END_PREFIX_MAPPING, locator);
+            event.localName = prefix;
+            events.add(event);
+        }
+
+        private void noteImport(final String localName, final Attributes attributes) {
+            for (final String importingElement: IMPORTING_ELEMENTS) {
+                if (importingElement.equals(localName)) {
+                    final String importedFile = attributes.getValue("file");
+                    if (importedFile != null && importedFile.indexOf("${") == -1) {
+                        File imported = new File(importedFile);
+                        if (!imported.isAbsolute()) {
+                            imported = new File(file.getAbsoluteFile().getParentFile(), importedFile);
+                        }
+                        if (imported.isFile()) {
+                            imports.add(imported);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void startDTD(final String name, final String publicId, final String systemId) {
+            replayable = false;
+        }
+
+        @Override
+        public void endDTD() {
+            // nothing to do
+        }
+
+        @Override
+        public void startEntity(final String name) {
+            replayable = false;
+        }
+
+        @Override
+        public void endEntity(final String name) {
+            // nothing to do
+        }
+
+        @Override
+        public void startCDATA() {
+            // the text is reported as characters
+        }
+
+        @Override
+        public void endCDATA() {
+            // nothing to do
+        }
+
+        @Override
+        public void comment(final char[] ch, final int start, final int length) {
+            // ant ignores comments
+        }
+    }
+}
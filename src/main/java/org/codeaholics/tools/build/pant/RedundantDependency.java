@@ -0,0 +1,72 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.List;
+
+import org.apache.tools.ant.Project;
+
+// A depends edge which another dependency of the same target already implies, found by
+// DependencyGraph.reduceTransitively
+public class RedundantDependency {
+    private static final String REDUCE_PROPERTY = "pant.reduce";
+
+    private final String targetName;
+    private final String dependencyName;
+    private final String impliedByName;
+
+    public RedundantDependency(final String targetName, final String dependencyName, final String impliedByName) {
+        this.targetName = targetName;
+        this.dependencyName = dependencyName;
+        this.impliedByName = impliedByName;
+    }
+
+    // Off unless pant.reduce turns it on. Each dependency removed is logged, so that it can be tidied
+    // out of the build file
+    public static void removeFrom(final Project project, final DependencyGraph dependencyGraph) {
+        final String reduce = project.getProperty(REDUCE_PROPERTY);
+        if (reduce == null || !Project.toBoolean(reduce)) {
+            return;
+        }
+
+        final List<RedundantDependency> redundantDependencies = dependencyGraph.reduceTransitively();
+        for (final RedundantDependency redundantDependency: redundantDependencies) {
+            project.log("Redundant dependency: " + redundantDependency, Project.MSG_INFO);
+        }
+        if (!redundantDependencies.isEmpty()) {
+            project.log("Removed " + redundantDependencies.size() + " redundant dependencies before scheduling",
+                        Project.MSG_INFO);
+        }
+    }
+
+    public String getTargetName() {
+        return targetName;
+    }
+
+    public String getDependencyName() {
+        return dependencyName;
+    }
+
+    public String getImpliedByName() {
+        return impliedByName;
+    }
+
+    @Override
+    public String toString() {
+        return targetName + " -> " + dependencyName + " (already implied by " + impliedByName + ")";
+    }
+}
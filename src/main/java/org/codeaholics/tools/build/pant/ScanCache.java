@@ -0,0 +1,242 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.AbstractFileSet;
+
+// Directory scans shared by every target in the build, keyed on everything which decides what they
+// match. A result is dropped when a target with an overlapping output starts or completes.
+public class ScanCache {
+    public static final String REFERENCE = "pant.scan.cache";
+
+    private static final String OUTPUTS_PROPERTY_PREFIX = "pant.outputs.";
+
+    private final Map<String, File[]> targetOutputs;
+    private final ConcurrentMap<Key, FutureTask<CachedDirectoryScanner>> scans =
+            new ConcurrentHashMap<Key, FutureTask<CachedDirectoryScanner>>();
+
+    public ScanCache(final Map<String, File[]> targetOutputs) {
+        this.targetOutputs = targetOutputs;
+    }
+
+    public ScanCache() {
+        this(Collections.<String, File[]>emptyMap());
+    }
+
+    // Shared for the whole build; the targets which write into scanned trees say which directories
+    // they write to with pant.outputs.<target>
+    public static ScanCache forBuild(final Project project) {
+        final ScanCache scanCache = new ScanCache(TargetFiles.read(project, OUTPUTS_PROPERTY_PREFIX));
+        project.addReference(REFERENCE, scanCache);
+        return scanCache;
+    }
+
+    // Each caller gets its own scanner, configured as the fileset would configure it, holding a copy
+    // of the shared results
+    public DirectoryScanner getDirectoryScanner(final AbstractFileSet fileSet, final Project project) {
+        final Key key = new Key(fileSet, project);
+
+        FutureTask<CachedDirectoryScanner> scan = scans.get(key);
+        if (scan == null) {
+            final FutureTask<CachedDirectoryScanner> newScan =
+                    new FutureTask<CachedDirectoryScanner>(new Callable<CachedDirectoryScanner>() {
+                        @Override
+                        public CachedDirectoryScanner call() {
+                            final CachedDirectoryScanner scanner = new CachedDirectoryScanner(null);
+                            setUp(scanner, fileSet, project);
+                            scanner.scan();
+                            return scanner;
+                        }
+                    });
+            scan = scans.putIfAbsent(key, newScan);
+            if (scan == null) {
+                scan = newScan;
+                scan.run();
+            }
+        }
+
+        final CachedDirectoryScanner scanner = new CachedDirectoryScanner(await(key, scan));
+        setUp(scanner, fileSet, project);
+        scanner.scan();
+        return scanner;
+    }
+
+    // Both before the target runs, for its own scans, and after, for everyone else's
+    public void invalidateOutputsOf(final String targetName) {
+        final File[] outputs = targetOutputs.get(targetName);
+        if (outputs != null) {
+            invalidate(outputs);
+        }
+    }
+
+    public void invalidate(final File[] outputDirs) {
+        for (final Iterator<Key> keys = scans.keySet().iterator(); keys.hasNext();) {
+            final Key key = keys.next();
+            for (final File outputDir: outputDirs) {
+                if (key.overlaps(outputDir)) {
+                    keys.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return scans.size();
+    }
+
+    private CachedDirectoryScanner await(final Key key, final FutureTask<CachedDirectoryScanner> scan) {
+        try {
+            return scan.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted waiting for a scan of " + key.dir);
+        } catch (final ExecutionException e) {
+            // so that the next to ask tries again
+            scans.remove(key, scan);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BuildException(e.getCause());
+        }
+    }
+
+    private static void setUp(final DirectoryScanner scanner, final AbstractFileSet fileSet, final Project project) {
+        fileSet.setupDirectoryScanner(scanner, project);
+        scanner.setFollowSymlinks(fileSet.isFollowSymlinks());
+        scanner.setMaxLevelsOfSymlinks(fileSet.getMaxLevelsOfSymlinks());
+        // missing directories are never cached
+        scanner.setErrorOnMissingDir(false);
+    }
+
+    private static final class Key {
+        private final File dir;
+        private final String path;
+        private final String[] includes;
+        private final String[] excludes;
+        private final boolean defaultExcludes;
+        private final boolean caseSensitive;
+        private final boolean followSymlinks;
+        private final int maxLevelsOfSymlinks;
+
+        public Key(final AbstractFileSet fileSet, final Project project) {
+            dir = fileSet.getDir(project).getAbsoluteFile();
+            path = dir.getPath();
+            includes = fileSet.mergeIncludes(project);
+            excludes = fileSet.mergeExcludes(project);
+            defaultExcludes = fileSet.getDefaultexcludes();
+            caseSensitive = fileSet.isCaseSensitive();
+            followSymlinks = fileSet.isFollowSymlinks();
+            maxLevelsOfSymlinks = fileSet.getMaxLevelsOfSymlinks();
+        }
+
+        // Either directory may hold the other
+        public boolean overlaps(final File outputDir) {
+            final String outputPath = outputDir.getAbsolutePath();
+            return isWithin(path, outputPath) || isWithin(outputPath, path);
+        }
+
+        private static boolean isWithin(final String path, final String parentPath) {
+            return path.equals(parentPath)
+                   || path.startsWith(parentPath.endsWith(File.separator) ? parentPath : parentPath + File.separator);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            return path.equals(other.path)
+                   && Arrays.equals(includes, other.includes)
+                   && Arrays.equals(excludes, other.excludes)
+                   && defaultExcludes == other.defaultExcludes
+                   && caseSensitive == other.caseSensitive
+                   && followSymlinks == other.followSymlinks
+                   && maxLevelsOfSymlinks == other.maxLevelsOfSymlinks;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Arrays.hashCode(includes);
+        }
+    }
+
+    // Walks the directory itself when it has no source; otherwise takes the source's results. Only
+    // the source ever walks, so the slow scan for things which weren't included is done there too
+    private static final class CachedDirectoryScanner extends DirectoryScanner {
+        private final CachedDirectoryScanner source;
+
+        public CachedDirectoryScanner(final CachedDirectoryScanner source) {
+            this.source = source;
+        }
+
+        @Override
+        public void scan() {
+            if (source == null) {
+                super.scan();
+                return;
+            }
+
+            synchronized (source) {
+                synchronized (this) {
+                    filesIncluded = copy(source.filesIncluded);
+                    filesNotIncluded = copy(source.filesNotIncluded);
+                    filesExcluded = copy(source.filesExcluded);
+                    filesDeselected = copy(source.filesDeselected);
+                    dirsIncluded = copy(source.dirsIncluded);
+                    dirsNotIncluded = copy(source.dirsNotIncluded);
+                    dirsExcluded = copy(source.dirsExcluded);
+                    dirsDeselected = copy(source.dirsDeselected);
+                    everythingIncluded = source.everythingIncluded;
+                    haveSlowResults = source.haveSlowResults;
+                }
+            }
+        }
+
+        @Override
+        protected void slowScan() {
+            if (source == null) {
+                super.slowScan();
+                return;
+            }
+
+            source.slowScan();
+            scan();
+        }
+
+        private static Vector<?> copy(final Vector<?> vector) {
+            return vector == null ? null : new Vector<Object>(vector);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.compilers.DefaultCompilerAdapter;
+import org.apache.tools.ant.types.Commandline;
+
+// A javac adapter which compiles in-process through javax.tools, reusing pooled file managers so
+// the jars on the classpath are already open. A manager whose jars have changed is discarded.
+public class SharedJavacAdapter extends DefaultCompilerAdapter {
+    private static final StandardLocation[] RESET_LOCATIONS = {
+        StandardLocation.CLASS_PATH,
+        StandardLocation.SOURCE_PATH,
+        StandardLocation.CLASS_OUTPUT,
+        StandardLocation.SOURCE_OUTPUT,
+        StandardLocation.ANNOTATION_PROCESSOR_PATH,
+        StandardLocation.PLATFORM_CLASS_PATH
+    };
+
+    // By encoding, which a file manager is made with
+    private static final ConcurrentMap<String, Queue<PooledFileManager>> POOL =
+            new ConcurrentHashMap<String, Queue<PooledFileManager>>();
+
+    @Override
+    public boolean execute() throws BuildException {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new BuildException("No system Java compiler is available; is this a JRE rather than a JDK?",
+                                     location);
+        }
+
+        attributes.log("Using shared javac compiler", Project.MSG_VERBOSE);
+        final Commandline commandline = setupModernJavacCommandlineSwitches(new Commandline());
+        final List<String> options = getOptions(commandline.getArguments());
+        logAndAddFilesToCompile(commandline);
+
+        final String poolKey = encoding == null ? "" : encoding;
+        final PooledFileManager fileManager = borrow(compiler, poolKey);
+        boolean reusable = false;
+        final StringWriter output = new StringWriter();
+        try {
+            final Boolean compiled = compiler.getTask(output, fileManager.get(), null, options, null,
+                                                      fileManager.get().getJavaFileObjectsFromFiles(
+                                                              Arrays.asList(compileList))).call();
+            reusable = true;
+            log(output.toString(), compiled ? Project.MSG_WARN : Project.MSG_ERR);
+            return compiled;
+        } catch (final IllegalArgumentException e) {
+            // an option javac doesn't know
+            throw new BuildException(e.getMessage(), e, location);
+        } finally {
+            if (reusable) {
+                fileManager.recordJars(getCompileClasspath().list());
+                release(poolKey, fileManager);
+            } else {
+                fileManager.close();
+            }
+        }
+    }
+
+    // The number of file managers waiting to be reused, across all encodings
+    public static int getIdleCount() {
+        int count = 0;
+        for (final Queue<PooledFileManager> idle: POOL.values()) {
+            count += idle.size();
+        }
+        return count;
+    }
+
+    private List<String> getOptions(final String[] arguments) {
+        final List<String> options = new ArrayList<String>();
+        for (final String argument: arguments) {
+            if (!argument.startsWith("-J")) {
+                options.add(argument);
+            }
+        }
+        return options;
+    }
+
+    private void log(final String output, final int priority) {
+        if (output.length() > 0) {
+            attributes.log(output.trim(), priority);
+        }
+    }
+
+    private PooledFileManager borrow(final JavaCompiler compiler, final String poolKey) {
+        final Queue<PooledFileManager> idle = POOL.get(poolKey);
+        PooledFileManager fileManager;
+        while (idle != null && (fileManager = idle.poll()) != null) {
+            if (fileManager.reset()) {
+                return fileManager;
+            }
+            fileManager.close();
+        }
+
+        final Charset charset = encoding == null ? null : Charset.forName(encoding);
+        return new PooledFileManager(compiler.getStandardFileManager(null, null, charset));
+    }
+
+    private static void release(final String poolKey, final PooledFileManager fileManager) {
+        Queue<PooledFileManager> idle = POOL.get(poolKey);
+        if (idle == null) {
+            final Queue<PooledFileManager> newIdle = new ConcurrentLinkedQueue<PooledFileManager>();
+            idle = POOL.putIfAbsent(poolKey, newIdle);
+            if (idle == null) {
+                idle = newIdle;
+            }
+        }
+        idle.offer(fileManager);
+    }
+
+    private static final class PooledFileManager {
+        private final StandardJavaFileManager fileManager;
+        private final Map<File, JarStamp> jarStamps = new HashMap<File, JarStamp>();
+
+        public PooledFileManager(final StandardJavaFileManager fileManager) {
+            this.fileManager = fileManager;
+        }
+
+        public StandardJavaFileManager get() {
+            return fileManager;
+        }
+
+        public void recordJars(final String[] classpath) {
+            for (final String element: classpath) {
+                final File file = new File(element);
+                if (file.isFile()) {
+                    jarStamps.put(file, new JarStamp(file));
+                }
+            }
+        }
+
+        // Back to the state of a new file manager, as far as the next compile can tell; false if a
+        // jar it has open has changed since
+        public boolean reset() {
+            for (final Entry<File, JarStamp> jar: jarStamps.entrySet()) {
+                if (!jar.getValue().matches(jar.getKey())) {
+                    return false;
+                }
+            }
+
+            try {
+                for (final JavaFileManager.Location location: RESET_LOCATIONS) {
+                    fileManager.setLocation(location, null);
+                }
+                return true;
+            } catch (final IOException e) {
+                return false;
+            } catch (final IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        public void close() {
+            try {
+                fileManager.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    // The length as well as the timestamp, since timestamps may only be to the second and a jar can
+    // be rebuilt within one. Java 6 has no way to get at the file's inode
+    private static final class JarStamp {
+        private final long length;
+        private final long lastModified;
+
+        public JarStamp(final File jar) {
+            length = jar.length();
+            lastModified = jar.lastModified();
+        }
+
+        public boolean matches(final File jar) {
+            return jar.lastModified() == lastModified && jar.length() == length;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+
+// Runs a task's independent jobs on the parallel executor's pool, with the calling thread working
+// through them too, so nested callers never wait on a busy pool. Elsewhere they run in turn.
+public final class SharedPool {
+    private SharedPool() {
+    }
+
+    // Null outside the parallel executor
+    public static ExecutorService get(final Project project) {
+        return (ExecutorService) project.getReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE);
+    }
+
+    public static Throwable[] runOnPool(final ExecutorService executorService, final List<? extends Runnable> jobs)
+            throws InterruptedException {
+        return runOnPool(executorService, jobs, jobs.size(), false);
+    }
+
+    // Returns what each job threw (a RuntimeException or an Error), or null for each which didn't. At
+    // most concurrency jobs run at once, counting the caller. Once a job has failed, those not yet
+    // started are skipped if stopOnFailure is set
+    public static Throwable[] runOnPool(final ExecutorService executorService, final List<? extends Runnable> jobs,
+                                        final int concurrency, final boolean stopOnFailure)
+            throws InterruptedException {
+        final Throwable[] failures = new Throwable[jobs.size()];
+        final AtomicInteger nextJob = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(jobs.size());
+
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int job;
+                while ((job = nextJob.getAndIncrement()) < jobs.size()) {
+                    try {
+                        jobs.get(job).run();
+                    } catch (final RuntimeException e) {
+                        failures[job] = e;
+                    } catch (final Error e) {
+                        failures[job] = e;
+                    } finally {
+                        if (failures[job] != null && stopOnFailure) {
+                            skipRemaining(jobs.size(), nextJob, finished);
+                        }
+                        finished.countDown();
+                    }
+                }
+            }
+        };
+
+        if (executorService != null) {
+            try {
+                final int helpers = Math.min(concurrency, jobs.size()) - 1;
+                for (int helper = 0; helper < helpers; helper++) {
+                    executorService.submit(worker);
+                }
+            } catch (final RejectedExecutionException e) {
+                // the build is shutting down; do what's left here
+            }
+        }
+
+        worker.run();
+        finished.await();
+        return failures;
+    }
+
+    // The first failure, in the order the jobs were given, as a BuildException unless it's an Error
+    public static void rethrowFirst(final Throwable[] failures, final Location location) {
+        for (final Throwable failure: failures) {
+            if (failure instanceof BuildException) {
+                throw (BuildException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                throw new BuildException(failure, location);
+            }
+        }
+    }
+
+    // Claims every job not yet started, counting each as finished
+    private static void skipRemaining(final int jobs, final AtomicInteger nextJob, final CountDownLatch finished) {
+        final int skippedFrom = nextJob.getAndSet(jobs);
+        for (int job = skippedFrom; job < jobs; job++) {
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Set;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+
+// Passes over the targets which a change didn't affect, and runs everything else as usual. A
+// skipped target is still started and finished, through a copy of it which runs no tasks, so that
+// listeners see the same events as for a target skipped by its if or unless attribute.
+public class SkippingAntWrapper implements AntWrapper {
+    private final AntWrapper delegate;
+    private final Set<String> skippedTargets;
+
+    public SkippingAntWrapper(final AntWrapper delegate, final Set<String> skippedTargets) {
+        this.delegate = delegate;
+        this.skippedTargets = skippedTargets;
+    }
+
+    @Override
+    public void executeTarget(final Target target) {
+        if (!skippedTargets.contains(target.getName())) {
+            delegate.executeTarget(target);
+            return;
+        }
+
+        new Target(target) {
+            @Override
+            public void execute() {
+                getProject().log(this, "Skipped because none of its inputs changed.", Project.MSG_VERBOSE);
+            }
+        }.performTasks();
+    }
+
+    @Override
+    public void topologicalSortProject(final Project project, final String[] roots, final boolean returnAll) {
+        delegate.topologicalSortProject(project, roots, returnAll);
+    }
+}
@@ -0,0 +1,210 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.UnknownElement;
+
+// Calls a target in a sub-project the way <antcall> does, but with copies of just the targets it
+// needs instead of a fresh parse of the build file.
+public class SubProjectCall implements Runnable {
+    private static final String IMPLICIT_TARGET_NAME = "";
+
+    // Only allowed while parsing, and the imported files' own top-level tasks are already in the
+    // implicit target anyway
+    private static final Set<String> PARSE_TIME_TASKS = new HashSet<String>(Arrays.asList("import", "include"));
+
+    private final Task caller;
+    private final String targetName;
+    private final Map<String, String> params;
+    private final boolean inheritAll;
+    private final boolean inheritRefs;
+
+    public SubProjectCall(final Task caller, final String targetName, final Map<String, String> params,
+                          final boolean inheritAll, final boolean inheritRefs) {
+        this.caller = caller;
+        this.targetName = targetName;
+        this.params = params;
+        this.inheritAll = inheritAll;
+        this.inheritRefs = inheritRefs;
+    }
+
+    @Override
+    public void run() {
+        final Project parent = caller.getProject();
+
+        @SuppressWarnings("unchecked")
+        final Map<String, Target> parentTargets = parent.getTargets();
+        if (!parentTargets.containsKey(targetName)) {
+            throw new BuildException("Target \"" + targetName + "\" does not exist in the project \""
+                                     + parent.getName() + "\".", caller.getLocation());
+        }
+
+        final Project subProject = createSubProject(parent);
+        copyTargets(parentTargets, subProject);
+
+        Throwable error = null;
+        subProject.fireSubBuildStarted();
+        try {
+            final Target implicitTarget = (Target) subProject.getTargets().get(IMPLICIT_TARGET_NAME);
+            if (implicitTarget != null) {
+                implicitTarget.execute();
+            }
+            subProject.executeTarget(targetName);
+        } catch (final BuildException e) {
+            error = e;
+            throw e;
+        } catch (final RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            subProject.fireSubBuildFinished(error);
+        }
+    }
+
+    private Project createSubProject(final Project parent) {
+        // copies component definitions, input and keep-going mode, and the sub-project executor
+        final Project subProject = parent.createSubProject();
+        subProject.setInputHandler(parent.getInputHandler());
+        subProject.setName(parent.getName());
+        if (parent.getDefaultTarget() != null) {
+            subProject.setDefault(parent.getDefaultTarget());
+        }
+
+        @SuppressWarnings("unchecked")
+        final Iterator<BuildListener> listeners = parent.getBuildListeners().iterator();
+        while (listeners.hasNext()) {
+            subProject.addBuildListener(listeners.next());
+        }
+
+        subProject.initProperties();
+        parent.copyUserProperties(subProject);
+        parent.copyInheritedProperties(subProject);
+        for (final Entry<String, String> param: params.entrySet()) {
+            subProject.setInheritedProperty(param.getKey(), param.getValue());
+        }
+
+        if (inheritAll) {
+            @SuppressWarnings("unchecked")
+            final Hashtable<String, Object> properties = parent.getProperties();
+            for (final Entry<String, Object> property: properties.entrySet()) {
+                final String name = property.getKey();
+                if (!name.equals(MagicNames.PROJECT_BASEDIR) && !name.equals(MagicNames.ANT_FILE)
+                    && subProject.getProperty(name) == null) {
+                    subProject.setNewProperty(name, property.getValue().toString());
+                }
+            }
+        }
+
+        subProject.setBaseDir(parent.getBaseDir());
+        final String antFile = parent.getProperty(MagicNames.ANT_FILE);
+        if (antFile != null) {
+            subProject.setUserProperty(MagicNames.ANT_FILE, antFile);
+        }
+
+        if (inheritRefs) {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> references = parent.getCopyOfReferences();
+            for (final Entry<String, Object> reference: references.entrySet()) {
+                if (subProject.getReference(reference.getKey()) == null) {
+                    subProject.addReference(reference.getKey(), reference.getValue());
+                }
+            }
+        }
+
+        return subProject;
+    }
+
+    private void copyTargets(final Map<String, Target> parentTargets, final Project subProject) {
+        final Set<String> needed = new HashSet<String>();
+        final Queue<String> pending = new ArrayDeque<String>();
+        pending.add(targetName);
+        if (parentTargets.containsKey(IMPLICIT_TARGET_NAME)) {
+            pending.add(IMPLICIT_TARGET_NAME);
+        }
+
+        String name;
+        while ((name = pending.poll()) != null) {
+            if (!needed.add(name)) {
+                continue;
+            }
+
+            final Target target = parentTargets.get(name);
+            if (target == null) {
+                // reported by the sub-project's own dependency check
+                continue;
+            }
+
+            @SuppressWarnings("unchecked")
+            final Enumeration<String> dependencies = target.getDependencies();
+            while (dependencies.hasMoreElements()) {
+                pending.add(dependencies.nextElement());
+            }
+
+            subProject.addTarget(name, copyTarget(target, subProject));
+        }
+    }
+
+    private static Target copyTarget(final Target target, final Project subProject) {
+        final Target copy = new Target();
+        copy.setName(target.getName());
+        copy.setProject(subProject);
+        copy.setLocation(target.getLocation());
+        copy.setIf(target.getIf());
+        copy.setUnless(target.getUnless());
+        copy.setDescription(target.getDescription());
+
+        @SuppressWarnings("unchecked")
+        final Enumeration<String> dependencies = target.getDependencies();
+        while (dependencies.hasMoreElements()) {
+            copy.addDependency(dependencies.nextElement());
+        }
+
+        for (final Task task: target.getTasks()) {
+            if (target.getName().equals(IMPLICIT_TARGET_NAME) && task instanceof UnknownElement
+                && PARSE_TIME_TASKS.contains(((UnknownElement) task).getTag())) {
+                continue;
+            }
+            if (!(task instanceof UnknownElement)) {
+                throw new BuildException("Unable to copy task " + task.getTaskName() + " in target "
+                                         + target.getName(), task.getLocation());
+            }
+
+            final UnknownElement taskCopy = ((UnknownElement) task).copy(subProject);
+            taskCopy.setOwningTarget(copy);
+            copy.addTask(taskCopy);
+        }
+
+        return copy;
+    }
+}
@@ -0,0 +1,123 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+
+// How long each target took on previous builds, averaged and kept in a properties file. Problems
+// with the file are logged rather than failing the build.
+public class TargetDurations {
+    public static final long UNKNOWN = -1;
+
+    private static final String DURATIONS_PROPERTY = "pant.durations";
+
+    private final Project project;
+    private final File file;
+    private final Properties durations = new Properties();
+
+    public TargetDurations(final Project project, final File file) {
+        this.project = project;
+        this.file = file;
+    }
+
+    public static TargetDurations load(final Project project, final File file) {
+        final TargetDurations targetDurations = new TargetDurations(project, file);
+
+        if (file.isFile()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                targetDurations.durations.load(in);
+            } catch (final IOException e) {
+                project.log("Unable to read target durations from " + file + ": " + e.getMessage(), Project.MSG_WARN);
+            } finally {
+                close(in);
+            }
+        }
+
+        return targetDurations;
+    }
+
+    // Off, and null, unless pant.durations names a file
+    public static TargetDurations forBuild(final Project project) {
+        final String durations = project.getProperty(DURATIONS_PROPERTY);
+        return durations == null ? null : load(project, project.resolveFile(durations));
+    }
+
+    public synchronized long getMillis(final String targetName) {
+        final String millis = durations.getProperty(targetName);
+        if (millis != null) {
+            try {
+                return Long.parseLong(millis);
+            } catch (final NumberFormatException e) {
+                // treat a mangled entry as missing
+            }
+        }
+        return UNKNOWN;
+    }
+
+    public synchronized void record(final String targetName, final long millis) {
+        final long previous = getMillis(targetName);
+        final long average = previous == UNKNOWN ? millis : (previous + millis) / 2;
+        durations.setProperty(targetName, String.valueOf(average));
+    }
+
+    // Skipping a target says nothing about how long it takes to run
+    public void recordCompleted(final Collection<DependencyGraphEntry> dependencyGraphEntries,
+                                final Set<String> skippedTargets) {
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraphEntries) {
+            final String targetName = dependencyGraphEntry.getTarget().getName();
+            if (dependencyGraphEntry.isTargetComplete() && !skippedTargets.contains(targetName)) {
+                record(targetName, TimeUnit.NANOSECONDS.toMillis(dependencyGraphEntry.getElapsedNanos(0)));
+            }
+        }
+    }
+
+    public synchronized void save() {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            durations.store(out, "pant target durations (ms)");
+        } catch (final IOException e) {
+            project.log("Unable to write target durations to " + file + ": " + e.getMessage(), Project.MSG_WARN);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+}
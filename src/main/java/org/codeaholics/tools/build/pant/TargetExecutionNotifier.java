@@ -18,5 +18,8 @@ package org.codeaholics.tools.build.pant;
 
 public interface TargetExecutionNotifier {
     public void notifyStarting(DependencyGraphEntry dependencyGraphEntry);
-    public void notifyComplete(DependencyGraphEntry dependencyGraphEntry);
+
+    // Returns the entry's fused successor if that is now to run on the same thread, already marked
+    // as running; otherwise null
+    public DependencyGraphEntry notifyComplete(DependencyGraphEntry dependencyGraphEntry);
 }
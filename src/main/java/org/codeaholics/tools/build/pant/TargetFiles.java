@@ -0,0 +1,48 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.tools.ant.Project;
+
+// The files and directories which build properties name for each target, as
+// <prefix><target>=path,path
+public final class TargetFiles {
+    private TargetFiles() {
+    }
+
+    public static Map<String, File[]> read(final Project project, final String prefix) {
+        final Map<String, File[]> targetFiles = new HashMap<String, File[]>();
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> properties = project.getProperties();
+        for (final Entry<String, Object> property: properties.entrySet()) {
+            if (property.getKey().startsWith(prefix)) {
+                final String[] names = property.getValue().toString().split(",");
+                final File[] files = new File[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    files[i] = project.resolveFile(names[i].trim());
+                }
+                targetFiles.put(property.getKey().substring(prefix.length()), files);
+            }
+        }
+        return targetFiles;
+    }
+}
@@ -0,0 +1,149 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.tools.ant.AntTypeDefinition;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.ComponentHelper;
+import org.apache.tools.ant.IntrospectionHelper;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.UnknownElement;
+
+// Loads the classes of upcoming targets' tasks and builds their introspection on a low-priority
+// thread. Best effort: nothing is configured, and targets which have started are skipped.
+public class TargetPreparer implements Runnable {
+    private static final String PREPARE_PROPERTY = "pant.prepare";
+    private static final int CAPACITY = 1024;
+
+    private final Project project;
+    private final BlockingQueue<DependencyGraphEntry> pending =
+            new ArrayBlockingQueue<DependencyGraphEntry>(CAPACITY);
+    private Thread thread;
+
+    public TargetPreparer(final Project project) {
+        this.project = project;
+    }
+
+    // On unless pant.prepare turns it off, in which case this is null
+    public static TargetPreparer startUnlessDisabled(final Project project) {
+        final String prepare = project.getProperty(PREPARE_PROPERTY);
+        if (prepare != null && !Project.toBoolean(prepare)) {
+            return null;
+        }
+
+        final TargetPreparer targetPreparer = new TargetPreparer(project);
+        targetPreparer.start();
+        return targetPreparer;
+    }
+
+    public void start() {
+        thread = new Thread(this, "pant-prepare");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public void stop() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void prepare(final DependencyGraphEntry dependencyGraphEntry) {
+        pending.offer(dependencyGraphEntry);
+    }
+
+    // Successors waiting only for an entry which has just started are the next to become ready, so
+    // they're the ones worth getting ready
+    public void prepareSuccessors(final DependencyGraphEntry dependencyGraphEntry) {
+        final List<DependencyGraphEntry> successors = dependencyGraphEntry.getSuccessorEntries();
+        for (int i = 0; i < successors.size(); i++) {
+            final DependencyGraphEntry successor = successors.get(i);
+            if (successor.getOutstandingPredecessors() == 1) {
+                prepare(successor);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                pending.take().prepare(this);
+            }
+        } catch (final InterruptedException e) {
+            // stopped
+        }
+    }
+
+    public void prepareNow(final Target target) {
+        final Task[] tasks = target.getTasks();
+        if (tasks == null) {
+            return;
+        }
+
+        for (final Task task: tasks) {
+            if (task instanceof UnknownElement) {
+                prepare((UnknownElement) task, null);
+            }
+        }
+    }
+
+    // parentClass is null for a task, whose class comes from its definition; a nested element's
+    // class comes from its parent
+    private void prepare(final UnknownElement element, final Class<?> parentClass) {
+        final Class<?> elementClass;
+        try {
+            elementClass = parentClass == null
+                    ? getComponentClass(element)
+                    : IntrospectionHelper.getHelper(parentClass).getElementType(element.getTag());
+            if (elementClass == null) {
+                return;
+            }
+            IntrospectionHelper.getHelper(elementClass);
+        } catch (final BuildException e) {
+            // not resolvable yet, or at all; the target will report it if it matters
+            return;
+        } catch (final LinkageError e) {
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        final List<UnknownElement> children = element.getChildren();
+        if (children != null) {
+            for (final UnknownElement child: children) {
+                prepare(child, elementClass);
+            }
+        }
+    }
+
+    private Class<?> getComponentClass(final UnknownElement element) {
+        final AntTypeDefinition definition = ComponentHelper.getComponentHelper(project)
+                .getDefinition(ProjectHelper.genComponentName(element.getNamespace(), element.getTag()));
+        return definition == null ? null : definition.getExposedClass(project);
+    }
+}
@@ -0,0 +1,222 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+
+// Splits test classes into shards of about equal running time, by the last run's reports, and calls
+// a target once per shard, concurrently. Each call gets pant.shard.index, pant.shard.count and
+// pant.shard.includesfile.
+public class TestShardsTask extends Task {
+    public static final String SHARD_INDEX_PROPERTY = "pant.shard.index";
+    public static final String SHARD_COUNT_PROPERTY = "pant.shard.count";
+    public static final String SHARD_INCLUDES_FILE_PROPERTY = "pant.shard.includesfile";
+
+    private static final long DEFAULT_MILLIS = 1000;
+
+    private final List<FileSet> fileSets = new ArrayList<FileSet>();
+    private String target;
+    private int shards = Runtime.getRuntime().availableProcessors();
+    private File historyDir;
+    private boolean inheritAll = true;
+    private boolean inheritRefs;
+
+    public void addFileset(final FileSet fileSet) {
+        fileSets.add(fileSet);
+    }
+
+    public void setTarget(final String target) {
+        this.target = target;
+    }
+
+    public void setShards(final int shards) {
+        this.shards = shards;
+    }
+
+    public void setHistoryDir(final File historyDir) {
+        this.historyDir = historyDir;
+    }
+
+    public void setInheritAll(final boolean inheritAll) {
+        this.inheritAll = inheritAll;
+    }
+
+    public void setInheritRefs(final boolean inheritRefs) {
+        this.inheritRefs = inheritRefs;
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        if (target == null) {
+            throw new BuildException("testshards requires a target", getLocation());
+        }
+        if (shards < 1) {
+            throw new BuildException("testshards requires at least one shard", getLocation());
+        }
+
+        final Map<String, Long> durations = estimateDurations(findTestFiles());
+        final List<List<String>> balanced = balance(durations, shards);
+        log("Split " + durations.size() + " test classes into " + balanced.size() + " shards", Project.MSG_VERBOSE);
+
+        final List<File> includesFiles = new ArrayList<File>();
+        try {
+            final List<SubProjectCall> calls = new ArrayList<SubProjectCall>();
+            for (final List<String> shard: balanced) {
+                final File includesFile = writeIncludesFile(shard);
+                includesFiles.add(includesFile);
+
+                final Map<String, String> params = new LinkedHashMap<String, String>();
+                params.put(SHARD_INDEX_PROPERTY, String.valueOf(calls.size() + 1));
+                params.put(SHARD_COUNT_PROPERTY, String.valueOf(balanced.size()));
+                params.put(SHARD_INCLUDES_FILE_PROPERTY, includesFile.getAbsolutePath());
+                calls.add(new SubProjectCall(this, target, params, inheritAll, inheritRefs));
+            }
+
+            runAll(calls);
+        } finally {
+            for (final File includesFile: includesFiles) {
+                includesFile.delete();
+            }
+        }
+    }
+
+    // Longest first, each onto whichever shard has least so far. Empty shards are left out, and the
+    // classes within a shard are kept in name order
+    public static List<List<String>> balance(final Map<String, Long> durations, final int shards) {
+        final List<Map.Entry<String, Long>> longestFirst = new ArrayList<Map.Entry<String, Long>>(durations.entrySet());
+        Collections.sort(longestFirst, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(final Map.Entry<String, Long> left, final Map.Entry<String, Long> right) {
+                final int byDuration = right.getValue().compareTo(left.getValue());
+                return byDuration != 0 ? byDuration : left.getKey().compareTo(right.getKey());
+            }
+        });
+
+        final List<List<String>> balanced = new ArrayList<List<String>>();
+        final long[] totals = new long[Math.min(shards, durations.size())];
+        for (int shard = 0; shard < totals.length; shard++) {
+            balanced.add(new ArrayList<String>());
+        }
+
+        for (final Map.Entry<String, Long> entry: longestFirst) {
+            int lightest = 0;
+            for (int shard = 1; shard < totals.length; shard++) {
+                if (totals[shard] < totals[lightest]) {
+                    lightest = shard;
+                }
+            }
+            balanced.get(lightest).add(entry.getKey());
+            totals[lightest] += entry.getValue();
+        }
+
+        for (final List<String> shard: balanced) {
+            Collections.sort(shard);
+        }
+        return balanced;
+    }
+
+    // Relative file names, as the <batchtest> fileset will see them, in the order they were found
+    private List<String> findTestFiles() {
+        final List<String> testFiles = new ArrayList<String>();
+        for (final FileSet fileSet: fileSets) {
+            final DirectoryScanner scanner = fileSet.getDirectoryScanner(getProject());
+            for (final String file: scanner.getIncludedFiles()) {
+                testFiles.add(file);
+            }
+        }
+        return testFiles;
+    }
+
+    private Map<String, Long> estimateDurations(final List<String> testFiles) {
+        final Map<String, Long> history = JUnitReportHistory.load(getProject(), historyDir);
+
+        long knownTotal = 0;
+        int known = 0;
+        for (final String testFile: testFiles) {
+            final Long millis = history.get(toClassName(testFile));
+            if (millis != null) {
+                knownTotal += millis;
+                known++;
+            }
+        }
+        final long average = known == 0 ? DEFAULT_MILLIS : Math.max(1, knownTotal / known);
+
+        final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+        for (final String testFile: testFiles) {
+            final Long millis = history.get(toClassName(testFile));
+            durations.put(testFile, millis == null ? average : millis);
+        }
+        return durations;
+    }
+
+    private static String toClassName(final String testFile) {
+        final int extension = testFile.lastIndexOf('.');
+        final String withoutExtension = extension < 0 ? testFile : testFile.substring(0, extension);
+        return withoutExtension.replace(File.separatorChar, '.').replace('/', '.');
+    }
+
+    private File writeIncludesFile(final List<String> shard) {
+        Writer writer = null;
+        try {
+            final File includesFile = File.createTempFile("pant-shard", ".txt");
+            writer = new FileWriter(includesFile);
+            for (final String testFile: shard) {
+                writer.write(testFile.replace(File.separatorChar, '/'));
+                writer.write('\n');
+            }
+            return includesFile;
+        } catch (final IOException e) {
+            throw new BuildException("Unable to write test shard: " + e.getMessage(), e, getLocation());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    // As <antcalls> does: on the executor's pool where there is one, with this thread helping
+    private void runAll(final List<SubProjectCall> calls) {
+        final Throwable[] failures;
+        try {
+            failures = SharedPool.runOnPool(SharedPool.get(getProject()), calls);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted waiting for test shards", getLocation());
+        }
+
+        SharedPool.rethrowFirst(failures, getLocation());
+    }
+}
@@ -0,0 +1,449 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+
+// A pool of worker JVMs (see PantWorker) and build agents for targets which can't share the build's
+// JVM. A target goes to the free worker which ran most of its dependencies.
+public class WorkerPool {
+    private static final String WORKERS_PROPERTY = "pant.workers";
+    private static final String WORKER_STDERR_PREFIX = "[worker] ";
+
+    private final Project project;
+    private final List<String> command;
+    // what a newly forked worker's project will have, give or take its own JVM's properties
+    private final Map<String, String> initialProperties;
+    // guarded by this
+    private final List<Worker> idleWorkers = new LinkedList<Worker>();
+    private final List<Worker> allWorkers = new LinkedList<Worker>();
+
+    public WorkerPool(final Project project, final int size) {
+        this.project = project;
+        command = createCommand();
+        initialProperties = PantWorker.getStringProperties(project);
+        for (int i = 0; i < size; i++) {
+            release(fork());
+        }
+    }
+
+    // Off, and null, unless some targets are isolated or the build is distributed. By default there's
+    // a forked worker for each isolated target, up to the number of threads, and pant.workers says
+    // otherwise; build agents add to those
+    public static WorkerPool forBuild(final Project project, final Set<String> isolatedTargets,
+                                      final int numberOfThreads, final boolean distributed) {
+        if (isolatedTargets.isEmpty() && !distributed) {
+            return null;
+        }
+
+        final String workers = project.getProperty(WORKERS_PROPERTY);
+        int size = Math.min(isolatedTargets.size(), numberOfThreads);
+        if (workers != null) {
+            try {
+                size = Integer.parseInt(workers);
+            } catch (final NumberFormatException e) {
+                throw new BuildException("Invalid " + WORKERS_PROPERTY + " count: " + workers, e);
+            }
+        }
+        return new WorkerPool(project, isolatedTargets.isEmpty() ? size : Math.max(1, size));
+    }
+
+    // Takes over a build agent which has connected and identified itself
+    public void register(final Socket socket) throws IOException {
+        final Worker worker = new Worker(socket);
+        synchronized (this) {
+            allWorkers.add(worker);
+        }
+        project.log("Build agent " + worker + " registered", Project.MSG_VERBOSE);
+        release(worker);
+    }
+
+    public synchronized int getWorkerCount() {
+        return allWorkers.size();
+    }
+
+    // Runs target in a worker on behalf of the calling thread, which waits for a free worker if need
+    // be. Output from the worker is logged against target
+    public void execute(final Target target) {
+        final Worker worker = acquire(target);
+        try {
+            worker.execute(target);
+        } finally {
+            if (worker.isAlive()) {
+                release(worker);
+            } else {
+                synchronized (this) {
+                    allWorkers.remove(worker);
+                }
+                if (worker.isForked()) {
+                    release(fork());
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        final List<Worker> workers;
+        synchronized (this) {
+            workers = new ArrayList<Worker>(allWorkers);
+            allWorkers.clear();
+            idleWorkers.clear();
+        }
+        for (final Worker worker: workers) {
+            worker.quit();
+        }
+    }
+
+    private synchronized Worker acquire(final Target target) {
+        boolean logged = false;
+        while (idleWorkers.isEmpty()) {
+            if (allWorkers.isEmpty() && !logged) {
+                project.log("Waiting for a build agent to run " + target.getName(), Project.MSG_INFO);
+                logged = true;
+            }
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BuildException("Interrupted waiting for a worker JVM", e, target.getLocation());
+            }
+        }
+
+        Worker best = null;
+        int bestScore = -1;
+        for (final Worker worker: idleWorkers) {
+            final int score = worker.countExecuted(target.getDependencies());
+            if (score > bestScore) {
+                best = worker;
+                bestScore = score;
+            }
+        }
+        idleWorkers.remove(best);
+        return best;
+    }
+
+    private synchronized void release(final Worker worker) {
+        idleWorkers.add(worker);
+        notifyAll();
+    }
+
+    private Worker fork() {
+        final Process process;
+        try {
+            process = new ProcessBuilder(command).start();
+        } catch (final IOException e) {
+            throw new BuildException("Unable to start a worker JVM", e);
+        }
+
+        final Worker worker = new Worker(process);
+        synchronized (this) {
+            allWorkers.add(worker);
+        }
+        return worker;
+    }
+
+    private static List<String> createCommand() {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(getClasspath(WorkerPool.class.getClassLoader()));
+        command.add(PantWorker.class.getName());
+        return command;
+    }
+
+    // The URLs of every URLClassLoader from the system loader down to loader, then the JVM's own
+    // classpath for anything the system loader doesn't expose as URLs
+    public static String getClasspath(final ClassLoader loader) {
+        final List<ClassLoader> loaders = new LinkedList<ClassLoader>();
+        for (ClassLoader current = loader; current != null; current = current.getParent()) {
+            loaders.add(0, current);
+        }
+
+        final Set<String> entries = new LinkedHashSet<String>();
+        for (final ClassLoader current: loaders) {
+            if (current instanceof URLClassLoader) {
+                for (final URL url: ((URLClassLoader) current).getURLs()) {
+                    if ("file".equals(url.getProtocol())) {
+                        try {
+                            entries.add(new File(url.toURI()).getPath());
+                        } catch (final URISyntaxException e) {
+                            entries.add(url.getPath());
+                        }
+                    }
+                }
+            }
+        }
+        for (final String entry: System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (entry.length() > 0) {
+                entries.add(new File(entry).getAbsolutePath());
+            }
+        }
+
+        final StringBuilder classpath = new StringBuilder();
+        for (final String entry: entries) {
+            classpath.append(classpath.length() == 0 ? "" : File.pathSeparator).append(entry);
+        }
+        return classpath.toString();
+    }
+
+    private final class Worker {
+        // exactly one of these is set
+        private final Process process;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        // the values most recently sent, so each RUN need only carry what's changed
+        private final Map<String, String> sentProperties = new HashMap<String, String>(initialProperties);
+        private final Set<String> executedTargets = new HashSet<String>();
+        private boolean initialised;
+        private volatile boolean alive = true;
+
+        public Worker(final Process process) {
+            this.process = process;
+            socket = null;
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            pumpStderr();
+            init();
+        }
+
+        public Worker(final Socket socket) throws IOException {
+            process = null;
+            this.socket = socket;
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            init();
+        }
+
+        private void init() {
+            try {
+                out.writeByte(PantWorker.INIT);
+                PantWorker.writeString(out, getBuildFile());
+                PantWorker.writeProperties(out, getStringUserProperties());
+                out.flush();
+            } catch (final IOException e) {
+                kill();
+                throw new BuildException("Unable to start a worker JVM", e);
+            }
+        }
+
+        public boolean isAlive() {
+            return alive;
+        }
+
+        public boolean isForked() {
+            return process != null;
+        }
+
+        public int countExecuted(final Enumeration<?> targetNames) {
+            int count = 0;
+            while (targetNames.hasMoreElements()) {
+                if (executedTargets.contains(targetNames.nextElement())) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public void execute(final Target target) {
+            try {
+                if (!initialised) {
+                    try {
+                        awaitResponse(target, "Worker JVM failed to load the build file: ");
+                    } catch (final BuildException e) {
+                        // it has nothing to run targets from, so it's replaced rather than reused
+                        kill();
+                        throw e;
+                    }
+                    initialised = true;
+                }
+
+                out.writeByte(PantWorker.RUN);
+                PantWorker.writeProperties(out, getChangedProperties());
+                PantWorker.writeString(out, target.getName());
+                out.flush();
+                awaitResponse(target, "");
+                executedTargets.add(target.getName());
+            } catch (final IOException e) {
+                kill();
+                throw new BuildException("Worker JVM " + this + " running " + target.getName()
+                                         + " exited unexpectedly", e, target.getLocation());
+            }
+        }
+
+        private void awaitResponse(final Target target, final String failurePrefix) throws IOException {
+            final Map<String, Task> tasks = new HashMap<String, Task>();
+            while (true) {
+                final int type = in.readUnsignedByte();
+                switch (type) {
+                case PantWorker.LOG:
+                    final int priority = in.readInt();
+                    final String taskName = PantWorker.readString(in);
+                    final String message = PantWorker.readString(in);
+                    if (taskName.length() == 0) {
+                        project.log(target, message, priority);
+                    } else {
+                        project.log(getTask(tasks, target, taskName), message, priority);
+                    }
+                    break;
+                case PantWorker.PROPERTY:
+                    final String name = PantWorker.readString(in);
+                    final String value = PantWorker.readString(in);
+                    project.setNewProperty(name, value);
+                    sentProperties.put(name, value);
+                    break;
+                case PantWorker.DONE:
+                    return;
+                case PantWorker.FAILED:
+                    throw new BuildException(failurePrefix + PantWorker.readString(in), target.getLocation());
+                default:
+                    kill();
+                    throw new BuildException("Unexpected message from worker JVM: " + type, target.getLocation());
+                }
+            }
+        }
+
+        // Stands in for the worker's task, so that loggers attribute the output the same way they
+        // would if it had run here
+        private Task getTask(final Map<String, Task> tasks, final Target target, final String taskName) {
+            Task task = tasks.get(taskName);
+            if (task == null) {
+                task = new Task() {};
+                task.setProject(project);
+                task.setOwningTarget(target);
+                task.setTaskName(taskName);
+                tasks.put(taskName, task);
+            }
+            return task;
+        }
+
+        private Map<String, String> getChangedProperties() {
+            final Map<String, String> changed = new HashMap<String, String>();
+            for (final Entry<String, String> entry: PantWorker.getStringProperties(project).entrySet()) {
+                if (!entry.getValue().equals(sentProperties.get(entry.getKey()))) {
+                    changed.put(entry.getKey(), entry.getValue());
+                    sentProperties.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return changed;
+        }
+
+        // ant's launcher sets ant.file, but the parser itself only sets ant.file.<project name>
+        private String getBuildFile() {
+            final String buildFile = project.getProperty(MagicNames.ANT_FILE);
+            if (buildFile != null) {
+                return buildFile;
+            }
+            return project.getProperty(MagicNames.ANT_FILE + "." + project.getName());
+        }
+
+        private Map<String, String> getStringUserProperties() {
+            final Map<String, String> userProperties = new HashMap<String, String>();
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> properties = project.getUserProperties();
+            for (final Entry<String, Object> entry: properties.entrySet()) {
+                if (entry.getValue() instanceof String) {
+                    userProperties.put(entry.getKey(), (String) entry.getValue());
+                }
+            }
+            return userProperties;
+        }
+
+        private void pumpStderr() {
+            final Thread pump = new Thread("pant-worker-stderr") {
+                @Override
+                public void run() {
+                    final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+                    try {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            project.log(WORKER_STDERR_PREFIX + line, Project.MSG_INFO);
+                        }
+                    } catch (final IOException e) {
+                        // the worker has gone
+                    }
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        public void quit() {
+            if (!alive) {
+                return;
+            }
+            try {
+                out.writeByte(PantWorker.QUIT);
+                out.flush();
+                if (process != null) {
+                    process.waitFor();
+                }
+            } catch (final IOException e) {
+                // already gone
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                kill();
+            }
+        }
+
+        private void kill() {
+            alive = false;
+            if (process != null) {
+                process.destroy();
+            } else {
+                try {
+                    socket.close();
+                } catch (final IOException e) {
+                    // nothing more we can do
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return process != null ? "forked" : socket.getRemoteSocketAddress().toString();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+// Writes a zip archive from entries which are already compressed, with their CRCs and sizes known,
+// so no data descriptors are needed. Like ant 1.8 it stops short of Zip64.
+public class ZipEntryWriter {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int UNIX_PLATFORM = 3;
+    private static final int MS_DOS_DIRECTORY = 0x10;
+    private static final int MAX_ENTRIES = 0xffff;
+    private static final long MAX_OFFSET = 0xffffffffL;
+    private static final byte[] NO_EXTRA = new byte[0];
+
+    private final OutputStream out;
+    private final List<CentralEntry> written = new ArrayList<CentralEntry>();
+    private final byte[] buffer = new byte[46];
+    private long offset;
+
+    public ZipEntryWriter(final OutputStream out) {
+        this.out = out;
+    }
+
+    // data is the compressed form for ZipEntry.DEFLATED, the contents themselves for ZipEntry.STORED;
+    // mode holds the unix file type and permissions, as in ZipFileSet's filemode and dirmode
+    public void write(final String name, final int method, final byte[] data, final int dataLength, final long crc,
+                      final long size, final long time, final int mode, final byte[] extra) throws IOException {
+        if (written.size() == MAX_ENTRIES) {
+            throw new IOException("More than " + MAX_ENTRIES + " entries would need Zip64");
+        }
+        if (offset > MAX_OFFSET || size > MAX_OFFSET) {
+            throw new IOException("More than 4GB would need Zip64");
+        }
+
+        final CentralEntry entry = new CentralEntry();
+        entry.name = encode(name);
+        entry.flags = isAscii(name) ? 0 : UTF8_FLAG;
+        entry.version = method == ZipEntry.DEFLATED ? VERSION_DEFLATED : VERSION_STORED;
+        entry.method = method;
+        entry.dosTime = toDosTime(time);
+        entry.crc = crc;
+        entry.compressedSize = dataLength;
+        entry.size = size;
+        entry.externalAttributes = ((long) mode << 16) | (name.endsWith("/") ? MS_DOS_DIRECTORY : 0);
+        entry.offset = offset;
+        entry.extra = extra == null ? NO_EXTRA : extra;
+
+        int position = putInt(buffer, 0, LOCAL_HEADER_SIGNATURE);
+        position = putShort(buffer, position, entry.version);
+        position = putShort(buffer, position, entry.flags);
+        position = putShort(buffer, position, entry.method);
+        position = putInt(buffer, position, entry.dosTime);
+        position = putInt(buffer, position, entry.crc);
+        position = putInt(buffer, position, entry.compressedSize);
+        position = putInt(buffer, position, entry.size);
+        position = putShort(buffer, position, entry.name.length);
+        position = putShort(buffer, position, entry.extra.length);
+        out.write(buffer, 0, position);
+        out.write(entry.name);
+        out.write(entry.extra);
+        out.write(data, 0, dataLength);
+
+        offset += position + entry.name.length + entry.extra.length + dataLength;
+        written.add(entry);
+    }
+
+    // Writes the central directory; the stream is left for the caller to close
+    public void finish() throws IOException {
+        if (offset > MAX_OFFSET) {
+            throw new IOException("More than 4GB would need Zip64");
+        }
+
+        final long directoryOffset = offset;
+        for (final CentralEntry entry: written) {
+            int position = putInt(buffer, 0, CENTRAL_HEADER_SIGNATURE);
+            position = putShort(buffer, position, (UNIX_PLATFORM << 8) | VERSION_DEFLATED);
+            position = putShort(buffer, position, entry.version);
+            position = putShort(buffer, position, entry.flags);
+            position = putShort(buffer, position, entry.method);
+            position = putInt(buffer, position, entry.dosTime);
+            position = putInt(buffer, position, entry.crc);
+            position = putInt(buffer, position, entry.compressedSize);
+            position = putInt(buffer, position, entry.size);
+            position = putShort(buffer, position, entry.name.length);
+            position = putShort(buffer, position, entry.extra.length);
+            // comment length, disk number, internal attributes
+            position = putShort(buffer, position, 0);
+            position = putShort(buffer, position, 0);
+            position = putShort(buffer, position, 0);
+            position = putInt(buffer, position, entry.externalAttributes);
+            position = putInt(buffer, position, entry.offset);
+            out.write(buffer, 0, position);
+            out.write(entry.name);
+            out.write(entry.extra);
+            offset += position + entry.name.length + entry.extra.length;
+        }
+
+        if (offset > MAX_OFFSET) {
+            throw new IOException("More than 4GB would need Zip64");
+        }
+
+        int position = putInt(buffer, 0, END_SIGNATURE);
+        // this disk, and the disk with the central directory
+        position = putShort(buffer, position, 0);
+        position = putShort(buffer, position, 0);
+        position = putShort(buffer, position, written.size());
+        position = putShort(buffer, position, written.size());
+        position = putInt(buffer, position, offset - directoryOffset);
+        position = putInt(buffer, position, directoryOffset);
+        // comment length
+        position = putShort(buffer, position, 0);
+        out.write(buffer, 0, position);
+        out.flush();
+    }
+
+    public int getEntryCount() {
+        return written.size();
+    }
+
+    private static byte[] encode(final String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+    private static boolean isAscii(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Local time, to two seconds, from 1980 on
+    private static long toDosTime(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25)
+               | (calendar.get(Calendar.MONTH) + 1) << 21
+               | calendar.get(Calendar.DAY_OF_MONTH) << 16
+               | calendar.get(Calendar.HOUR_OF_DAY) << 11
+               | calendar.get(Calendar.MINUTE) << 5
+               | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static int putShort(final byte[] bytes, final int position, final int value) {
+        bytes[position] = (byte) value;
+        bytes[position + 1] = (byte) (value >> 8);
+        return position + 2;
+    }
+
+    private static int putInt(final byte[] bytes, final int position, final long value) {
+        bytes[position] = (byte) value;
+        bytes[position + 1] = (byte) (value >> 8);
+        bytes[position + 2] = (byte) (value >> 16);
+        bytes[position + 3] = (byte) (value >> 24);
+        return position + 4;
+    }
+
+    private static final class CentralEntry {
+        private byte[] name;
+        private int flags;
+        private int version;
+        private int method;
+        private long dosTime;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long externalAttributes;
+        private long offset;
+        private byte[] extra;
+    }
+}
@@ -0,0 +1,159 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.codeaholics.tools.build.pant.AntTestHelper.configureProject;
+import static org.codeaholics.tools.build.pant.AntTestHelper.writeBuildFile;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AgentListenerTest {
+    private static final String TOKEN = "secret";
+    private static final int AGENTS = 2;
+
+    private File buildFile;
+    private Project project;
+    private WorkerPool workerPool;
+    private AgentListener agentListener;
+    private List<Process> agents;
+    private List<String> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        buildFile = writeBuildFile("pant-agents",
+                "<project name='agents'>"
+                + "<target name='first'><echo>first on agent ${agent.id}</echo></target>"
+                + "<target name='second' depends='first'><echo>second on agent ${agent.id}</echo></target>"
+                + "</project>");
+
+        final MessageRecorder messageRecorder = MessageRecorder.allMessages();
+        messages = messageRecorder.getMessages();
+        project = configureProject(buildFile, messageRecorder);
+
+        project.setProperty("pant.agents", "0");
+        project.setProperty("pant.agents.token", TOKEN);
+        workerPool = new WorkerPool(project, 0);
+        agentListener = AgentListener.startFor(project, workerPool);
+
+        agents = new ArrayList<Process>();
+        for (int agent = 0; agent < AGENTS; agent++) {
+            agents.add(startAgent(agent));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        agentListener.stop();
+        workerPool.shutdown();
+        for (final Process agent: agents) {
+            agent.destroy();
+        }
+        buildFile.delete();
+    }
+
+    @Test
+    public void testPrefersTheAgentWhichRanTheDependencies() throws Exception {
+        while (workerPool.getWorkerCount() < AGENTS) {
+            Thread.sleep(10);
+        }
+
+        workerPool.execute(getTarget("first"));
+        // whichever agent wasn't used for first would be next in line
+        workerPool.execute(getTarget("second"));
+
+        final String firstAgent = findAgent("first");
+        assertThat(messages, hasItem("second on agent " + firstAgent));
+    }
+
+    @Test
+    public void testIsOffUnlessAnAddressIsGiven() {
+        final Project undistributed = new Project();
+
+        assertThat(AgentListener.isDistributed(undistributed), equalTo(false));
+        assertThat(AgentListener.startFor(undistributed, workerPool), nullValue());
+        assertThat(AgentListener.isDistributed(project), equalTo(true));
+    }
+
+    @Test
+    public void testTurnsAwayAgentsWithTheWrongToken() throws Exception {
+        final Socket socket = new Socket("127.0.0.1", agentListener.getPort());
+        try {
+            PantWorker.writeString(new DataOutputStream(socket.getOutputStream()), "wrong");
+            assertThat(socket.getInputStream().read(), equalTo(-1));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testTurnsAwayAgentsWithPartOfTheToken() throws Exception {
+        final Socket socket = new Socket("127.0.0.1", agentListener.getPort());
+        try {
+            PantWorker.writeString(new DataOutputStream(socket.getOutputStream()), TOKEN.substring(1));
+            assertThat(socket.getInputStream().read(), equalTo(-1));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(expected = BuildException.class)
+    public void testRefusesToListenBeyondThisMachineWithoutAToken() {
+        new AgentListener(project, workerPool, "0.0.0.0:0", null);
+    }
+
+    private Process startAgent(final int agent) throws Exception {
+        final List<String> command = Arrays.asList(
+                new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                "-Dagent.id=" + agent,
+                "-cp", WorkerPool.getClasspath(getClass().getClassLoader()),
+                PantWorker.class.getName(),
+                PantWorker.CONNECT_OPTION, "127.0.0.1:" + agentListener.getPort(), TOKEN);
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    private String findAgent(final String targetName) {
+        final String prefix = targetName + " on agent ";
+        synchronized (messages) {
+            for (final String message: messages) {
+                if (message.startsWith(prefix)) {
+                    return message.substring(prefix.length());
+                }
+            }
+        }
+        throw new AssertionError(targetName + " never ran: " + messages);
+    }
+
+    private Target getTarget(final String targetName) {
+        return (Target) project.getTargets().get(targetName);
+    }
+}
@@ -0,0 +1,155 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.codeaholics.tools.build.pant.AntTestHelper.configureProject;
+import static org.codeaholics.tools.build.pant.AntTestHelper.writeBuildFile;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AntCallsTaskTest {
+    private static final int CALLS = 4;
+    private static final long SLEEP_MILLIS = 300;
+
+    private File buildFile;
+    private Project project;
+    private ExecutorService executorService;
+    private List<String> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        final StringBuilder calls = new StringBuilder();
+        for (int call = 0; call < CALLS; call++) {
+            calls.append("<antcall target='package'><param name='locale' value='locale").append(call)
+                 .append("'/></antcall>");
+        }
+
+        buildFile = writeBuildFile("pant-antcalls",
+                "<project name='antcalls'>"
+                + "<taskdef name='antcalls' classname='" + AntCallsTask.class.getName() + "'/>"
+                + "<property name='locale' value='default'/>"
+                + "<property name='product' value='widget'/>"
+                + "<target name='prepare'><echo>preparing ${locale}</echo></target>"
+                + "<target name='package' depends='prepare'>"
+                + "<sleep milliseconds='" + SLEEP_MILLIS + "'/>"
+                + "<echo>packaging ${product} for ${locale}</echo></target>"
+                + "<target name='broken'><fail>broken ${locale}</fail></target>"
+                + "<target name='all'><antcalls>" + calls + "</antcalls></target>"
+                + "<target name='some-broken'><antcalls>"
+                + "<antcall target='broken'><param name='locale' value='first'/></antcall>"
+                + "<antcall target='package'/>"
+                + "<antcall target='broken'><param name='locale' value='second'/></antcall>"
+                + "</antcalls></target>"
+                + "</project>");
+
+        final MessageRecorder messageRecorder = MessageRecorder.allMessages();
+        messages = messageRecorder.getMessages();
+        project = configureProject(buildFile, messageRecorder);
+
+        executorService = Executors.newFixedThreadPool(CALLS);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+        buildFile.delete();
+    }
+
+    @Test
+    public void testRunsCallsConcurrentlyOnTheSharedPool() {
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        final long start = System.nanoTime();
+        project.executeTarget("all");
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        for (int call = 0; call < CALLS; call++) {
+            assertThat(messages.contains("preparing locale" + call), equalTo(true));
+            assertThat(messages.contains("packaging widget for locale" + call), equalTo(true));
+        }
+        assertThat(elapsedMillis, lessThan(CALLS * SLEEP_MILLIS));
+    }
+
+    @Test
+    public void testRunsCallsInTheCallingThreadWithoutAPool() {
+        project.executeTarget("all");
+
+        for (int call = 0; call < CALLS; call++) {
+            assertThat(messages.contains("packaging widget for locale" + call), equalTo(true));
+        }
+    }
+
+    @Test
+    public void testFinishesEveryCallAndReportsTheFirstFailure() {
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        try {
+            project.executeTarget("some-broken");
+            fail();
+        } catch (final BuildException e) {
+            assertThat(e.getMessage(), containsString("broken first"));
+        }
+
+        assertThat(messages.contains("packaging widget for default"), equalTo(true));
+    }
+
+    @Test
+    public void testCallsTargetsOfImportedFiles() throws Exception {
+        final File fragment = writeBuildFile("pant-antcalls-fragment",
+                "<project name='fragment'>"
+                + "<property name='product' value='gadget'/>"
+                + "<target name='package'><echo>packaging ${product} for ${locale}</echo></target>"
+                + "</project>");
+        final File importingBuildFile = writeBuildFile("pant-antcalls-importing",
+                "<project name='importing'>"
+                + "<taskdef name='antcalls' classname='" + AntCallsTask.class.getName() + "'/>"
+                + "<import file='" + fragment.getAbsolutePath() + "'/>"
+                + "<target name='all'><antcalls>"
+                + "<antcall target='package'><param name='locale' value='first'/></antcall>"
+                + "<antcall target='package'><param name='locale' value='second'/></antcall>"
+                + "</antcalls></target>"
+                + "</project>");
+        try {
+            final MessageRecorder messageRecorder = MessageRecorder.allMessages();
+            final Project importingProject = configureProject(importingBuildFile, messageRecorder);
+            importingProject.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+            importingProject.executeTarget("all");
+
+            assertThat(messageRecorder.getMessages().contains("packaging gadget for first"), equalTo(true));
+            assertThat(messageRecorder.getMessages().contains("packaging gadget for second"), equalTo(true));
+        } finally {
+            fragment.delete();
+            importingBuildFile.delete();
+        }
+    }
+}
@@ -16,6 +16,13 @@ package org.codeaholics.tools.build.pant;
  *   limitations under the License.
  */
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
 import org.apache.tools.ant.Target;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -37,4 +44,24 @@ public class AntTestHelper {
         return target;
     }
 
+    // A temporary build file, for the test to delete
+    public static File writeBuildFile(final String prefix, final String content) throws IOException {
+        final File buildFile = File.createTempFile(prefix, ".xml");
+        final FileWriter writer = new FileWriter(buildFile);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return buildFile;
+    }
+
+    // A real project, parsed from the build file, with the listener attached before anything is logged
+    public static Project configureProject(final File buildFile, final BuildListener listener) {
+        final Project project = new Project();
+        project.addBuildListener(listener);
+        project.init();
+        ProjectHelper.configureProject(project, buildFile);
+        return project;
+    }
 }
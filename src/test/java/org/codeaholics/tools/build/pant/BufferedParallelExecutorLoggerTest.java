@@ -0,0 +1,181 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferedParallelExecutorLoggerTest {
+    private Project project;
+    private BufferedParallelExecutorLogger logger;
+    private ByteArrayOutputStream output;
+    private ExecutorService threadA;
+    private ExecutorService threadB;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+        output = new ByteArrayOutputStream();
+
+        logger = new BufferedParallelExecutorLogger();
+        logger.setOutputPrintStream(new PrintStream(output, true));
+        logger.setErrorPrintStream(new PrintStream(output, true));
+        logger.setMessageOutputLevel(Project.MSG_INFO);
+
+        threadA = Executors.newSingleThreadExecutor();
+        threadB = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        threadA.shutdownNow();
+        threadB.shutdownNow();
+    }
+
+    @Test
+    public void testWritesEachTargetsOutputAsOneBlock() throws Exception {
+        final Target targetA = createTarget("targetA");
+        final Target targetB = createTarget("targetB");
+        final Task taskA = createTask(targetA);
+        final Task taskB = createTask(targetB);
+
+        on(threadA, targetStarted(targetA));
+        on(threadB, targetStarted(targetB));
+        on(threadA, messageLogged(taskA, "message a1"));
+        on(threadB, messageLogged(taskB, "message b1"));
+        on(threadA, messageLogged(taskA, "message a2"));
+        on(threadB, messageLogged(taskB, "message b2"));
+        on(threadA, targetFinished(targetA));
+        on(threadB, targetFinished(targetB));
+
+        logger.buildFinished(new BuildEvent(project));
+
+        final String log = output.toString();
+        assertThat(log.indexOf("+ targetB"), lessThan(log.indexOf("message a1")));
+        assertThat(log.indexOf("message a1"), lessThan(log.indexOf("message a2")));
+        assertThat(log.indexOf("message a2"), lessThan(log.indexOf("- targetA")));
+        assertThat(log.indexOf("- targetA"), lessThan(log.indexOf("message b1")));
+        assertThat(log.indexOf("message b1"), lessThan(log.indexOf("message b2")));
+        assertThat(log.indexOf("message b2"), lessThan(log.indexOf("- targetB")));
+        assertThat(log.indexOf("- targetB"), lessThan(log.indexOf("BUILD SUCCESSFUL")));
+    }
+
+    @Test
+    public void testFilesOutputUnderTheTargetItBelongsToWhicheverThreadLogsIt() throws Exception {
+        final Target targetA = createTarget("targetA");
+        final Target targetB = createTarget("targetB");
+
+        on(threadA, targetStarted(targetA));
+        on(threadB, targetStarted(targetB));
+        // work which targetA has handed to the thread running targetB
+        on(threadB, messageLogged(createTask(targetA), "handed off by a"));
+        on(threadB, messageLogged(createTask(targetB), "message b"));
+        on(threadB, targetFinished(targetB));
+        on(threadA, targetFinished(targetA));
+
+        logger.buildFinished(new BuildEvent(project));
+
+        final String log = output.toString();
+        assertThat(log.indexOf("message b"), lessThan(log.indexOf("- targetB")));
+        assertThat(log.indexOf("- targetB"), lessThan(log.indexOf("handed off by a")));
+        assertThat(log.indexOf("handed off by a"), lessThan(log.indexOf("- targetA")));
+    }
+
+    @Test(timeout = 60000)
+    public void testFlushesATargetWhichHasGoneQuiet() throws Exception {
+        logger.buildFinished(new BuildEvent(project));
+        output.reset();
+        logger = new BufferedParallelExecutorLogger(TimeUnit.MILLISECONDS.toNanos(200));
+        logger.setOutputPrintStream(new PrintStream(output, true));
+        logger.setErrorPrintStream(new PrintStream(output, true));
+        logger.setMessageOutputLevel(Project.MSG_INFO);
+
+        final Target target = createTarget("quiet");
+        on(threadA, targetStarted(target));
+        on(threadA, messageLogged(createTask(target), "before the silence"));
+
+        // nothing more is logged, so only the consumer's idle check can write it
+        while (!output.toString().contains("before the silence")) {
+            Thread.sleep(50);
+        }
+
+        on(threadA, targetFinished(target));
+        logger.buildFinished(new BuildEvent(project));
+    }
+
+    private void on(final ExecutorService thread, final Runnable event) throws Exception {
+        thread.submit(event).get();
+    }
+
+    private Runnable targetStarted(final Target target) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                logger.targetStarted(new BuildEvent(target));
+            }
+        };
+    }
+
+    private Runnable targetFinished(final Target target) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                logger.targetFinished(new BuildEvent(target));
+            }
+        };
+    }
+
+    private Runnable messageLogged(final Task task, final String message) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                final BuildEvent event = new BuildEvent(task);
+                event.setMessage(message, Project.MSG_INFO);
+                logger.messageLogged(event);
+            }
+        };
+    }
+
+    private Target createTarget(final String targetName) {
+        final Target target = new Target();
+        target.setName(targetName);
+        target.setProject(project);
+        return target;
+    }
+
+    private Task createTask(final Target target) {
+        final Task task = new Task() {};
+        task.setProject(project);
+        task.setOwningTarget(target);
+        task.setTaskName("echo");
+        return task;
+    }
+}
@@ -0,0 +1,162 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.Target;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangedFilesTest {
+    private File baseDir;
+    private File changes;
+    private Project project;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = File.createTempFile("pant-changed", "");
+        baseDir.delete();
+        baseDir.mkdirs();
+        changes = new File(baseDir, "changes.txt");
+
+        final File buildFile = new File(baseDir, "build.xml");
+        final FileWriter writer = new FileWriter(buildFile);
+        writer.write("<project name='changed'>"
+                     + "<property name='pant.inputs.compile' value='src/main'/>"
+                     + "<property name='pant.inputs.test' value='src/test'/>"
+                     + "<property name='pant.inputs.docs' value='docs, README'/>"
+                     + "<property name='pant.inputs.package' value='package.xml'/>"
+                     + "<target name='init'><property name='ran.init' value='true'/></target>"
+                     + "<target name='compile' depends='init'><property name='ran.compile' value='true'/></target>"
+                     + "<target name='test' depends='compile'><property name='ran.test' value='true'/></target>"
+                     + "<target name='docs' depends='init'><property name='ran.docs' value='true'/></target>"
+                     + "<target name='package' depends='test, docs'>"
+                     + "<property name='ran.package' value='true'/>"
+                     + "</target>"
+                     + "</project>");
+        writer.close();
+
+        project = new Project();
+        project.init();
+        ProjectHelper.configureProject(project, buildFile);
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file: baseDir.listFiles()) {
+            file.delete();
+        }
+        baseDir.delete();
+    }
+
+    @Test
+    public void testMatchesInputsAndFilesBeneathThem() throws Exception {
+        writeChanges("src/main/Foo.java", "", "  README  ", new File(baseDir, "lib/ant.jar").getPath());
+        final ChangedFiles changedFiles = ChangedFiles.load(project, changes);
+
+        assertThat(changedFiles.size(), equalTo(3));
+        assertThat(changedFiles.affects(new File[] {project.resolveFile("src/main")}), equalTo(true));
+        assertThat(changedFiles.affects(new File[] {project.resolveFile("src")}), equalTo(true));
+        assertThat(changedFiles.affects(new File[] {project.resolveFile("README")}), equalTo(true));
+        assertThat(changedFiles.affects(new File[] {project.resolveFile("lib")}), equalTo(true));
+        assertThat(changedFiles.affects(new File[] {project.resolveFile("src/main/Foo")}), equalTo(false));
+        assertThat(changedFiles.affects(new File[] {project.resolveFile("src/mai")}), equalTo(false));
+        assertThat(changedFiles.affects(new File[] {project.resolveFile("src/test")}), equalTo(false));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testFailsWhenTheChangesCantBeRead() {
+        ChangedFiles.load(project, changes);
+    }
+
+    @Test
+    public void testSelectsTargetsWithDeclaredInputsWhichNoChangeAffects() throws Exception {
+        assertThat(ChangedFiles.forBuild(project), nullValue());
+
+        writeChanges("src/main/Foo.java");
+        project.setProperty("pant.changed", changes.getName());
+        final DependencyGraph dependencyGraph = createDependencyGraph("package");
+        final Set<String> skippedTargets = new HashSet<String>();
+
+        ChangedFiles.forBuild(project).selectUnaffectedTargets(project, dependencyGraph.getDependencyGraphEntries(),
+                                                                skippedTargets);
+
+        assertThat(skippedTargets, equalTo(Collections.singleton("docs")));
+    }
+
+    @Test
+    public void testRunsOnlyTargetsAffectedByTheChangesAndThoseWithoutDeclaredInputs() throws Exception {
+        writeChanges("src/main/Foo.java");
+        project.setProperty("pant.changed", changes.getName());
+
+        new ParallelExecutor().executeTargets(project, new String[] {"package"});
+
+        assertThat(project.getProperty("ran.init"), equalTo("true"));
+        assertThat(project.getProperty("ran.compile"), equalTo("true"));
+        assertThat(project.getProperty("ran.test"), equalTo("true"));
+        assertThat(project.getProperty("ran.docs"), nullValue());
+        assertThat(project.getProperty("ran.package"), equalTo("true"));
+    }
+
+    @Test
+    public void testSkipsEverythingWithDeclaredInputsWhenNothingRelevantChanged() throws Exception {
+        writeChanges("build.xml");
+        project.setProperty("pant.changed", changes.getName());
+
+        new ParallelExecutor().executeTargets(project, new String[] {"package"});
+
+        assertThat(project.getProperty("ran.init"), equalTo("true"));
+        assertThat(project.getProperty("ran.compile"), nullValue());
+        assertThat(project.getProperty("ran.test"), nullValue());
+        assertThat(project.getProperty("ran.docs"), nullValue());
+        assertThat(project.getProperty("ran.package"), nullValue());
+    }
+
+    private DependencyGraph createDependencyGraph(final String rootName) {
+        @SuppressWarnings("unchecked")
+        final Map<String, Target> targets = project.getTargets();
+        @SuppressWarnings("unchecked")
+        final Map<String, Integer> targetPhases = Collections.EMPTY_MAP;
+        final DependencyGraph dependencyGraph =
+                new DependencyGraph(targets, targetPhases, new DependencyGraphEntryFactoryImpl(null, null));
+        dependencyGraph.buildDependencies(targets.get(rootName));
+        return dependencyGraph;
+    }
+
+    private void writeChanges(final String... paths) throws IOException {
+        final FileWriter writer = new FileWriter(changes);
+        for (final String path: paths) {
+            writer.write(path + "\n");
+        }
+        writer.close();
+    }
+}
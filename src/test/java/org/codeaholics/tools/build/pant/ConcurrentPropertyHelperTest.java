@@ -0,0 +1,146 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentPropertyHelperTest {
+    private Project project;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+        project.init();
+    }
+
+    @Test
+    public void testCarriesOverExistingProperties() {
+        project.setProperty("plain", "1");
+        project.setUserProperty("user", "2");
+        project.setInheritedProperty("inherited", "3");
+
+        final PropertyHelper helper = ConcurrentPropertyHelper.install(project);
+
+        assertThat(helper, instanceOf(ConcurrentPropertyHelper.class));
+        assertThat(PropertyHelper.getPropertyHelper(project), sameInstance(helper));
+        assertThat(project.getProperty("plain"), equalTo("1"));
+        assertThat(project.getProperty("user"), equalTo("2"));
+        assertThat(project.getUserProperty("user"), equalTo("2"));
+        assertThat(project.getProperty("inherited"), equalTo("3"));
+        assertThat(project.getUserProperty("inherited"), equalTo("3"));
+        assertThat(project.getProperty("java.version"), equalTo(System.getProperty("java.version")));
+    }
+
+    @Test
+    public void testInstallingTwiceKeepsTheFirstHelper() {
+        final PropertyHelper helper = ConcurrentPropertyHelper.install(project);
+
+        assertThat(ConcurrentPropertyHelper.install(project), sameInstance(helper));
+    }
+
+    @Test
+    public void testCanBeTurnedOff() {
+        final Project enabled = new Project();
+        ConcurrentPropertyHelper.installUnlessDisabled(enabled);
+        project.setProperty("pant.concurrent.properties", "false");
+        ConcurrentPropertyHelper.installUnlessDisabled(project);
+
+        assertThat(PropertyHelper.getPropertyHelper(enabled), instanceOf(ConcurrentPropertyHelper.class));
+        assertThat(PropertyHelper.getPropertyHelper(project), not(instanceOf(ConcurrentPropertyHelper.class)));
+    }
+
+    @Test
+    public void testKeepsSetOnceSemantics() {
+        ConcurrentPropertyHelper.install(project);
+
+        project.setNewProperty("property", "first");
+        project.setNewProperty("property", "second");
+        assertThat(project.getProperty("property"), equalTo("first"));
+
+        project.setUserProperty("user", "user");
+        project.setProperty("user", "overridden");
+        assertThat(project.getProperty("user"), equalTo("user"));
+
+        project.setProperty("mutable", "before");
+        project.setProperty("mutable", "after");
+        assertThat(project.getProperty("mutable"), equalTo("after"));
+    }
+
+    @Test
+    public void testKeepsExistingAndLaterDelegates() {
+        PropertyHelper.getPropertyHelper(project).add(new PrefixEvaluator("before:"));
+        final PropertyHelper helper = ConcurrentPropertyHelper.install(project);
+        helper.add(new PrefixEvaluator("after:"));
+
+        assertThat(project.getProperty("before:x"), equalTo("x"));
+        assertThat(project.getProperty("after:y"), equalTo("y"));
+        assertThat(project.getProperty("neither"), nullValue());
+        assertThat(project.replaceProperties("${before:a}-${after:b}"), equalTo("a-b"));
+    }
+
+    @Test
+    public void testWritesAreVisibleToOtherThreads() throws Exception {
+        ConcurrentPropertyHelper.install(project);
+
+        final CountDownLatch written = new CountDownLatch(1);
+        final AtomicReference<Object> seen = new AtomicReference<Object>();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    written.await();
+                    seen.set(project.getProperty("shared"));
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        reader.start();
+
+        project.setNewProperty("shared", "value");
+        written.countDown();
+        reader.join();
+
+        assertThat(seen.get(), equalTo((Object)"value"));
+    }
+
+    private static final class PrefixEvaluator implements PropertyHelper.PropertyEvaluator {
+        private final String prefix;
+
+        public PrefixEvaluator(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Object evaluate(final String property, final PropertyHelper propertyHelper) {
+            return property.startsWith(prefix) ? property.substring(prefix.length()) : null;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentionMonitorTest {
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private Project project;
+    private ContentionMonitor monitor;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+        monitor = new ContentionMonitor(1000);
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void testListensToTheProjectOnlyWhileAsked() {
+        assertThat(ContentionMonitor.startFor(project), nullValue());
+
+        final MessageRecorder messageRecorder = MessageRecorder.allMessages();
+        project.addBuildListener(messageRecorder);
+        project.setProperty("pant.contention", "10");
+        final ContentionMonitor started = ContentionMonitor.startFor(project);
+        assertThat(project.getBuildListeners().contains(started), equalTo(true));
+
+        started.stopFor(project);
+        assertThat(project.getBuildListeners().contains(started), equalTo(false));
+        assertThat(messageRecorder.getMessages().toString(), containsString("no task waited"));
+    }
+
+    @Test
+    public void testChargesBlockedTimeToTheTaskHoldingTheLock() throws Exception {
+        final Object lock = new Object();
+        final CountDownLatch holding = new CountDownLatch(1);
+
+        final Thread holder = runTask(createTask("holderTarget", "holder"), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    holding.countDown();
+                    awaitRelease();
+                }
+            }
+        });
+        holding.await();
+
+        final Thread waiter = runTask(createTask("waiterTarget", "waiter"), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    // just wanted the lock
+                }
+            }
+        });
+        awaitState(waiter, Thread.State.BLOCKED);
+
+        monitor.sample(ONE_SECOND);
+        monitor.sample(2 * ONE_SECOND);
+        release.countDown();
+        holder.join();
+        waiter.join();
+
+        final String report = monitor.report();
+        assertThat(report, containsString("2.0s [holder] in holderTarget holding java.lang.Object"
+                                          + " (blocked 2.0s, waiting 0.0s; waiters: [waiter] in waiterTarget)"));
+    }
+
+    @Test
+    public void testOnlyTotalsWaitsWithNoOwner() throws Exception {
+        final Thread sleeper = runTask(createTask("sleeperTarget", "sleeper"), new Runnable() {
+            @Override
+            public void run() {
+                awaitRelease();
+            }
+        });
+        awaitState(sleeper, Thread.State.WAITING);
+
+        monitor.sample(ONE_SECOND);
+        release.countDown();
+        sleeper.join();
+
+        final String report = monitor.report();
+        assertThat(report, containsString("no task waited on a lock held by another"));
+        assertThat(report, containsString("1.0s spent waiting with no owning thread"));
+        assertThat(report, not(containsString("[sleeper]")));
+    }
+
+    private Thread runTask(final Task task, final Runnable body) {
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                monitor.taskStarted(new BuildEvent(task));
+                body.run();
+                monitor.taskFinished(new BuildEvent(task));
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitState(final Thread thread, final Thread.State state) throws InterruptedException {
+        while (thread.getState() != state) {
+            Thread.sleep(1);
+        }
+    }
+
+    private Task createTask(final String targetName, final String taskName) {
+        final Target target = new Target();
+        target.setName(targetName);
+        target.setProject(project);
+
+        final Task task = new Task() {};
+        task.setProject(project);
+        task.setOwningTarget(target);
+        task.setTaskName(taskName);
+        return task;
+    }
+}
@@ -16,6 +16,11 @@ package org.codeaholics.tools.build.pant;
  *   limitations under the License.
  */
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+
 import org.apache.tools.ant.Target;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -41,7 +46,7 @@ public class DependencyGraphEntryTest {
         targetExecutionNotifier = mockery.mock(TargetExecutionNotifier.class);
         targetExecutor = mockery.mock(AntWrapper.class);
 
-        dependencyGraphEntry = new DependencyGraphEntry(target, false, targetExecutionNotifier, targetExecutor);
+        dependencyGraphEntry = new DependencyGraphEntry(target, DependencyGraphEntry.UNPHASED, targetExecutionNotifier, targetExecutor);
     }
 
     @Test
@@ -76,6 +81,90 @@ public class DependencyGraphEntryTest {
         dependencyGraphEntry.run();
     }
 
+    @Test
+    public void testCountsDownSuccessorsUntilTheLastIsComplete() {
+        target.setName("compile");
+        final DependencyGraphEntry jar = createEntry("jar");
+        final DependencyGraphEntry javadoc = createEntry("javadoc");
+        final DependencyGraphEntry implied = createEntry("implied");
+
+        dependencyGraphEntry.addSuccessor(jar);
+        dependencyGraphEntry.addSuccessor(jar);
+        dependencyGraphEntry.addSuccessor(javadoc);
+        dependencyGraphEntry.addSuccessor(implied);
+        dependencyGraphEntry.removeSuccessor(implied);
+
+        assertThat(jar.getPredecessorEntries(), equalTo(Collections.singletonList(dependencyGraphEntry)));
+        assertThat(implied.getPredecessorEntries().isEmpty(), equalTo(true));
+        assertThat(dependencyGraphEntry.successorComplete(), equalTo(false));
+        assertThat(dependencyGraphEntry.hasIncompleteSuccessors(), equalTo(true));
+        assertThat(dependencyGraphEntry.successorComplete(), equalTo(true));
+        assertThat(dependencyGraphEntry.hasIncompleteSuccessors(), equalTo(false));
+    }
+
+    @Test
+    public void testRunsFusedSuccessorsOnTheSameThread() throws Exception {
+        final Target successorTarget = new Target();
+        final DependencyGraphEntry successor =
+                new DependencyGraphEntry(successorTarget, DependencyGraphEntry.UNPHASED, targetExecutionNotifier,
+                                         targetExecutor);
+        final Sequence sequence = mockery.sequence("in order");
+
+        mockery.checking(new Expectations() {{
+            one(targetExecutionNotifier).notifyStarting(dependencyGraphEntry);
+            inSequence(sequence);
+
+            one(targetExecutor).executeTarget(target);
+            inSequence(sequence);
+
+            one(targetExecutionNotifier).notifyComplete(dependencyGraphEntry);
+            inSequence(sequence);
+            will(returnValue(successor));
+
+            // already started by the notifier
+            one(targetExecutor).executeTarget(successorTarget);
+            inSequence(sequence);
+
+            one(targetExecutionNotifier).notifyComplete(successor);
+            inSequence(sequence);
+            will(returnValue(null));
+        }});
+
+        dependencyGraphEntry.run();
+    }
+
+    @Test(expected = ExpectedRuntimeException.class)
+    public void testCarriesOnDownAFusedChainAfterAFailure() throws Exception {
+        final Target successorTarget = new Target();
+        final DependencyGraphEntry successor =
+                new DependencyGraphEntry(successorTarget, DependencyGraphEntry.UNPHASED, targetExecutionNotifier,
+                                         targetExecutor);
+
+        mockery.checking(new Expectations() {{
+            ignoring(targetExecutionNotifier).notifyStarting(with(any(DependencyGraphEntry.class)));
+
+            allowing(targetExecutor).executeTarget(target);
+            will(throwException(new ExpectedRuntimeException()));
+
+            one(targetExecutionNotifier).notifyComplete(dependencyGraphEntry);
+            will(returnValue(successor));
+
+            one(targetExecutor).executeTarget(successorTarget);
+
+            one(targetExecutionNotifier).notifyComplete(successor);
+            will(returnValue(null));
+        }});
+
+        dependencyGraphEntry.run();
+    }
+
+    private DependencyGraphEntry createEntry(final String targetName) {
+        final Target successorTarget = new Target();
+        successorTarget.setName(targetName);
+        return new DependencyGraphEntry(successorTarget, DependencyGraphEntry.UNPHASED, targetExecutionNotifier,
+                                        targetExecutor);
+    }
+
     @SuppressWarnings("serial")
     public class ExpectedRuntimeException extends RuntimeException {}
-}
\ No newline at end of file
+}
@@ -17,6 +17,8 @@ package org.codeaholics.tools.build.pant;
  */
 
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
@@ -28,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Target;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
@@ -66,12 +69,12 @@ public class DependencyGraphTest {
         final DependencyGraphEntry dependencyGraphEntry = createDependencyGraphEntry(target);
 
         mockery.checking(new Expectations() {{
-            one(dependencyGraphEntryFactory).create(target, false);  // only calls the factory once
+            one(dependencyGraphEntryFactory).create(target, DependencyGraphEntry.UNPHASED);  // only calls the factory once
             will(returnValue(dependencyGraphEntry));
         }});
 
         @SuppressWarnings("unchecked")
-        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_LIST, dependencyGraphEntryFactory);
+        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_MAP, dependencyGraphEntryFactory);
 
         // both the first and second call for the same target return the same graph entry
         assertThat(dependencyGraph.buildDependencies(target), sameInstance(dependencyGraphEntry));
@@ -86,7 +89,7 @@ public class DependencyGraphTest {
         final Target target4 = createAndAddTarget(TARGET_NAME4, TARGET_NAME2, TARGET_NAME3);
 
         @SuppressWarnings("unchecked")
-        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_LIST, dependencyGraphEntryFactory);
+        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_MAP, dependencyGraphEntryFactory);
 
         final DependencyGraphEntry dependencyGraphEntryForTarget1 = expectCreateDependencyGraphEntry(target1);
         expectCreateDependencyGraphEntry(target2);
@@ -106,7 +109,7 @@ public class DependencyGraphTest {
         final Target target4 = createAndAddTarget(TARGET_NAME4, TARGET_NAME2, TARGET_NAME3);
 
         @SuppressWarnings("unchecked")
-        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_LIST, dependencyGraphEntryFactory);
+        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_MAP, dependencyGraphEntryFactory);
 
         final DependencyGraphEntry dependencyGraphEntryForTarget1 = expectCreateDependencyGraphEntry(target1);
         final DependencyGraphEntry dependencyGraphEntryForTarget2 = expectCreateDependencyGraphEntry(target2);
@@ -135,11 +138,131 @@ public class DependencyGraphTest {
         assertThat(dependencyGraph.discoverAllSchedulableTargets(), equalTo(Collections.<DependencyGraphEntry>emptyList()));
     }
 
+    @Test
+    public void testCalculatesCriticalPathLengths() {
+        final Target target1 = createAndAddTarget(TARGET_NAME1);
+        final Target target2 = createAndAddTarget(TARGET_NAME2, TARGET_NAME1);
+        final Target target3 = createAndAddTarget(TARGET_NAME3);
+        final Target target4 = createAndAddTarget(TARGET_NAME4, TARGET_NAME2, TARGET_NAME3);
+
+        @SuppressWarnings("unchecked")
+        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_MAP, dependencyGraphEntryFactory);
+
+        final DependencyGraphEntry dependencyGraphEntryForTarget1 = expectCreateDependencyGraphEntry(target1);
+        final DependencyGraphEntry dependencyGraphEntryForTarget2 = expectCreateDependencyGraphEntry(target2);
+        final DependencyGraphEntry dependencyGraphEntryForTarget3 = expectCreateDependencyGraphEntry(target3);
+        final DependencyGraphEntry dependencyGraphEntryForTarget4 = expectCreateDependencyGraphEntry(target4);
+
+        dependencyGraph.buildDependencies(target4);
+        dependencyGraph.calculateCriticalPathLengths();
+
+        assertThat(dependencyGraphEntryForTarget1.getCriticalPathLength(), equalTo(3));
+        assertThat(dependencyGraphEntryForTarget2.getCriticalPathLength(), equalTo(2));
+        assertThat(dependencyGraphEntryForTarget3.getCriticalPathLength(), equalTo(2));
+        assertThat(dependencyGraphEntryForTarget4.getCriticalPathLength(), equalTo(1));
+    }
+
+    @Test
+    public void testFusesOnlySingleInSingleOutLinks() {
+        final Target target1 = createAndAddTarget(TARGET_NAME1);
+        final Target target2 = createAndAddTarget(TARGET_NAME2, TARGET_NAME1);
+        final Target target3 = createAndAddTarget(TARGET_NAME3);
+        final Target target4 = createAndAddTarget(TARGET_NAME4, TARGET_NAME2, TARGET_NAME3);
+
+        @SuppressWarnings("unchecked")
+        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_MAP, dependencyGraphEntryFactory);
+
+        final DependencyGraphEntry dependencyGraphEntryForTarget1 = expectCreateDependencyGraphEntry(target1);
+        final DependencyGraphEntry dependencyGraphEntryForTarget2 = expectCreateDependencyGraphEntry(target2);
+        final DependencyGraphEntry dependencyGraphEntryForTarget3 = expectCreateDependencyGraphEntry(target3);
+        final DependencyGraphEntry dependencyGraphEntryForTarget4 = expectCreateDependencyGraphEntry(target4);
+
+        dependencyGraph.buildDependencies(target4);
+        dependencyGraph.fuseChains();
+
+        assertThat(dependencyGraphEntryForTarget1.getFusedSuccessor(), sameInstance(dependencyGraphEntryForTarget2));
+        // target4 has two predecessors, so neither can run straight into it
+        assertThat(dependencyGraphEntryForTarget2.getFusedSuccessor(), nullValue());
+        assertThat(dependencyGraphEntryForTarget3.getFusedSuccessor(), nullValue());
+        assertThat(dependencyGraphEntryForTarget4.getFusedSuccessor(), nullValue());
+    }
+
+    @Test
+    public void testRemovesAndReportsDependenciesImpliedByOthers() {
+        final Target target1 = createAndAddTarget(TARGET_NAME1);
+        final Target target2 = createAndAddTarget(TARGET_NAME2, TARGET_NAME1);
+        final Target target3 = createAndAddTarget(TARGET_NAME3, TARGET_NAME2);
+        // both edges to target1 and target2 are implied by target3
+        final Target target4 = createAndAddTarget(TARGET_NAME4, TARGET_NAME1, TARGET_NAME2, TARGET_NAME3);
+
+        @SuppressWarnings("unchecked")
+        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_MAP, dependencyGraphEntryFactory);
+
+        final DependencyGraphEntry dependencyGraphEntryForTarget1 = expectCreateDependencyGraphEntry(target1);
+        final DependencyGraphEntry dependencyGraphEntryForTarget2 = expectCreateDependencyGraphEntry(target2);
+        final DependencyGraphEntry dependencyGraphEntryForTarget3 = expectCreateDependencyGraphEntry(target3);
+        final DependencyGraphEntry dependencyGraphEntryForTarget4 = expectCreateDependencyGraphEntry(target4);
+
+        dependencyGraph.buildDependencies(target4);
+        dependencyGraph.calculateCriticalPathLengths();
+        final List<RedundantDependency> redundantDependencies = dependencyGraph.reduceTransitively();
+
+        assertThat(redundantDependencies.size(), equalTo(2));
+        for (final RedundantDependency redundantDependency: redundantDependencies) {
+            assertThat(redundantDependency.getTargetName(), equalTo(TARGET_NAME4));
+            assertThat(redundantDependency.getImpliedByName(), equalTo(TARGET_NAME3));
+        }
+
+        assertThat(dependencyGraphEntryForTarget4.getPredecessors(), equalTo(setOf(TARGET_NAME3)));
+        assertThat(dependencyGraphEntryForTarget1.getSuccessors(), equalTo(setOf(TARGET_NAME2)));
+        assertThat(dependencyGraphEntryForTarget2.getSuccessors(), equalTo(setOf(TARGET_NAME3)));
+        assertThat(dependencyGraphEntryForTarget1.getSuccessorEntries().size(), equalTo(1));
+        assertThat(dependencyGraphEntryForTarget4.getCriticalPathLength(), equalTo(1));
+
+        // only the edge that's left needs to complete
+        assertThat(dependencyGraphEntryForTarget4.predecessorComplete(), equalTo(true));
+
+        // and with the chain now straight, all of it can be fused
+        dependencyGraph.fuseChains();
+        assertThat(dependencyGraphEntryForTarget3.getFusedSuccessor(), sameInstance(dependencyGraphEntryForTarget4));
+    }
+
+    @Test
+    public void testOnlyRemovesRedundantDependenciesWhenAsked() {
+        final Target target1 = createAndAddTarget(TARGET_NAME1);
+        final Target target2 = createAndAddTarget(TARGET_NAME2, TARGET_NAME1);
+        final Target target3 = createAndAddTarget(TARGET_NAME3, TARGET_NAME1, TARGET_NAME2);
+
+        @SuppressWarnings("unchecked")
+        final DependencyGraph dependencyGraph = new DependencyGraph(targetMap, Collections.EMPTY_MAP, dependencyGraphEntryFactory);
+
+        expectCreateDependencyGraphEntry(target1);
+        expectCreateDependencyGraphEntry(target2);
+        final DependencyGraphEntry dependencyGraphEntryForTarget3 = expectCreateDependencyGraphEntry(target3);
+
+        dependencyGraph.buildDependencies(target3);
+        dependencyGraph.calculateCriticalPathLengths();
+
+        final Project project = new Project();
+        final MessageRecorder messageRecorder = MessageRecorder.allMessages();
+        project.addBuildListener(messageRecorder);
+
+        RedundantDependency.removeFrom(project, dependencyGraph);
+        assertThat(dependencyGraphEntryForTarget3.getPredecessors(), equalTo(setOf(TARGET_NAME1, TARGET_NAME2)));
+
+        project.setProperty("pant.reduce", "true");
+        RedundantDependency.removeFrom(project, dependencyGraph);
+        assertThat(dependencyGraphEntryForTarget3.getPredecessors(), equalTo(setOf(TARGET_NAME2)));
+        assertThat(messageRecorder.getMessages(),
+                   hasItem("Redundant dependency: " + TARGET_NAME3 + " -> " + TARGET_NAME1
+                           + " (already implied by " + TARGET_NAME2 + ")"));
+    }
+
     private DependencyGraphEntry expectCreateDependencyGraphEntry(final Target target) {
         final DependencyGraphEntry dependencyGraphEntry = createDependencyGraphEntry(target);
 
         mockery.checking(new Expectations() {{
-            one(dependencyGraphEntryFactory).create(target, false);
+            one(dependencyGraphEntryFactory).create(target, DependencyGraphEntry.UNPHASED);
             will(returnValue(dependencyGraphEntry));
         }});
 
@@ -155,7 +278,7 @@ public class DependencyGraphTest {
     }
 
     private static DependencyGraphEntry createDependencyGraphEntry(final Target target) {
-        return new DependencyGraphEntry(target, false, null, null);
+        return new DependencyGraphEntry(target, DependencyGraphEntry.UNPHASED, null, null);
     }
 
     private static Set<String> setOf(final String... strings) {
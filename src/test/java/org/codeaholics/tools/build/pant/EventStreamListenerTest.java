@@ -0,0 +1,189 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventStreamListenerTest {
+    private Project project;
+    private Target target;
+    private Task task;
+    private ByteArrayOutputStream output;
+    private EventStreamListener listener;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+
+        target = new Target();
+        target.setName("compile");
+        target.setProject(project);
+
+        task = new Task() {};
+        task.setProject(project);
+        task.setOwningTarget(target);
+        task.setTaskName("javac");
+
+        output = new ByteArrayOutputStream();
+        listener = new EventStreamListener(Channels.newChannel(output));
+    }
+
+    @Test
+    public void testWritesOneRecordPerEvent() {
+        listener.targetQueued("compile");
+        listener.targetStarted(new BuildEvent(target));
+        listener.taskStarted(new BuildEvent(task));
+        final BuildEvent message = new BuildEvent(task);
+        message.setMessage("Compiling \"1\" file\n", Project.MSG_INFO);
+        listener.messageLogged(message);
+        listener.taskFinished(new BuildEvent(task));
+        listener.targetFinished(new BuildEvent(target));
+        listener.buildFinished(new BuildEvent(project));
+
+        final String[] records = output.toString().split("\n");
+        assertThat(records.length, equalTo(8));
+
+        assertThat(records[0], containsString("\"event\":\"streamStarted\""));
+        assertThat(records[1], containsString("\"event\":\"targetQueued\",\"target\":\"compile\"}"));
+        assertThat(records[2], containsString("\"event\":\"targetStarted\",\"target\":\"compile\"}"));
+        assertThat(records[3], containsString("\"event\":\"taskStarted\",\"target\":\"compile\",\"task\":\"javac\"}"));
+        assertThat(records[4], containsString("\"message\":\"Compiling \\\"1\\\" file\\n\"}"));
+        assertThat(records[5], containsString("\"event\":\"taskFinished\""));
+        assertThat(records[6], containsString("\"event\":\"targetFinished\""));
+        assertThat(records[7], containsString("\"event\":\"buildFinished\""));
+
+        for (final String record: records) {
+            assertThat(record, startsWith("{\"t\":"));
+            assertThat(record, containsString(",\"thread\":" + Thread.currentThread().getId() + ","));
+        }
+    }
+
+    @Test
+    public void testRecordsFailures() {
+        final BuildEvent taskFinished = new BuildEvent(task);
+        taskFinished.setException(new BuildException("Compile failed"));
+        listener.taskFinished(taskFinished);
+        listener.flush();
+
+        final String[] records = output.toString().split("\n");
+        assertThat(records[1], containsString("\"event\":\"failure\",\"target\":\"compile\",\"task\":\"javac\",\"error\":\"Compile failed\"}"));
+        assertThat(records[2], containsString("\"event\":\"taskFinished\""));
+    }
+
+    @Test(timeout = 60000)
+    public void testKeepsTheBuildGoingWhileTheStreamIsBlocked() throws Exception {
+        final CountDownLatch unblocked = new CountDownLatch(1);
+        final ByteArrayOutputStream blockedOutput = new ByteArrayOutputStream();
+        final WritableByteChannel channel = Channels.newChannel(blockedOutput);
+        listener = new EventStreamListener(new WritableByteChannel() {
+            @Override
+            public int write(final ByteBuffer source) throws IOException {
+                try {
+                    unblocked.await();
+                } catch (final InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                return channel.write(source);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        });
+
+        for (int i = 0; i < 100; i++) {
+            listener.targetStarted(new BuildEvent(target));
+            listener.targetFinished(new BuildEvent(target));
+        }
+        unblocked.countDown();
+        listener.buildFinished(new BuildEvent(project));
+
+        final String[] records = blockedOutput.toString().split("\n");
+        assertThat(records.length, equalTo(202));
+        assertThat(records[201], containsString("\"event\":\"buildFinished\""));
+    }
+
+    @Test
+    public void testIsClosedOnceTheBuildHasFinished() {
+        assertThat(listener.isClosed(), equalTo(false));
+
+        listener.buildFinished(new BuildEvent(project));
+
+        assertThat(listener.isClosed(), equalTo(true));
+    }
+
+    @Test
+    public void testIsOffUnlessADestinationIsGiven() {
+        assertThat(EventStreamListener.forBuild(project, null), nullValue());
+    }
+
+    @Test
+    public void testReplacesTheListenerOfAFinishedBuild() throws IOException {
+        final File events = File.createTempFile("events", ".ndjson");
+        events.deleteOnExit();
+        project.setProperty("pant.events", events.getAbsolutePath());
+
+        final EventStreamListener first = EventStreamListener.forBuild(project, null);
+        assertThat(EventStreamListener.forBuild(project, first), sameInstance(first));
+
+        first.buildFinished(new BuildEvent(project));
+        final EventStreamListener second = EventStreamListener.forBuild(project, first);
+        second.buildFinished(new BuildEvent(project));
+
+        assertThat(second, not(sameInstance(first)));
+        assertThat(project.getBuildListeners().contains(first), equalTo(false));
+        assertThat(project.getBuildListeners().contains(second), equalTo(true));
+    }
+
+    @Test
+    public void testIgnoresVerboseMessages() {
+        final BuildEvent message = new BuildEvent(project);
+        message.setMessage("detail", Project.MSG_VERBOSE);
+        listener.messageLogged(message);
+        listener.flush();
+
+        assertThat(output.toString().split("\n").length, equalTo(1));
+    }
+}
@@ -0,0 +1,67 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import org.apache.tools.ant.Target;
+import org.junit.Test;
+
+public class ExclusionGroupsTest {
+    @Test
+    public void testRecognisesExclusionGroupNames() {
+        assertThat(ExclusionGroups.isExclusionGroupName("pant:exclusive.database"), equalTo(true));
+        assertThat(ExclusionGroups.isExclusionGroupName("pant:exclusive."), equalTo(false));
+        assertThat(ExclusionGroups.isExclusionGroupName("exclusive.database"), equalTo(false));
+    }
+
+    @Test
+    public void testHandsTheGroupToAWaitingMemberWhenReleased() {
+        final ExclusionGroups exclusionGroups = new ExclusionGroups();
+        // listed twice, which mustn't leave it waiting for itself
+        exclusionGroups.addGroup("pant:exclusive.database", Arrays.asList("migrate", "seed", "migrate"));
+
+        final DependencyGraphEntry migrate = createEntry("migrate");
+        final DependencyGraphEntry seed = createEntry("seed");
+        final DependencyGraphEntry docs = createEntry("docs");
+        exclusionGroups.prepare(Arrays.asList(migrate, seed, docs));
+
+        final Queue<DependencyGraphEntry> schedulableTargets = new ArrayDeque<DependencyGraphEntry>();
+        exclusionGroups.acquireOrWait(migrate, schedulableTargets);
+        exclusionGroups.acquireOrWait(seed, schedulableTargets);
+        exclusionGroups.acquireOrWait(docs, schedulableTargets);
+        assertThat(schedulableTargets.poll(), sameInstance(migrate));
+        assertThat(schedulableTargets.poll(), sameInstance(docs));
+        assertThat(schedulableTargets.poll(), nullValue());
+
+        exclusionGroups.release(migrate, schedulableTargets);
+        assertThat(schedulableTargets.poll(), sameInstance(seed));
+    }
+
+    private static DependencyGraphEntry createEntry(final String targetName) {
+        final Target target = new Target();
+        target.setName(targetName);
+        return new DependencyGraphEntry(target, DependencyGraphEntry.UNPHASED, null, null);
+    }
+}
@@ -0,0 +1,235 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.Target;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GraphCacheTest {
+    private static final String BUILD_FILE_CONTENTS = "<project name='cache' default='all'>"
+            + "<target name='a'/>"
+            + "<target name='b' depends='a'/>"
+            + "<target name='c' depends='a'/>"
+            + "<target name='d' depends='c'/>"
+            + "<target name='all' depends='b,d'/>"
+            + "</project>";
+    private static final String[] ROOT_TARGETS = {"all"};
+
+    private File buildFile;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws Exception {
+        buildFile = File.createTempFile("pant-build", ".xml");
+        cacheFile = File.createTempFile("pant-graph", ".cache");
+        cacheFile.delete();
+        writeBuildFile(BUILD_FILE_CONTENTS);
+    }
+
+    @After
+    public void tearDown() {
+        buildFile.delete();
+        cacheFile.delete();
+    }
+
+    @Test
+    public void testIsOnlyValidOnceSaved() {
+        final Project project = parse();
+
+        assertThat(open(project, ROOT_TARGETS).isValid(), equalTo(false));
+
+        populate(project, ROOT_TARGETS);
+
+        final GraphCache graphCache = open(parse(), ROOT_TARGETS);
+        assertThat(graphCache.isValid(), equalTo(true));
+        assertThat(Arrays.asList(graphCache.getTopologicalOrder("all")).indexOf("a"), equalTo(0));
+        assertThat(graphCache.getTopologicalOrder("a"), nullValue());
+    }
+
+    @Test
+    public void testIsInvalidatedByChangedBuildFile() throws Exception {
+        populate(parse(), ROOT_TARGETS);
+
+        writeBuildFile(BUILD_FILE_CONTENTS.replace("depends='c'", "depends='b'"));
+
+        assertThat(open(parse(), ROOT_TARGETS).isValid(), equalTo(false));
+    }
+
+    @Test
+    public void testIsInvalidatedByDifferentTargets() {
+        populate(parse(), ROOT_TARGETS);
+
+        assertThat(open(parse(), new String[] {"d"}).isValid(), equalTo(false));
+    }
+
+    @Test
+    public void testRestoredGraphMatchesBuiltGraph() {
+        final Project project = parse();
+        final DependencyGraph builtGraph = populate(project, ROOT_TARGETS);
+
+        final GraphCache graphCache = open(project, ROOT_TARGETS);
+        final DependencyGraph restoredGraph = createDependencyGraph(project);
+        final DependencyGraphEntry root = graphCache.restore(restoredGraph, getTarget(project, "all"));
+
+        assertThat(root.getTarget().getName(), equalTo("all"));
+        assertThat(restoredGraph.getDependencyGraphEntries().size(), equalTo(5));
+        for (final DependencyGraphEntry built: builtGraph.getDependencyGraphEntries()) {
+            final DependencyGraphEntry restored = findEntry(restoredGraph, built.getTarget().getName());
+            assertThat(restored.getCriticalPathLength(), equalTo(built.getCriticalPathLength()));
+            assertThat(restored.getPredecessors(), equalTo(built.getPredecessors()));
+            assertThat(restored.getSuccessors(), equalTo(built.getSuccessors()));
+        }
+        assertThat(restoredGraph.discoverAllSchedulableTargets().size(), equalTo(1));
+    }
+
+    @Test
+    public void testKeepsValidatedGraphsInAStore() throws Exception {
+        final Map<String, GraphCache> store = GraphCache.createStore();
+        final Project project = parse();
+
+        final GraphCache graphCache = GraphCache.open(project, store, getTargets(project), ROOT_TARGETS);
+        assertThat(graphCache.isValid(), equalTo(false));
+        final DependencyGraph dependencyGraph = createDependencyGraph(project);
+        dependencyGraph.buildDependencies(getTarget(project, "all"));
+        dependencyGraph.calculateCriticalPathLengths();
+        graphCache.record("all", dependencyGraph.getTopologicalOrder());
+        graphCache.save();
+
+        final Project nextProject = parse();
+        final GraphCache reopened = GraphCache.open(nextProject, store, getTargets(nextProject), ROOT_TARGETS);
+        assertThat(reopened.isValid(), equalTo(true));
+        assertThat(Arrays.asList(reopened.getTopologicalOrder("all")).indexOf("a"), equalTo(0));
+        assertThat(cacheFile.exists(), equalTo(false));
+
+        writeBuildFile(BUILD_FILE_CONTENTS.replace("depends='c'", "depends='b'"));
+        final Project changedProject = parse();
+        assertThat(GraphCache.open(changedProject, store, getTargets(changedProject), ROOT_TARGETS).isValid(),
+                   equalTo(false));
+    }
+
+    @Test
+    public void testPrefersANamedFileToTheDaemonsStore() {
+        final Project project = parse();
+        assertThat(GraphCache.forBuild(project, getTargets(project), ROOT_TARGETS), nullValue());
+
+        final Map<String, GraphCache> store = GraphCache.createStore();
+        project.addReference(GraphCache.STORE_REFERENCE, store);
+        GraphCache.forBuild(project, getTargets(project), ROOT_TARGETS);
+        assertThat(store.size(), equalTo(1));
+
+        store.clear();
+        project.setProperty("pant.graph.cache", cacheFile.getAbsolutePath());
+        final GraphCache graphCache = GraphCache.forBuild(project, getTargets(project), ROOT_TARGETS);
+        graphCache.record("all", Collections.<DependencyGraphEntry>emptyList());
+        graphCache.save();
+        assertThat(store.size(), equalTo(0));
+        assertThat(cacheFile.exists(), equalTo(true));
+    }
+
+    @Test
+    public void testKeepsTargetNamesLongerThan64KB() {
+        final Project project = parse();
+        final char[] longName = new char[70000];
+        Arrays.fill(longName, 'x');
+        final Target target = new Target();
+        target.setName(new String(longName));
+
+        final GraphCache graphCache = open(project, ROOT_TARGETS);
+        graphCache.record(target.getName(), Collections.singletonList(
+                new DependencyGraphEntry(target, DependencyGraphEntry.UNPHASED, null, null)));
+        graphCache.save();
+
+        assertThat(open(parse(), ROOT_TARGETS).getTopologicalOrder(target.getName()),
+                   equalTo(new String[] {target.getName()}));
+    }
+
+    @Test
+    public void testReplacesAnExistingCache() {
+        populate(parse(), ROOT_TARGETS);
+        populate(parse(), new String[] {"d"});
+
+        final GraphCache graphCache = open(parse(), new String[] {"d"});
+        assertThat(graphCache.isValid(), equalTo(true));
+        assertThat(graphCache.getTopologicalOrder("all"), nullValue());
+    }
+
+    private DependencyGraph populate(final Project project, final String[] rootTargets) {
+        final GraphCache graphCache = open(project, rootTargets);
+        final DependencyGraph dependencyGraph = createDependencyGraph(project);
+        dependencyGraph.buildDependencies(getTarget(project, rootTargets[0]));
+        dependencyGraph.calculateCriticalPathLengths();
+        graphCache.record(rootTargets[0], dependencyGraph.getTopologicalOrder());
+        graphCache.save();
+        return dependencyGraph;
+    }
+
+    private DependencyGraphEntry findEntry(final DependencyGraph dependencyGraph, final String targetName) {
+        for (final DependencyGraphEntry dependencyGraphEntry: dependencyGraph.getDependencyGraphEntries()) {
+            if (dependencyGraphEntry.getTarget().getName().equals(targetName)) {
+                return dependencyGraphEntry;
+            }
+        }
+        return null;
+    }
+
+    private GraphCache open(final Project project, final String[] rootTargets) {
+        return GraphCache.open(project, cacheFile, getTargets(project), rootTargets);
+    }
+
+    private DependencyGraph createDependencyGraph(final Project project) {
+        @SuppressWarnings("unchecked")
+        final Map<String, Integer> targetPhases = Collections.EMPTY_MAP;
+        return new DependencyGraph(getTargets(project), targetPhases, new DependencyGraphEntryFactoryImpl(null, null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Target> getTargets(final Project project) {
+        return project.getTargets();
+    }
+
+    private static Target getTarget(final Project project, final String targetName) {
+        return getTargets(project).get(targetName);
+    }
+
+    private Project parse() {
+        final Project project = new Project();
+        project.init();
+        ProjectHelper.configureProject(project, buildFile);
+        return project;
+    }
+
+    private void writeBuildFile(final String contents) throws IOException {
+        final FileWriter writer = new FileWriter(buildFile);
+        writer.write(contents);
+        writer.close();
+    }
+}
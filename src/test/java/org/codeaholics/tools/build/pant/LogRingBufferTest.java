@@ -0,0 +1,115 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+public class LogRingBufferTest {
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 20000;
+
+    @Test(timeout = 60000)
+    public void testDeliversEveryEventFromEachProducerInOrder() throws Exception {
+        final LogRingBuffer ringBuffer = new LogRingBuffer(64);
+
+        final Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            producers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < EVENTS_PER_PRODUCER; j++) {
+                        final LogEvent event = ringBuffer.claim(false);
+                        event.set(LogEventType.MESSAGE, j, false, null, null, null, null);
+                        ringBuffer.publish(event);
+                    }
+                }
+            };
+            producers[i].start();
+        }
+
+        final Map<Thread, Integer> nextExpected = new HashMap<Thread, Integer>();
+        for (int consumed = 0; consumed < PRODUCERS * EVENTS_PER_PRODUCER; consumed++) {
+            LogEvent event;
+            while ((event = ringBuffer.poll()) == null) {
+                // a missed wake-up would park here for good
+                ringBuffer.park(0);
+            }
+
+            final Integer expected = nextExpected.get(event.getProducer());
+            assertThat(event.getPriority(), equalTo(expected == null ? 0 : expected));
+            nextExpected.put(event.getProducer(), event.getPriority() + 1);
+
+            ringBuffer.release(event);
+        }
+
+        for (final Thread producer: producers) {
+            producer.join();
+        }
+
+        assertThat(ringBuffer.poll(), nullValue());
+        assertThat(ringBuffer.isDrained(), equalTo(true));
+        assertThat(ringBuffer.getAndResetDropped(), equalTo(0L));
+    }
+
+    @Test(timeout = 60000)
+    public void testStopsParkingOnceClosed() throws Exception {
+        final LogRingBuffer ringBuffer = new LogRingBuffer(4);
+
+        final Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                while (!ringBuffer.isClosed()) {
+                    ringBuffer.park(0);
+                }
+                ringBuffer.park(0);
+            }
+        };
+        consumer.start();
+
+        Thread.sleep(100);
+        ringBuffer.close();
+        consumer.join();
+    }
+
+    @Test
+    public void testDropsDroppableEventsWhenFull() {
+        final LogRingBuffer ringBuffer = new LogRingBuffer(4);
+
+        for (int i = 0; i < 4; i++) {
+            final LogEvent event = ringBuffer.claim(true);
+            event.set(LogEventType.MESSAGE, Project.MSG_VERBOSE, false, null, null, null, null);
+            ringBuffer.publish(event);
+        }
+
+        assertThat(ringBuffer.claim(true), nullValue());
+        assertThat(ringBuffer.claim(true), nullValue());
+        assertThat(ringBuffer.getAndResetDropped(), equalTo(2L));
+
+        // making room lets the next one through
+        ringBuffer.release(ringBuffer.poll());
+        assertThat(ringBuffer.claim(true), notNullValue());
+    }
+}
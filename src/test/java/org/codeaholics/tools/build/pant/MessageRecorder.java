@@ -0,0 +1,95 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+// Keeps every message logged in a build, from whichever thread, for tests to look through
+public class MessageRecorder implements BuildListener {
+    private final List<String> messages = Collections.synchronizedList(new LinkedList<String>());
+    private final boolean labelled;
+    private final boolean taskOutputOnly;
+
+    private MessageRecorder(final boolean labelled, final boolean taskOutputOnly) {
+        this.labelled = labelled;
+        this.taskOutputOnly = taskOutputOnly;
+    }
+
+    public static MessageRecorder allMessages() {
+        return new MessageRecorder(false, false);
+    }
+
+    // Prefixed with the name of the task which logged them, as "[echo] message"
+    public static MessageRecorder labelledMessages() {
+        return new MessageRecorder(true, false);
+    }
+
+    // Only what tasks log at info level or above
+    public static MessageRecorder taskOutput() {
+        return new MessageRecorder(false, true);
+    }
+
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    @Override
+    public void messageLogged(final BuildEvent event) {
+        if (taskOutputOnly && (event.getTask() == null || event.getPriority() > Project.MSG_INFO)) {
+            return;
+        }
+        messages.add(labelled && event.getTask() != null
+                ? "[" + event.getTask().getTaskName() + "] " + event.getMessage()
+                : event.getMessage());
+    }
+
+    @Override
+    public void buildStarted(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void buildFinished(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void targetStarted(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void targetFinished(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void taskStarted(final BuildEvent event) {
+        // not interested
+    }
+
+    @Override
+    public void taskFinished(final BuildEvent event) {
+        // not interested
+    }
+}
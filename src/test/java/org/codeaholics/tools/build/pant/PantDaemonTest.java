@@ -0,0 +1,151 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PantDaemonTest {
+    private static final String TOKEN = "secret";
+
+    private PantDaemon daemon;
+    private Thread daemonThread;
+    private int port;
+    private File buildDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        port = serverSocket.getLocalPort();
+        daemon = new PantDaemon(serverSocket, TOKEN);
+        daemonThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.serve();
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        daemonThread.start();
+
+        buildDirectory = File.createTempFile("pant-daemon", "");
+        buildDirectory.delete();
+        buildDirectory.mkdir();
+        final FileWriter writer = new FileWriter(new File(buildDirectory, "build.xml"));
+        writer.write("<project name='daemon' default='hello'>"
+                     + "<target name='hello'><echo>hello from ${greeting}</echo></target>"
+                     + "<target name='broken'><fail>broken</fail></target>"
+                     + "</project>");
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        daemon.stop();
+        daemonThread.join();
+        new File(buildDirectory, "build.xml").delete();
+        buildDirectory.delete();
+    }
+
+    @Test
+    public void testRunsBuildAndReportsSuccess() throws Exception {
+        final String output = request(TOKEN, PantDaemon.BUILD_COMMAND,
+                                      "-Dant.executor.class=" + ParallelExecutor.class.getName(),
+                                      "-Dgreeting=the daemon", "hello");
+
+        assertThat(output, containsString("hello from the daemon"));
+        assertThat(output, containsString("BUILD SUCCESSFUL"));
+        assertThat(output, containsString(PantDaemon.EXIT_MARKER + 0));
+    }
+
+    @Test
+    public void testRunsSuccessiveBuildsWithFreshProperties() throws Exception {
+        request(TOKEN, PantDaemon.BUILD_COMMAND, "-Dgreeting=first");
+        final String output = request(TOKEN, PantDaemon.BUILD_COMMAND, "-Dgreeting=second");
+
+        assertThat(output, containsString("hello from second"));
+    }
+
+    @Test
+    public void testReportsFailure() throws Exception {
+        final String output = request(TOKEN, PantDaemon.BUILD_COMMAND, "broken");
+
+        assertThat(output, containsString("BUILD FAILED"));
+        assertThat(output, containsString(PantDaemon.EXIT_MARKER + 1));
+    }
+
+    @Test
+    public void testIgnoresClientsWithoutTheToken() throws Exception {
+        final String output = request("wrong", PantDaemon.BUILD_COMMAND, "hello");
+
+        assertThat(output, equalTo(""));
+    }
+
+    @Test
+    public void testStops() throws Exception {
+        request(TOKEN, PantDaemon.STOP_COMMAND);
+        daemonThread.join();
+
+        assertThat(daemonThread.isAlive(), equalTo(false));
+    }
+
+    private String request(final String token, final String command, final String... args) throws IOException {
+        final Socket socket = new Socket("127.0.0.1", port);
+        try {
+            final PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+            out.println(token);
+            out.println(command);
+            out.println(buildDirectory.getAbsolutePath());
+            for (final String arg: args) {
+                out.println(arg);
+            }
+            out.println();
+
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            final StringBuilder output = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                output.append(line).append('\n');
+                if (line.startsWith(PantDaemon.EXIT_MARKER)) {
+                    break;
+                }
+            }
+            assertThat(in.readLine(), nullValue());
+            return output.toString();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+public class ParallelExecutorAllocationTest {
+    private static final String ROOT_TARGET_NAME = "root";
+    private static final int CHAINS = 100;
+    private static final int CHAIN_LENGTH = 100;
+    private static final int TOTAL_TARGETS = CHAINS * CHAIN_LENGTH + 1;
+    private static final String TOP_TARGET_NAME = "top";
+    private static final int LAYERS = 50;
+    private static final int LAYER_WIDTH = 100;
+    private static final int DIAMOND_TARGETS = LAYERS * LAYER_WIDTH + 2;
+
+    // Generous enough to absorb the odd bit of JVM noise, but a single LinkedList per completion
+    // would blow it several times over
+    private static final long ALLOCATION_ALLOWANCE = 16 * 1024;
+
+    private ThreadMXBean threadMXBean;
+    private Project project;
+    private ParallelExecutor parallelExecutor;
+    private RecordingExecutorService executorService;
+    private NoOpAntWrapper antWrapper;
+
+    @Before
+    public void setUp() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+        threadMXBean = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        project = new Project();
+        executorService = new RecordingExecutorService(TOTAL_TARGETS);
+
+        parallelExecutor = new ParallelExecutor();
+        antWrapper = new NoOpAntWrapper();
+        parallelExecutor.setAntWrapper(antWrapper);
+        parallelExecutor.setExecutorServiceFactory(new ExecutorServiceFactory() {
+            @Override
+            public ExecutorService create(final int threads) {
+                return executorService;
+            }
+        });
+    }
+
+    @Test
+    public void testSteadyStateSchedulingDoesNotAllocate() {
+        final Target root = addTarget(ROOT_TARGET_NAME);
+        for (int chain = 0; chain < CHAINS; chain++) {
+            for (int link = 0; link < CHAIN_LENGTH; link++) {
+                final Target target = addTarget(linkName(chain, link));
+                if (link > 0) {
+                    target.addDependency(linkName(chain, link - 1));
+                }
+            }
+            root.addDependency(linkName(chain, CHAIN_LENGTH - 1));
+        }
+
+        // only the initial frontier is submitted here; everything after that is driven by completions
+        parallelExecutor.executeTargets(project, new String[] {ROOT_TARGET_NAME});
+        assertThat(executorService.getSubmittedCount(), equalTo(CHAINS));
+
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        executorService.runAllSubmitted();
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // each chain is fused, so only its first link and the root go through the executor
+        assertThat(executorService.getSubmittedCount(), equalTo(CHAINS + 1));
+        assertThat(antWrapper.getExecutedCount(), equalTo(TOTAL_TARGETS));
+        assertThat(executorService.isShutdown(), equalTo(true));
+        assertThat(allocated, lessThan(ALLOCATION_ALLOWANCE));
+    }
+
+    @Test
+    public void testSchedulingThroughTheExecutorDoesNotAllocate() {
+        // every target has two predecessors and two successors, so nothing can be fused and every
+        // completion goes back through the executor
+        addTarget(TOP_TARGET_NAME);
+        for (int layer = 0; layer < LAYERS; layer++) {
+            for (int node = 0; node < LAYER_WIDTH; node++) {
+                final Target target = addTarget(nodeName(layer, node));
+                if (layer == 0) {
+                    target.addDependency(TOP_TARGET_NAME);
+                } else {
+                    target.addDependency(nodeName(layer - 1, node));
+                    target.addDependency(nodeName(layer - 1, (node + 1) % LAYER_WIDTH));
+                }
+            }
+        }
+        final Target root = addTarget(ROOT_TARGET_NAME);
+        for (int node = 0; node < LAYER_WIDTH; node++) {
+            root.addDependency(nodeName(LAYERS - 1, node));
+        }
+
+        parallelExecutor.executeTargets(project, new String[] {ROOT_TARGET_NAME});
+        assertThat(executorService.getSubmittedCount(), equalTo(1));
+
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        executorService.runAllSubmitted();
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        assertThat(executorService.getSubmittedCount(), equalTo(DIAMOND_TARGETS));
+        assertThat(antWrapper.getExecutedCount(), equalTo(DIAMOND_TARGETS));
+        assertThat(executorService.isShutdown(), equalTo(true));
+        assertThat(allocated, lessThan(ALLOCATION_ALLOWANCE));
+    }
+
+    private Target addTarget(final String targetName) {
+        final Target target = new Target();
+        target.setName(targetName);
+        target.setProject(project);
+        project.addTarget(target);
+        return target;
+    }
+
+    private static String linkName(final int chain, final int link) {
+        return "chain" + chain + "-link" + link;
+    }
+
+    private static String nodeName(final int layer, final int node) {
+        return "layer" + layer + "-node" + node;
+    }
+
+    // Records submissions into a pre-sized array so that the test harness itself doesn't allocate
+    // while the graph is being run
+    private static final class RecordingExecutorService extends AbstractExecutorService {
+        private final Runnable[] submitted;
+        private int submittedCount;
+        private boolean shutdown;
+
+        public RecordingExecutorService(final int capacity) {
+            submitted = new Runnable[capacity];
+        }
+
+        public int getSubmittedCount() {
+            return submittedCount;
+        }
+
+        public void runAllSubmitted() {
+            for (int i = 0; i < submittedCount; i++) {
+                submitted[i].run();
+            }
+        }
+
+        @Override
+        public Future<?> submit(final Runnable task) {
+            execute(task);
+            return null;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            submitted[submittedCount++] = command;
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private static final class NoOpAntWrapper implements AntWrapper {
+        private int executedCount;
+
+        public int getExecutedCount() {
+            return executedCount;
+        }
+
+        @Override
+        public void executeTarget(final Target target) {
+            executedCount++;
+        }
+
+        @Override
+        public void topologicalSortProject(final Project project, final String[] roots, final boolean returnAll) {
+            // do nothing
+        }
+    }
+}
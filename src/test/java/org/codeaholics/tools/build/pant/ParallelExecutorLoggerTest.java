@@ -0,0 +1,149 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelExecutorLoggerTest {
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 2000;
+
+    private Project project;
+    private ParallelExecutorLogger logger;
+    private ByteArrayOutputStream output;
+    private ByteArrayOutputStream errorOutput;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+        output = new ByteArrayOutputStream();
+        errorOutput = new ByteArrayOutputStream();
+
+        logger = new ParallelExecutorLogger();
+        logger.setOutputPrintStream(new PrintStream(output, true));
+        logger.setErrorPrintStream(new PrintStream(errorOutput, true));
+        logger.setMessageOutputLevel(Project.MSG_INFO);
+    }
+
+    @Test
+    public void testPadsShortLabelsToTheLeftColumn() {
+        logger.messageLogged(message(createTask("a", "cp"), "short", Project.MSG_INFO));
+        logger.messageLogged(message(createTask("compile", "javac"), "long", Project.MSG_INFO));
+        logger.buildFinished(new BuildEvent(project));
+
+        assertThat(output.toString(), startsWith(lines("    [a / cp] short", "[compile / javac] long")));
+    }
+
+    @Test
+    public void testLabelsEveryLineOfAMultiLineMessage() {
+        final Task task = createTask("a", "cp");
+        logger.messageLogged(message(task, "one\ntwo\r\nthree\rfour\n", Project.MSG_INFO));
+        logger.messageLogged(message(task, "", Project.MSG_INFO));
+        logger.buildFinished(new BuildEvent(project));
+
+        assertThat(output.toString(), startsWith(lines("    [a / cp] one", "    [a / cp] two", "    [a / cp] three",
+                                                       "    [a / cp] four", "    [a / cp] ")));
+    }
+
+    @Test
+    public void testWritesErrorsToTheErrorStreamAndEverythingElseToTheOutputStream() {
+        final Target target = createTask("a", "cp").getOwningTarget();
+        logger.targetStarted(new BuildEvent(target));
+        logger.messageLogged(message(target.getTasks()[0], "copying", Project.MSG_INFO));
+        logger.messageLogged(message(target.getTasks()[0], "failed", Project.MSG_ERR));
+        logger.messageLogged(message(null, "unlabelled", Project.MSG_WARN));
+        logger.targetFinished(new BuildEvent(target));
+        logger.buildFinished(new BuildEvent(project));
+
+        assertThat(output.toString(), startsWith(lines("+ a", "    [a / cp] copying", "unlabelled", "- a")));
+        assertThat(errorOutput.toString(), equalTo(lines("    [a / cp] failed")));
+    }
+
+    @Test(timeout = 60000)
+    public void testWritesMessagesLoggedWhileTheBuildFinishes() throws Exception {
+        final CountDownLatch started = new CountDownLatch(PRODUCERS);
+        final Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int producer = i;
+            producers[i] = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int j = 0; j < MESSAGES_PER_PRODUCER; j++) {
+                        logger.messageLogged(message(null, "message " + producer + "." + j, Project.MSG_INFO));
+                    }
+                }
+            };
+            producers[i].start();
+        }
+
+        started.await();
+        logger.buildFinished(new BuildEvent(project));
+        for (final Thread producer: producers) {
+            producer.join();
+        }
+
+        final String log = output.toString();
+        for (int i = 0; i < PRODUCERS; i++) {
+            for (int j = 0; j < MESSAGES_PER_PRODUCER; j++) {
+                assertThat("message " + i + "." + j, log.contains("message " + i + "." + j + "\n")
+                        || log.contains("message " + i + "." + j + "\r"), equalTo(true));
+            }
+        }
+    }
+
+    private BuildEvent message(final Task task, final String message, final int priority) {
+        final BuildEvent event = task == null ? new BuildEvent(project) : new BuildEvent(task);
+        event.setMessage(message, priority);
+        return event;
+    }
+
+    private Task createTask(final String targetName, final String taskName) {
+        final Target target = new Target();
+        target.setName(targetName);
+        target.setProject(project);
+
+        final Task task = new Task() {};
+        task.setProject(project);
+        task.setOwningTarget(target);
+        task.setTaskName(taskName);
+        target.addTask(task);
+        return task;
+    }
+
+    private static String lines(final String... lines) {
+        final StringBuilder text = new StringBuilder();
+        for (final String line: lines) {
+            text.append(line).append(StringUtils.LINE_SEP);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.UnknownElement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelExecutorReleaseTest {
+    private File buildFile;
+    private Project project;
+    private UnknownElement convert;
+    private UnknownElement nestedPath;
+    private UnknownElement referencedPath;
+
+    @Before
+    public void setUp() throws Exception {
+        buildFile = File.createTempFile("pant-release", ".xml");
+
+        final FileWriter writer = new FileWriter(buildFile);
+        writer.write("<project name='release'>"
+                     + "<target name='compile'>"
+                     + "<pathconvert property='converted'><path><pathelement location='classes'/></path></pathconvert>"
+                     + "<path id='referenced'><pathelement location='lib'/></path>"
+                     + "</target>"
+                     + "<target name='package' depends='compile'><echo>${converted}</echo></target>"
+                     + "</project>");
+        writer.close();
+
+        project = new Project();
+        project.init();
+        ProjectHelper.configureProject(project, buildFile);
+
+        final Target compile = (Target) project.getTargets().get("compile");
+        convert = (UnknownElement) compile.getTasks()[0];
+        nestedPath = (UnknownElement) convert.getChildren().get(0);
+        referencedPath = (UnknownElement) compile.getTasks()[1];
+    }
+
+    @After
+    public void tearDown() {
+        buildFile.delete();
+    }
+
+    @Test
+    public void testKeepsNestedElementsConfiguredByDefault() {
+        new ParallelExecutor().executeTargets(project, new String[] {"package"});
+
+        // Ant lets go of the task itself, but its nested elements stay configured
+        assertThat(convert.getRealThing(), nullValue());
+        assertThat(nestedPath.getWrapper().getProxy(), notNullValue());
+    }
+
+    @Test
+    public void testReleasesTargetsOnceTheyAndTheirSuccessorsAreComplete() {
+        project.setProperty("pant.release", "true");
+        final SuccessorStartedListener listener = new SuccessorStartedListener();
+        project.addBuildListener(listener);
+
+        new ParallelExecutor().executeTargets(project, new String[] {"package"});
+
+        assertThat(listener.wasConfiguredWhenSuccessorStarted(), equalTo(true));
+        assertThat(nestedPath.getRealThing(), nullValue());
+        assertThat(nestedPath.getWrapper().getProxy(), nullValue());
+        // the project still refers to anything with an id
+        assertThat(referencedPath.getWrapper().getProxy(), notNullValue());
+        assertThat(project.getReference("referenced"), notNullValue());
+    }
+
+    @Test
+    public void testReconfiguresReleasedTargetsWhenTheyRunAgain() {
+        project.setProperty("pant.release", "true");
+
+        new ParallelExecutor().executeTargets(project, new String[] {"package", "compile"});
+
+        assertThat(project.getProperty("converted"), equalTo(new File(project.getBaseDir(), "classes").getPath()));
+        assertThat(nestedPath.getWrapper().getProxy(), nullValue());
+    }
+
+    private final class SuccessorStartedListener implements BuildListener {
+        private volatile boolean configuredWhenSuccessorStarted;
+
+        public boolean wasConfiguredWhenSuccessorStarted() {
+            return configuredWhenSuccessorStarted;
+        }
+
+        @Override
+        public void targetStarted(final BuildEvent event) {
+            if (event.getTarget().getName().equals("package")) {
+                configuredWhenSuccessorStarted = nestedPath.getWrapper().getProxy() != null;
+            }
+        }
+
+        @Override
+        public void buildStarted(final BuildEvent event) {
+            // not interested
+        }
+
+        @Override
+        public void buildFinished(final BuildEvent event) {
+            // not interested
+        }
+
+        @Override
+        public void targetFinished(final BuildEvent event) {
+            // not interested
+        }
+
+        @Override
+        public void taskStarted(final BuildEvent event) {
+            // not interested
+        }
+
+        @Override
+        public void taskFinished(final BuildEvent event) {
+            // not interested
+        }
+
+        @Override
+        public void messageLogged(final BuildEvent event) {
+            // not interested
+        }
+    }
+}
@@ -16,11 +16,16 @@ package org.codeaholics.tools.build.pant;
  *   limitations under the License.
  */
 
+import static org.codeaholics.tools.build.pant.AntTestHelper.configureProject;
 import static org.codeaholics.tools.build.pant.AntTestHelper.createTarget;
+import static org.codeaholics.tools.build.pant.AntTestHelper.writeBuildFile;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Hashtable;
 import java.util.LinkedList;
@@ -30,6 +35,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
 import org.apache.tools.ant.Target;
 import org.apache.tools.ant.Task;
 import org.hamcrest.Description;
@@ -55,7 +61,23 @@ public class ParallelExecutorTest {
     private static final String SPARE_TARGET_NAME = "spareTarget";
     private static final String UNKNOWN_PANT_TARGET_NAME = "pant:unknown";
     private static final String PANT_PRE_PHASE_TARGET_NAME = "pant:pre-phase";
+    private static final String PANT_PRE_PHASE_BLOCKS_TARGET_NAME = "pant:pre-phase.blocks";
+    private static final String PANT_PHASE1_TARGET_NAME = "pant:phase.1";
+    private static final String PANT_PHASE2_TARGET_NAME = "pant:phase.2";
+    private static final String PANT_EXCLUSIVE_TARGET_NAME = "pant:exclusive.group";
+    private static final String ROOT_TARGET_NAME = "root";
     private static final String PANT_THREADS = "pant.threads";
+    private static final String PANT_EVENTS = "pant.events";
+    private static final String PANT_PROGRESS = "pant.progress";
+    private static final String PANT_DURATIONS = "pant.durations";
+    private static final String PANT_GRAPH_CACHE = "pant.graph.cache";
+    private static final String PANT_CONCURRENT_PROPERTIES = "pant.concurrent.properties";
+    private static final String PANT_CONTENTION = "pant.contention";
+    private static final String PANT_AGENTS = "pant.agents";
+    private static final String PANT_REDUCE = "pant.reduce";
+    private static final String PANT_PREPARE = "pant.prepare";
+    private static final String PANT_RELEASE = "pant.release";
+    private static final String PANT_CHANGED = "pant.changed";
 
     private Mockery mockery;
     private ParallelExecutor parallelExecutor;
@@ -224,6 +246,12 @@ public class ParallelExecutorTest {
 
             atLeast(1).of(project).getTargets(); // wrapper should fetch targets
 
+            allowing(project).getProperty(PANT_GRAPH_CACHE);
+            will(returnValue(null));
+
+            allowing(project).getReference(GraphCache.STORE_REFERENCE);
+            will(returnValue(null));
+
             never(antWrapper).executeTarget(with(any(Target.class)));
         }});
 
@@ -412,6 +440,225 @@ public class ParallelExecutorTest {
         parallelExecutor.executeTargets(project, new String[] {TARGET_NAME3});
     }
 
+    @Test
+    public void testSchedulesNumberedPhasesInOrder() throws Exception {
+        final Hashtable<String, Target> targets = new Hashtable<String, Target>();
+
+        // phase 2 is declared first to show that phases are ordered by number, not declaration
+        final Target phase2Target = createPrivateTarget(PANT_PHASE2_TARGET_NAME, TARGET_NAME1);
+        final Target phase1Target = createPrivateTarget(PANT_PHASE1_TARGET_NAME, TARGET_NAME2);
+        targets.put(PANT_PHASE2_TARGET_NAME, phase2Target);
+        targets.put(PANT_PHASE1_TARGET_NAME, phase1Target);
+        targets.put(TARGET_NAME1, target1WithNoDependencies);
+        targets.put(TARGET_NAME2, target2WithNoDependencies);
+        targets.put(TARGET_NAME3, target3DependingOnTargets1And2);
+
+        allowNormalInteractions(targets, false);
+        allowAnyThreadCount();
+
+        parallelExecutor.setAntWrapper(new NoOpAntWrapper());
+
+        final List<DependencyGraphEntry> scheduledTargets = new LinkedList<DependencyGraphEntry>();
+
+        mockery.checking(new Expectations() {{
+            allowing(executorService).submit(with(any(Runnable.class)));
+            will(recordRunnableIn(scheduledTargets));
+        }});
+
+        parallelExecutor.executeTargets(project, new String[] {TARGET_NAME3});
+
+        // only the phase 1 target is scheduled at this point
+        assertThat(scheduledTargets, hasDependencyGraphEntriesForTargets(target2WithNoDependencies));
+
+        // allow it to complete
+        scheduledTargets.remove(0).run();
+
+        // now the phase 2 target should be released
+        assertThat(scheduledTargets, hasDependencyGraphEntriesForTargets(target1WithNoDependencies));
+    }
+
+    @Test
+    public void testPhaseBarrierOnlyHoldsBackBlockedTargets() throws Exception {
+        final Hashtable<String, Target> targets = new Hashtable<String, Target>();
+
+        final Target spareTarget = createTarget(mockery, SPARE_TARGET_NAME);
+        final Target rootTarget = createTarget(mockery, ROOT_TARGET_NAME, TARGET_NAME3, SPARE_TARGET_NAME);
+        targets.put(PANT_PRE_PHASE_TARGET_NAME, createPrivateTarget(PANT_PRE_PHASE_TARGET_NAME, TARGET_NAME1));
+        targets.put(PANT_PRE_PHASE_BLOCKS_TARGET_NAME, createPrivateTarget(PANT_PRE_PHASE_BLOCKS_TARGET_NAME, TARGET_NAME2));
+        targets.put(TARGET_NAME1, target1WithNoDependencies);
+        targets.put(TARGET_NAME2, target2WithNoDependencies);
+        targets.put(TARGET_NAME3, target3DependingOnTargets1And2);
+        targets.put(SPARE_TARGET_NAME, spareTarget);
+        targets.put(ROOT_TARGET_NAME, rootTarget);
+
+        allowNormalInteractions(targets, false);
+        allowAnyThreadCount();
+
+        parallelExecutor.setAntWrapper(new NoOpAntWrapper());
+
+        final List<DependencyGraphEntry> scheduledTargets = new LinkedList<DependencyGraphEntry>();
+
+        mockery.checking(new Expectations() {{
+            allowing(executorService).submit(with(any(Runnable.class)));
+            will(recordRunnableIn(scheduledTargets));
+        }});
+
+        parallelExecutor.executeTargets(project, new String[] {ROOT_TARGET_NAME});
+
+        // the spare target doesn't conflict with the pre-phase, so it runs alongside it
+        assertThat(scheduledTargets, hasDependencyGraphEntriesForTargets(target1WithNoDependencies, spareTarget));
+
+        // allow the pre-phase target to complete
+        for (final DependencyGraphEntry dependencyGraphEntry: scheduledTargets.toArray(new DependencyGraphEntry[0])) {
+            if (dependencyGraphEntry.getTarget() == target1WithNoDependencies) {
+                scheduledTargets.remove(dependencyGraphEntry);
+                dependencyGraphEntry.run();
+            }
+        }
+
+        // now the blocked target should be released
+        assertThat(scheduledTargets, hasDependencyGraphEntriesForTargets(spareTarget, target2WithNoDependencies));
+    }
+
+    @Test(expected = PhaseTargetCanOnlyDependOnEarlierPhaseTargetsException.class)
+    public void testPhaseTargetsCannotDependOnLaterPhaseTargets() throws Exception {
+        final Hashtable<String, Target> targets = new Hashtable<String, Target>();
+
+        final Target spareTargetDependingOnTarget1 = createTarget(mockery, SPARE_TARGET_NAME, TARGET_NAME1);
+        targets.put(PANT_PHASE1_TARGET_NAME, createPrivateTarget(PANT_PHASE1_TARGET_NAME, SPARE_TARGET_NAME));
+        targets.put(PANT_PHASE2_TARGET_NAME, createPrivateTarget(PANT_PHASE2_TARGET_NAME, TARGET_NAME1));
+        targets.put(TARGET_NAME1, target1WithNoDependencies);
+        targets.put(SPARE_TARGET_NAME, spareTargetDependingOnTarget1);
+
+        allowNormalInteractions(targets, false);
+        allowAnyThreadCount();
+
+        parallelExecutor.setAntWrapper(new FailOnExecuteAntWrapper());
+
+        mockery.checking(new Expectations() {{
+            never(executorService).submit(with(any(Runnable.class)));
+        }});
+
+        parallelExecutor.executeTargets(project, new String[] {SPARE_TARGET_NAME});
+    }
+
+    @Test(expected = TargetInMultiplePhasesException.class)
+    public void testTargetCannotBeInMoreThanOnePhase() throws Exception {
+        final Hashtable<String, Target> targets = new Hashtable<String, Target>();
+
+        targets.put(PANT_PRE_PHASE_TARGET_NAME, createPrivateTarget(PANT_PRE_PHASE_TARGET_NAME, TARGET_NAME1));
+        targets.put(PANT_PHASE1_TARGET_NAME, createPrivateTarget(PANT_PHASE1_TARGET_NAME, TARGET_NAME1));
+        targets.put(TARGET_NAME1, target1WithNoDependencies);
+
+        allowNormalInteractions(targets, false);
+        allowAnyThreadCount();
+
+        parallelExecutor.setAntWrapper(new FailOnExecuteAntWrapper());
+
+        mockery.checking(new Expectations() {{
+            never(executorService).submit(with(any(Runnable.class)));
+        }});
+
+        parallelExecutor.executeTargets(project, new String[] {TARGET_NAME1});
+    }
+
+    @Test(expected = UnknownPrivateTargetException.class)
+    public void testThrowsExceptionOnBlocksTargetForUnknownPhase() throws Exception {
+        final Hashtable<String, Target> targets = new Hashtable<String, Target>();
+
+        targets.put(PANT_PRE_PHASE_BLOCKS_TARGET_NAME, createPrivateTarget(PANT_PRE_PHASE_BLOCKS_TARGET_NAME, TARGET_NAME1));
+        targets.put(TARGET_NAME1, target1WithNoDependencies);
+
+        allowNormalInteractions(targets, false);
+        allowAnyThreadCount();
+
+        parallelExecutor.setAntWrapper(new FailOnExecuteAntWrapper());
+
+        mockery.checking(new Expectations() {{
+            never(executorService).submit(with(any(Runnable.class)));
+        }});
+
+        parallelExecutor.executeTargets(project, new String[] {TARGET_NAME1});
+    }
+
+    @Test
+    public void testNeverSchedulesMembersOfAnExclusionGroupConcurrently() throws Exception {
+        final Hashtable<String, Target> targets = new Hashtable<String, Target>();
+
+        targets.put(PANT_EXCLUSIVE_TARGET_NAME, createPrivateTarget(PANT_EXCLUSIVE_TARGET_NAME, TARGET_NAME1, TARGET_NAME2));
+        targets.put(TARGET_NAME1, target1WithNoDependencies);
+        targets.put(TARGET_NAME2, target2WithNoDependencies);
+        targets.put(TARGET_NAME3, target3DependingOnTargets1And2);
+
+        allowNormalInteractions(targets, false);
+        allowAnyThreadCount();
+
+        parallelExecutor.setAntWrapper(new NoOpAntWrapper());
+
+        final List<DependencyGraphEntry> scheduledTargets = new LinkedList<DependencyGraphEntry>();
+
+        mockery.checking(new Expectations() {{
+            allowing(executorService).submit(with(any(Runnable.class)));
+            will(recordRunnableIn(scheduledTargets));
+        }});
+
+        parallelExecutor.executeTargets(project, new String[] {TARGET_NAME3});
+
+        // only one of the group can be scheduled
+        assertThat(scheduledTargets.size(), equalTo(1));
+        final Target firstMember = scheduledTargets.get(0).getTarget();
+
+        // allow it to complete
+        scheduledTargets.remove(0).run();
+
+        // now the other member should be released
+        assertThat(scheduledTargets, hasDependencyGraphEntriesForTargets(
+                firstMember == target1WithNoDependencies ? target2WithNoDependencies : target1WithNoDependencies));
+    }
+
+    @Test
+    public void testExclusionGroupRunsMemberWithLongestCriticalPathFirst() throws Exception {
+        final Hashtable<String, Target> targets = new Hashtable<String, Target>();
+
+        final Target spareTarget = createTarget(mockery, SPARE_TARGET_NAME);
+        final Target rootTarget = createTarget(mockery, ROOT_TARGET_NAME, TARGET_NAME3, SPARE_TARGET_NAME);
+        targets.put(PANT_EXCLUSIVE_TARGET_NAME, createPrivateTarget(PANT_EXCLUSIVE_TARGET_NAME, SPARE_TARGET_NAME, TARGET_NAME1));
+        targets.put(TARGET_NAME1, target1WithNoDependencies);
+        targets.put(TARGET_NAME2, target2WithNoDependencies);
+        targets.put(TARGET_NAME3, target3DependingOnTargets1And2);
+        targets.put(SPARE_TARGET_NAME, spareTarget);
+        targets.put(ROOT_TARGET_NAME, rootTarget);
+
+        allowNormalInteractions(targets, false);
+        allowAnyThreadCount();
+
+        parallelExecutor.setAntWrapper(new NoOpAntWrapper());
+
+        final List<DependencyGraphEntry> scheduledTargets = new LinkedList<DependencyGraphEntry>();
+
+        mockery.checking(new Expectations() {{
+            allowing(executorService).submit(with(any(Runnable.class)));
+            will(recordRunnableIn(scheduledTargets));
+        }});
+
+        parallelExecutor.executeTargets(project, new String[] {ROOT_TARGET_NAME});
+
+        // target 1 is further from the root than the spare target, so it wins the group; target 2
+        // isn't in the group so runs alongside it
+        assertThat(scheduledTargets, hasDependencyGraphEntriesForTargets(target1WithNoDependencies, target2WithNoDependencies));
+
+        // allow target 1 to complete
+        for (final DependencyGraphEntry dependencyGraphEntry: scheduledTargets.toArray(new DependencyGraphEntry[0])) {
+            if (dependencyGraphEntry.getTarget() == target1WithNoDependencies) {
+                scheduledTargets.remove(dependencyGraphEntry);
+                dependencyGraphEntry.run();
+            }
+        }
+
+        // now the spare target gets the group
+        assertThat(scheduledTargets, hasDependencyGraphEntriesForTargets(target2WithNoDependencies, spareTarget));
+    }
+
     @Test
     public void testCreateExecutorServiceWithCorrectNumberOfThreads() throws Exception {
         final Hashtable<String, Target> targets = new Hashtable<String, Target>();
@@ -456,6 +703,44 @@ public class ParallelExecutorTest {
         parallelExecutor.executeTargets(project, new String[] {TARGET_NAME1});
     }
 
+    @Test
+    public void testRunsABuildWithTheDefaultSettings() throws Exception {
+        final File buildFile = writeBuildFile("pant-defaults",
+                "<project name='defaults'>"
+                + "<target name='init'><property name='greeting' value='hello'/></target>"
+                + "<target name='left' depends='init'><echo>left ${greeting}</echo></target>"
+                + "<target name='right' depends='init'><echo>right ${greeting}</echo></target>"
+                + "<target name='all' depends='left,right'><echo>done</echo></target>"
+                + "</project>");
+        try {
+            final MessageRecorder messageRecorder = MessageRecorder.taskOutput();
+            final Project realProject = configureProject(buildFile, messageRecorder);
+
+            // targets are prepared ahead of time, on another thread
+            new ParallelExecutor().executeTargets(realProject, new String[] {"all"});
+
+            final List<String> messages = messageRecorder.getMessages();
+            assertThat(messages, hasItem("left hello"));
+            assertThat(messages, hasItem("right hello"));
+            assertThat(messages.get(messages.size() - 1), equalTo("done"));
+            // and properties are read without locking
+            assertThat(PropertyHelper.getPropertyHelper(realProject), instanceOf(ConcurrentPropertyHelper.class));
+        } finally {
+            buildFile.delete();
+        }
+    }
+
+    private Target createPrivateTarget(final String targetName, final String... dependencies) {
+        final Target target = createTarget(mockery, targetName, dependencies);
+
+        mockery.checking(new Expectations() {{
+            allowing(target).getTasks();
+            will(returnValue(null));
+        }});
+
+        return target;
+    }
+
     private void allowNormalInteractions(final Hashtable<String, Target> targets, final boolean keepGoingMode) throws InterruptedException {
         mockery.checking(new Expectations() {{
             allowing(project).getTargets();
@@ -468,6 +753,54 @@ public class ParallelExecutorTest {
             will(returnValue(true));
 
             allowing(project).log(with(any(String.class)), with(any(Integer.TYPE)));
+
+            allowing(project).addReference(with(equal(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE)),
+                                           with(any(Object.class)));
+
+            allowing(project).addReference(with(equal(ScanCache.REFERENCE)),
+                                           with(any(ScanCache.class)));
+
+            allowing(project).getProperties();
+            will(returnValue(new Hashtable<String, Object>()));
+
+            allowing(project).getProperty(PANT_EVENTS);
+            will(returnValue(null));
+
+            allowing(project).getProperty(PANT_PROGRESS);
+            will(returnValue(null));
+
+            allowing(project).getProperty(PANT_DURATIONS);
+            will(returnValue(null));
+
+            allowing(project).getProperty(PANT_GRAPH_CACHE);
+            will(returnValue(null));
+
+            allowing(project).getReference(GraphCache.STORE_REFERENCE);
+            will(returnValue(null));
+
+            allowing(project).getProperty(PANT_CONTENTION);
+            will(returnValue(null));
+
+            allowing(project).getProperty(PANT_AGENTS);
+            will(returnValue(null));
+
+            allowing(project).getProperty(PANT_REDUCE);
+            will(returnValue(null));
+
+            allowing(project).getProperty(PANT_RELEASE);
+            will(returnValue(null));
+
+            allowing(project).getProperty(PANT_CHANGED);
+            will(returnValue(null));
+
+            // preparing targets would need real ones; see testRunsABuildWithTheDefaultSettings
+            allowing(project).getProperty(PANT_PREPARE);
+            will(returnValue("false"));
+
+            // replacing the property helper would need a real project, as in
+            // testRunsABuildWithTheDefaultSettings
+            allowing(project).getProperty(PANT_CONCURRENT_PROPERTIES);
+            will(returnValue("false"));
         }});
     }
 
@@ -0,0 +1,208 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.helper.ProjectHelper2;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelProjectHelperTest {
+    private static final int FRAGMENTS = 20;
+    private static final String REPLAYED_SUFFIX = "from a concurrent parse";
+
+    private File buildDirectory;
+    private int replayedFiles;
+
+    @Before
+    public void setUp() throws Exception {
+        buildDirectory = File.createTempFile("pant-parse", "");
+        buildDirectory.delete();
+        buildDirectory.mkdir();
+
+        final StringBuilder imports = new StringBuilder();
+        for (int fragment = 0; fragment < FRAGMENTS; fragment++) {
+            imports.append("<import file='fragment").append(fragment).append(".xml'/>");
+            // every other fragment imports a nested one of its own, and the last overrides a target
+            final String nested = fragment % 2 == 0
+                    ? "<import file='nested" + fragment + ".xml'/>"
+                    : "";
+            writeFile("fragment" + fragment + ".xml",
+                      "<project name='fragment" + fragment + "'>" + nested
+                      + "<target name='shared'><echo>fragment" + fragment + "</echo></target>"
+                      + "<target name='target" + fragment + "' depends='common'>"
+                      + "<echo>in fragment " + fragment + "</echo></target>"
+                      + "</project>");
+            writeFile("nested" + fragment + ".xml",
+                      "<project name='nested" + fragment + "'>"
+                      + "<target name='nested-target" + fragment + "'/></project>");
+        }
+        writeFile("late.xml", "<project name='late'><target name='late'/></project>");
+
+        writeFile("build.xml",
+                  "<project name='main' default='all' xmlns:x='urn:example'>"
+                  + "<property name='late.file' value='late.xml'/>"
+                  + imports
+                  + "<import file='${late.file}'/>"
+                  + "<target name='common'/>"
+                  + "<target name='all' depends='common,target0'>\n<echo x:attribute='1'>main</echo></target>"
+                  + "</project>");
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file: buildDirectory.listFiles()) {
+            file.delete();
+        }
+        buildDirectory.delete();
+    }
+
+    @Test
+    public void testProducesTheSameTargetsAsTheStandardHelper() {
+        final Project expected = parse(new ProjectHelper2());
+        assertThat(replayedFiles, equalTo(0));
+        final Project actual = parse(new ParallelProjectHelper());
+
+        // the main file, the fragments and their nested imports, and late.xml
+        assertThat(replayedFiles, equalTo(1 + FRAGMENTS + FRAGMENTS / 2 + 1));
+
+        assertThat(actual.getName(), equalTo(expected.getName()));
+        assertThat(actual.getDefaultTarget(), equalTo(expected.getDefaultTarget()));
+        assertThat(describeTargets(actual), equalTo(describeTargets(expected)));
+        // both the nested imports and the one resolved from a property made it in
+        assertThat(actual.getTargets().containsKey("nested-target" + (FRAGMENTS - 2)), equalTo(true));
+        assertThat(actual.getTargets().containsKey("late"), equalTo(true));
+    }
+
+    @Test
+    public void testIsChosenByAntsHelperProperty() throws Exception {
+        // Ant only reads the property the first time it looks for a helper, so ask a copy of its own
+        final ClassLoader antLoader = new URLClassLoader(new URL[] {getLocation(ProjectHelper.class),
+                                                                    getLocation(ParallelProjectHelper.class)},
+                                                         null);
+        final String previousHelper = System.getProperty(ProjectHelper.HELPER_PROPERTY);
+        final ClassLoader previousLoader = Thread.currentThread().getContextClassLoader();
+        System.setProperty(ProjectHelper.HELPER_PROPERTY, ParallelProjectHelper.class.getName());
+        Thread.currentThread().setContextClassLoader(antLoader);
+        try {
+            final Object projectHelper =
+                    antLoader.loadClass(ProjectHelper.class.getName()).getMethod("getProjectHelper").invoke(null);
+            assertThat(projectHelper.getClass().getName(), equalTo(ParallelProjectHelper.class.getName()));
+        } finally {
+            Thread.currentThread().setContextClassLoader(previousLoader);
+            if (previousHelper == null) {
+                System.clearProperty(ProjectHelper.HELPER_PROPERTY);
+            } else {
+                System.setProperty(ProjectHelper.HELPER_PROPERTY, previousHelper);
+            }
+        }
+    }
+
+    private Map<String, String> describeTargets(final Project project) {
+        final Map<String, String> descriptions = new TreeMap<String, String>();
+
+        @SuppressWarnings("unchecked")
+        final Map<String, Target> targets = project.getTargets();
+        for (final Map.Entry<String, Target> entry: targets.entrySet()) {
+            final Target target = entry.getValue();
+            final StringBuilder description = new StringBuilder();
+            description.append(target.getName()).append(' ').append(target.getLocation()).append(' ');
+            description.append(target.getTasks().length);
+            @SuppressWarnings("unchecked")
+            final Enumeration<String> dependencies = target.getDependencies();
+            while (dependencies.hasMoreElements()) {
+                description.append(' ').append(dependencies.nextElement());
+            }
+            descriptions.put(entry.getKey(), description.toString());
+        }
+
+        return descriptions;
+    }
+
+    private Project parse(final ProjectHelper projectHelper) {
+        final Project project = new Project();
+        project.addBuildListener(new BuildListener() {
+            @Override
+            public void messageLogged(final BuildEvent event) {
+                if (event.getMessage().endsWith(REPLAYED_SUFFIX)) {
+                    replayedFiles++;
+                }
+            }
+
+            @Override
+            public void buildStarted(final BuildEvent event) {
+                // not interested
+            }
+
+            @Override
+            public void buildFinished(final BuildEvent event) {
+                // not interested
+            }
+
+            @Override
+            public void targetStarted(final BuildEvent event) {
+                // not interested
+            }
+
+            @Override
+            public void targetFinished(final BuildEvent event) {
+                // not interested
+            }
+
+            @Override
+            public void taskStarted(final BuildEvent event) {
+                // not interested
+            }
+
+            @Override
+            public void taskFinished(final BuildEvent event) {
+                // not interested
+            }
+        });
+        project.init();
+        project.addReference(ProjectHelper.PROJECTHELPER_REFERENCE, projectHelper);
+        projectHelper.parse(project, new File(buildDirectory, "build.xml"));
+        return project;
+    }
+
+    private static URL getLocation(final Class<?> clazz) {
+        return clazz.getProtectionDomain().getCodeSource().getLocation();
+    }
+
+    private void writeFile(final String name, final String contents) throws IOException {
+        final FileWriter writer = new FileWriter(new File(buildDirectory, name));
+        writer.write(contents);
+        writer.close();
+    }
+}
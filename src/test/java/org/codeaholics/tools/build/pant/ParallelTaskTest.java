@@ -0,0 +1,217 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.codeaholics.tools.build.pant.AntTestHelper.configureProject;
+import static org.codeaholics.tools.build.pant.AntTestHelper.writeBuildFile;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelTaskTest {
+    private static final int TASKS = 4;
+    private static final long SLEEP_MILLIS = 300;
+
+    private File buildFile;
+    private Project project;
+    private ExecutorService executorService;
+    private List<String> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        final StringBuilder sleeps = new StringBuilder();
+        for (int task = 0; task < TASKS; task++) {
+            sleeps.append("<sequential><sleep milliseconds='").append(SLEEP_MILLIS).append("'/>")
+                  .append("<echo>slept ").append(task).append("</echo></sequential>");
+        }
+
+        final StringBuilder greetings = new StringBuilder();
+        for (int task = 0; task < TASKS; task++) {
+            greetings.append("<sequential><local name='mine'/>")
+                     .append("<property name='mine' value='").append(task).append("'/>")
+                     .append("<sleep milliseconds='").append(SLEEP_MILLIS).append("'/>")
+                     .append("<echo>${greeting} ").append(task).append(" ${mine}</echo></sequential>");
+        }
+
+        buildFile = writeBuildFile("pant-parallel",
+                "<project name='parallel'>"
+                + "<taskdef name='parallel' classname='" + ParallelTask.class.getName() + "'/>"
+                + "<target name='all'><parallel>" + sleeps + "</parallel></target>"
+                + "<target name='one-at-a-time'><parallel threadCount='1'>" + sleeps + "</parallel></target>"
+                + "<target name='nested'><parallel>"
+                + "<parallel>" + sleeps + "</parallel><parallel>" + sleeps + "</parallel>"
+                + "</parallel></target>"
+                + "<target name='broken'><parallel>"
+                + "<fail>first</fail><echo>carried on</echo><fail>second</fail>"
+                + "</parallel></target>"
+                + "<target name='locals'><local name='greeting'/><property name='greeting' value='hello'/>"
+                + "<parallel>" + greetings + "</parallel></target>"
+                + "<target name='waits-on-a-sibling'><parallel>"
+                + "<waitfor maxwait='300' maxwaitunit='millisecond' timeoutproperty='timed.out'>"
+                + "<isset property='sibling.started'/></waitfor>"
+                + "<property name='sibling.started' value='true'/>"
+                + "</parallel><echo>timed out: ${timed.out}</echo></target>"
+                + "<target name='fail-on-any'><parallel threadCount='1' failonany='true'>"
+                + "<fail>first</fail><echo>carried on</echo>"
+                + "</parallel></target>"
+                + "</project>");
+
+        final MessageRecorder messageRecorder = MessageRecorder.taskOutput();
+        messages = messageRecorder.getMessages();
+        project = configureProject(buildFile, messageRecorder);
+
+        executorService = Executors.newFixedThreadPool(TASKS);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+        buildFile.delete();
+    }
+
+    @Test
+    public void testRunsNestedTasksConcurrentlyOnTheSharedPool() {
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        final long elapsedMillis = timeTarget("all");
+
+        assertSleptInEveryTask();
+        assertThat(elapsedMillis, lessThan(TASKS * SLEEP_MILLIS));
+    }
+
+    @Test
+    public void testRunsNoMoreThanThreadCountAtOnce() {
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        final long elapsedMillis = timeTarget("one-at-a-time");
+
+        assertSleptInEveryTask();
+        assertThat(elapsedMillis, greaterThanOrEqualTo(TASKS * SLEEP_MILLIS));
+    }
+
+    @Test
+    public void testRunsInTheCallingThreadWithoutAPool() {
+        project.executeTarget("all");
+
+        assertSleptInEveryTask();
+    }
+
+    @Test
+    public void testFinishesNestedParallelsOnAPoolOfOne() {
+        executorService.shutdownNow();
+        executorService = Executors.newFixedThreadPool(1);
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        project.executeTarget("nested");
+
+        assertThat(messages.size(), equalTo(2 * TASKS));
+    }
+
+    @Test
+    public void testGivesEveryNestedTaskItsOwnCopyOfTheCallersLocalProperties() {
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        project.executeTarget("locals");
+
+        for (int task = 0; task < TASKS; task++) {
+            assertThat(messages.contains("hello " + task + " " + task), equalTo(true));
+        }
+    }
+
+    @Test
+    public void testRunsNestedTasksOneAfterAnotherWhenThePoolIsBusy() throws Exception {
+        executorService.shutdownNow();
+        executorService = Executors.newFixedThreadPool(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        executorService.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                released.await();
+                return null;
+            }
+        });
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        try {
+            project.executeTarget("waits-on-a-sibling");
+        } finally {
+            released.countDown();
+        }
+
+        // the documented limitation: the sibling only ran once the wait was over
+        assertThat(messages.contains("timed out: true"), equalTo(true));
+    }
+
+    @Test
+    public void testRunsEveryTaskAndReportsAllTheFailures() {
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        try {
+            project.executeTarget("broken");
+            fail();
+        } catch (final BuildException e) {
+            assertThat(e.getMessage(), containsString("2 nested tasks failed"));
+            assertThat(e.getMessage(), containsString("first"));
+            assertThat(e.getMessage(), containsString("second"));
+        }
+
+        assertThat(messages.contains("carried on"), equalTo(true));
+    }
+
+    @Test
+    public void testStartsNothingMoreAfterAFailureWhenFailingOnAny() {
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+
+        try {
+            project.executeTarget("fail-on-any");
+            fail();
+        } catch (final BuildException e) {
+            assertThat(e.getMessage(), equalTo("first"));
+        }
+
+        assertThat(messages.contains("carried on"), equalTo(false));
+    }
+
+    private long timeTarget(final String targetName) {
+        final long start = System.nanoTime();
+        project.executeTarget(targetName);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private void assertSleptInEveryTask() {
+        for (int task = 0; task < TASKS; task++) {
+            assertThat(messages.contains("slept " + task), equalTo(true));
+        }
+    }
+}
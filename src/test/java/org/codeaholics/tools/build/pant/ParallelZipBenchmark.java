@@ -0,0 +1,117 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Jar;
+
+// Not a test: compares Ant's <jar> with ParallelJarTask on a generated tree of text files, with a
+// pool of the given size standing in for the parallel executor's. Run it by hand, e.g.
+//
+//     java -cp ... org.codeaholics.tools.build.pant.ParallelZipBenchmark [threads] [files]
+public class ParallelZipBenchmark {
+    private static final int DIRECTORIES = 100;
+    private static final String[] WORDS = {
+        "parallel", "executor", "target", "dependency", "graph", "archive", "entry", "compress", "thread", "pool"
+    };
+
+    public static void main(final String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int files = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        final File baseDir = File.createTempFile("pant-zip-benchmark", "");
+        baseDir.delete();
+        final File sources = new File(baseDir, "sources");
+        generate(sources, files);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            // first run of each is a warm-up
+            for (int run = 0; run < 2; run++) {
+                report("jar", threads, files, time(new Jar(), sources, new File(baseDir, "ant.jar"), null));
+                report("pjar", threads, files,
+                       time(new ParallelJarTask(), sources, new File(baseDir, "pant.jar"), executorService));
+            }
+        } finally {
+            executorService.shutdownNow();
+            deleteAll(baseDir);
+        }
+    }
+
+    private static void generate(final File sources, final int files) throws IOException {
+        final Random random = new Random(42);
+        for (int file = 0; file < files; file++) {
+            final File dir = new File(sources, "dir" + file % DIRECTORIES);
+            dir.mkdirs();
+            final StringBuilder content = new StringBuilder();
+            final int words = random.nextInt(4000);
+            for (int word = 0; word < words; word++) {
+                content.append(WORDS[random.nextInt(WORDS.length)]).append(word % 12 == 11 ? '\n' : ' ');
+            }
+            final FileWriter writer = new FileWriter(new File(dir, "file" + file + ".txt"));
+            writer.write(content.toString());
+            writer.close();
+        }
+    }
+
+    private static long time(final Task task, final File sources, final File destFile,
+                             final ExecutorService executorService) {
+        destFile.delete();
+
+        final Project project = new Project();
+        project.init();
+        if (executorService != null) {
+            project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+        }
+        task.setProject(project);
+        task.setTaskName("benchmark");
+        if (task instanceof Jar) {
+            ((Jar) task).setDestFile(destFile);
+            ((Jar) task).setBasedir(sources);
+        } else {
+            ((ParallelJarTask) task).setDestFile(destFile);
+            ((ParallelJarTask) task).setBasedir(sources);
+        }
+
+        final long start = System.nanoTime();
+        task.execute();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void report(final String name, final int threads, final int files, final long millis) {
+        System.out.println(String.format("%-5s %3d threads, %6d files: %7d ms", name, threads, files, millis));
+    }
+
+    private static void deleteAll(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child: children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,205 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelZipTaskTest {
+    // more than the compression window, so the writer has to wait on the pool
+    private static final int FILES = 600;
+
+    private File baseDir;
+    private Project project;
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = File.createTempFile("pant-zip", "");
+        baseDir.delete();
+
+        for (int file = 0; file < FILES; file++) {
+            final StringBuilder content = new StringBuilder();
+            for (int line = 0; line < file; line++) {
+                content.append("line ").append(line).append(" of file ").append(file).append('\n');
+            }
+            write("site/pages" + file % 7 + "/page" + file + ".txt", content.toString());
+        }
+        write("site/empty.txt", "");
+        new File(baseDir, "site/empty-dir").mkdirs();
+        write("site/META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nFrom-Fileset: yes\n");
+        write("extra/notes.txt", "notes");
+        write("manifest.mf", "Main-Class: org.example.Main\n");
+
+        write("build.xml", "<project name='zip'>"
+                           + "<taskdef name='pzip' classname='" + ParallelZipTask.class.getName() + "'/>"
+                           + "<taskdef name='pjar' classname='" + ParallelJarTask.class.getName() + "'/>"
+                           + "<target name='zip'>"
+                           + "<zip destfile='ant.zip' basedir='site'>"
+                           + "<zipfileset dir='extra' prefix='docs/extra'/></zip>"
+                           + "<pzip destfile='pant.zip' basedir='site'>"
+                           + "<zipfileset dir='extra' prefix='docs/extra'/></pzip>"
+                           + "</target>"
+                           + "<target name='stored'>"
+                           + "<pzip destfile='stored.zip' basedir='extra' compress='false'/></target>"
+                           + "<target name='jar'>"
+                           + "<pjar destfile='pant.jar' basedir='site' manifest='manifest.mf'/></target>"
+                           + "</project>");
+
+        project = new Project();
+        project.init();
+        ProjectHelper.configureProject(project, new File(baseDir, "build.xml"));
+
+        executorService = Executors.newFixedThreadPool(4);
+        project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+        deleteAll(baseDir);
+    }
+
+    @Test
+    public void testHasTheSameContentsAsAntsZip() throws Exception {
+        project.executeTarget("zip");
+
+        final Map<String, String> expected = readAll(new File(baseDir, "ant.zip"));
+        final Map<String, String> actual = readAll(new File(baseDir, "pant.zip"));
+        assertThat(actual.keySet(), equalTo(expected.keySet()));
+        assertThat(actual, equalTo(expected));
+    }
+
+    @Test
+    public void testStoresEntriesWithoutCompression() throws Exception {
+        project.executeTarget("stored");
+
+        final ZipFile zipFile = new ZipFile(new File(baseDir, "stored.zip"));
+        try {
+            assertThat(zipFile.getEntry("notes.txt").getMethod(), equalTo(ZipEntry.STORED));
+            assertThat(read(zipFile, zipFile.getEntry("notes.txt")), equalTo("notes"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void testStartsAJarWithItsOwnManifest() throws Exception {
+        project.executeTarget("jar");
+
+        final JarFile jarFile = new JarFile(new File(baseDir, "pant.jar"));
+        try {
+            final List<String> names = new LinkedList<String>();
+            final Enumeration<? extends ZipEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+            assertThat(names.subList(0, 2), equalTo(Arrays.asList("META-INF/", "META-INF/MANIFEST.MF")));
+            assertThat(names.lastIndexOf("META-INF/MANIFEST.MF"), equalTo(1));
+
+            final Attributes attributes = jarFile.getManifest().getMainAttributes();
+            assertThat(attributes.getValue("Main-Class"), equalTo("org.example.Main"));
+            assertThat(attributes.getValue("From-Fileset"), equalTo(null));
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    @Test
+    public void testLeavesAnUpToDateArchiveAlone() throws Exception {
+        project.executeTarget("stored");
+        final File archive = new File(baseDir, "stored.zip");
+        final long later = System.currentTimeMillis() + 60000;
+        archive.setLastModified(later);
+
+        project.executeTarget("stored");
+
+        assertThat(archive.lastModified(), equalTo(later));
+    }
+
+    private static Map<String, String> readAll(final File file) throws IOException {
+        final Map<String, String> contents = new TreeMap<String, String>();
+        final ZipFile zipFile = new ZipFile(file);
+        try {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                contents.put(entry.getName(), read(zipFile, entry));
+            }
+        } finally {
+            zipFile.close();
+        }
+        return contents;
+    }
+
+    private static String read(final ZipFile zipFile, final ZipEntry entry) throws IOException {
+        final InputStream in = zipFile.getInputStream(entry);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(final String name, final String content) throws IOException {
+        final File file = new File(baseDir, name);
+        file.getParentFile().mkdirs();
+        final FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    }
+
+    private static void deleteAll(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child: children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
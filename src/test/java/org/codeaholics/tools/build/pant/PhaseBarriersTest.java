@@ -0,0 +1,73 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.tools.ant.Target;
+import org.junit.Test;
+
+public class PhaseBarriersTest {
+    @Test
+    public void testRecognisesPhaseTargetNames() {
+        assertThat(PhaseBarriers.getPhaseOrder("pant:pre-phase"), equalTo(-1));
+        assertThat(PhaseBarriers.getPhaseOrder("pant:phase.2"), equalTo(2));
+        assertThat(PhaseBarriers.getPhaseOrder("pant:phase.02"), nullValue());
+        assertThat(PhaseBarriers.getPhaseOrder("pant:phase.two"), nullValue());
+        assertThat(PhaseBarriers.getBlockedPhaseName("pant:phase.2.blocks"), equalTo("pant:phase.2"));
+        assertThat(PhaseBarriers.getBlockedPhaseName("pant:phase.two.blocks"), nullValue());
+    }
+
+    @Test
+    public void testHoldsBlockedTargetsUntilTheirPhaseCompletes() {
+        final PhaseBarriers phaseBarriers = new PhaseBarriers();
+        phaseBarriers.addPhase("pant:phase.1", Arrays.asList("generate"), Collections.singleton("compile"));
+
+        final DependencyGraphEntry generate = createEntry("generate", 0);
+        final DependencyGraphEntry compile = createEntry("compile", DependencyGraphEntry.UNPHASED);
+        final DependencyGraphEntry docs = createEntry("docs", DependencyGraphEntry.UNPHASED);
+        phaseBarriers.prepare(Arrays.asList(generate, compile, docs));
+
+        assertThat(phaseBarriers.hold(compile), equalTo(true));
+        assertThat(phaseBarriers.hold(docs), equalTo(false));
+        assertThat(phaseBarriers.isBlocked(compile), equalTo(true));
+
+        assertThat(phaseBarriers.phaseTargetComplete(0), equalTo(true));
+        assertThat(phaseBarriers.isBlocked(compile), equalTo(false));
+        assertThat(phaseBarriers.pollHeld(0), sameInstance(compile));
+        assertThat(phaseBarriers.pollHeld(0), nullValue());
+    }
+
+    @Test(expected = TargetInMultiplePhasesException.class)
+    public void testRejectsATargetInTwoPhases() {
+        final PhaseBarriers phaseBarriers = new PhaseBarriers();
+        phaseBarriers.addPhase("pant:phase.1", Arrays.asList("generate"), null);
+        phaseBarriers.addPhase("pant:phase.2", Arrays.asList("generate"), null);
+    }
+
+    private static DependencyGraphEntry createEntry(final String targetName, final int phase) {
+        final Target target = new Target();
+        target.setName(targetName);
+        return new DependencyGraphEntry(target, phase, null, null);
+    }
+}
@@ -0,0 +1,160 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProgressReporterTest {
+    private static final String TARGET_NAME1 = "targetName1";
+    private static final String TARGET_NAME2 = "targetName2";
+    private static final String TARGET_NAME3 = "targetName3";
+
+    private Project project;
+    private File durationsFile;
+    private DependencyGraph dependencyGraph;
+    private DependencyGraphEntry entry1;
+    private DependencyGraphEntry entry2;
+
+    @Before
+    public void setUp() throws Exception {
+        project = new Project();
+        durationsFile = File.createTempFile("pant-durations", ".properties");
+        durationsFile.delete();
+
+        // a chain: 1 <- 2 <- 3
+        final Map<String, Target> targets = new HashMap<String, Target>();
+        final Target target1 = createTarget(targets, TARGET_NAME1);
+        createTarget(targets, TARGET_NAME2).addDependency(TARGET_NAME1);
+        final Target target3 = createTarget(targets, TARGET_NAME3);
+        target3.addDependency(TARGET_NAME2);
+
+        @SuppressWarnings("unchecked")
+        final Map<String, Integer> targetPhases = Collections.EMPTY_MAP;
+        dependencyGraph = new DependencyGraph(targets, targetPhases, new DependencyGraphEntryFactoryImpl(null, null));
+        dependencyGraph.buildDependencies(target3);
+        entry1 = dependencyGraph.buildDependencies(target1);
+        entry2 = dependencyGraph.buildDependencies(targets.get(TARGET_NAME2));
+        dependencyGraph.calculateCriticalPathLengths();
+    }
+
+    @After
+    public void tearDown() {
+        durationsFile.delete();
+    }
+
+    @Test
+    public void testReportsCountsAndRunningTargets() {
+        entry1.setState(TargetState.COMPLETE);
+        entry2.setState(TargetState.RUNNING);
+
+        final String report = createProgressReporter(null).report(System.nanoTime());
+
+        assertThat(report, containsString("1/3 complete, 1 running, 0 queued, 1 waiting"));
+        assertThat(report, containsString("Running: " + TARGET_NAME2 + " ("));
+    }
+
+    @Test
+    public void testEtaIsUnknownWithoutAnyDurations() {
+        final String report = createProgressReporter(null).report(System.nanoTime());
+
+        assertThat(report, containsString("ETA unknown"));
+    }
+
+    @Test
+    public void testEtaFollowsTheRemainingChainUsingPreviousDurations() {
+        final TargetDurations targetDurations = TargetDurations.load(project, durationsFile);
+        targetDurations.record(TARGET_NAME1, 60000);
+        targetDurations.record(TARGET_NAME2, 60000);
+        targetDurations.record(TARGET_NAME3, 65000);
+
+        entry1.setState(TargetState.COMPLETE);
+        entry2.setState(TargetState.QUEUED);
+
+        // plenty of threads, so only the chain matters
+        final String report = createProgressReporter(targetDurations).report(System.nanoTime());
+
+        assertThat(report, containsString("ETA 2m05s"));
+    }
+
+    @Test
+    public void testDurationsSurviveBetweenBuilds() {
+        final TargetDurations targetDurations = TargetDurations.load(project, durationsFile);
+        targetDurations.record(TARGET_NAME1, 1000);
+        targetDurations.record(TARGET_NAME1, 3000);
+        targetDurations.save();
+
+        assertThat(TargetDurations.load(project, durationsFile).getMillis(TARGET_NAME1), equalTo(2000L));
+    }
+
+    @Test
+    public void testIsOffUnlessAnIntervalIsGiven() {
+        assertThat(ProgressReporter.readIntervalMillis(project), equalTo(0L));
+
+        project.setProperty("pant.progress", "5");
+        assertThat(ProgressReporter.readIntervalMillis(project), equalTo(5000L));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testRejectsAnIntervalWhichIsntANumber() {
+        project.setProperty("pant.progress", "often");
+        ProgressReporter.readIntervalMillis(project);
+    }
+
+    @Test
+    public void testRecordsOnlyTheTargetsWhichRan() {
+        project.setProperty("pant.durations", durationsFile.getAbsolutePath());
+        final TargetDurations targetDurations = TargetDurations.forBuild(project);
+
+        entry1.setState(TargetState.RUNNING);
+        entry1.setState(TargetState.COMPLETE);
+        entry2.setState(TargetState.RUNNING);
+        entry2.setState(TargetState.COMPLETE);
+        targetDurations.recordCompleted(dependencyGraph.getDependencyGraphEntries(),
+                                        Collections.singleton(TARGET_NAME2));
+
+        assertThat(targetDurations.getMillis(TARGET_NAME1), not(equalTo(TargetDurations.UNKNOWN)));
+        assertThat(targetDurations.getMillis(TARGET_NAME2), equalTo(TargetDurations.UNKNOWN));
+        assertThat(targetDurations.getMillis(TARGET_NAME3), equalTo(TargetDurations.UNKNOWN));
+    }
+
+    private ProgressReporter createProgressReporter(final TargetDurations targetDurations) {
+        return new ProgressReporter(project, dependencyGraph, new Object(), targetDurations, 8, 1000);
+    }
+
+    private Target createTarget(final Map<String, Target> targets, final String targetName) {
+        final Target target = new Target();
+        target.setName(targetName);
+        target.setProject(project);
+        targets.put(targetName, target);
+        return target;
+    }
+}
@@ -0,0 +1,104 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
+
+// Not a test: compares read throughput of Ant's property helper against ConcurrentPropertyHelper
+// with several threads reading (and occasionally writing) at once. Run it by hand, e.g.
+//
+//     java -cp ... org.codeaholics.tools.build.pant.PropertyHelperContentionBenchmark [threads] [seconds]
+public class PropertyHelperContentionBenchmark {
+    private static final int PROPERTIES = 500;
+    private static final int WRITE_EVERY = 1000;
+
+    public static void main(final String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        // first run of each is a warm-up
+        for (int run = 0; run < 2; run++) {
+            report("ant", threads, run(createProject(false), threads, seconds));
+            report("concurrent", threads, run(createProject(true), threads, seconds));
+        }
+    }
+
+    private static Project createProject(final boolean concurrent) {
+        final Project project = new Project();
+        project.init();
+        for (int i = 0; i < PROPERTIES; i++) {
+            project.setNewProperty("property." + i, "value." + i);
+        }
+        if (concurrent) {
+            ConcurrentPropertyHelper.install(project);
+        }
+        return project;
+    }
+
+    private static long run(final Project project, final int threads, final int seconds) throws Exception {
+        final PropertyHelper helper = PropertyHelper.getPropertyHelper(project);
+        final String[] names = new String[PROPERTIES];
+        for (int i = 0; i < PROPERTIES; i++) {
+            names[i] = "property." + i;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] reads = new long[threads];
+        final Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+
+                    long count = 0;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < WRITE_EVERY; i++) {
+                            helper.getProperty(names[i % PROPERTIES]);
+                        }
+                        count += WRITE_EVERY;
+                        helper.setNewProperty("written." + thread + "." + count, "value");
+                    }
+                    reads[thread] = count;
+                }
+            };
+            workers[t].start();
+        }
+
+        start.countDown();
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += reads[t];
+        }
+        return total / seconds;
+    }
+
+    private static void report(final String name, final int threads, final long readsPerSecond) {
+        System.out.println(String.format("%-10s %3d threads: %,15d reads/s", name, threads, readsPerSecond));
+    }
+}
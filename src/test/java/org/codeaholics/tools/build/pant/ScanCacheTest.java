@@ -0,0 +1,198 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScanCacheTest {
+    private static final int THREADS = 8;
+
+    private File baseDir;
+    private File sourceDir;
+    private Project project;
+    private ScanCache scanCache;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = File.createTempFile("pant-scan", "");
+        baseDir.delete();
+        sourceDir = new File(baseDir, "src");
+        new File(sourceDir, "org/example").mkdirs();
+        new File(sourceDir, "org/example/Widget.java").createNewFile();
+        new File(sourceDir, "org/example/Gadget.java").createNewFile();
+        new File(sourceDir, "org/example/notes.txt").createNewFile();
+
+        project = new Project();
+        project.init();
+        project.setBaseDir(baseDir);
+
+        scanCache = new ScanCache();
+        project.addReference(ScanCache.REFERENCE, scanCache);
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(baseDir);
+    }
+
+    @Test
+    public void testSharesOneScanBetweenIdenticalFileSets() throws Exception {
+        final String[] before = createFileSet("**/*.java").getDirectoryScanner(project).getIncludedFiles();
+        new File(sourceDir, "org/example/Gizmo.java").createNewFile();
+        final String[] after = createFileSet("**/*.java").getDirectoryScanner(project).getIncludedFiles();
+
+        assertThat(after.length, equalTo(2));
+        assertThat(Arrays.asList(after), equalTo(Arrays.asList(before)));
+        assertThat(scanCache.size(), equalTo(1));
+    }
+
+    @Test
+    public void testKeepsDifferentPatternsApart() {
+        assertThat(createFileSet("**/*.java").getDirectoryScanner(project).getIncludedFiles().length, equalTo(2));
+        assertThat(createFileSet("**/*.txt").getDirectoryScanner(project).getIncludedFiles().length, equalTo(1));
+        assertThat(scanCache.size(), equalTo(2));
+    }
+
+    @Test
+    public void testCoalescesConcurrentScans() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> results = Collections.synchronizedList(new LinkedList<String>());
+        final ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        for (int thread = 0; thread < THREADS; thread++) {
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    final CachingFileSet fileSet = createFileSet("**/*.java");
+                    results.add(Arrays.asList(fileSet.getDirectoryScanner(project).getIncludedFiles()).toString());
+                }
+            });
+        }
+        start.countDown();
+        executorService.shutdown();
+        executorService.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertThat(results.size(), equalTo(THREADS));
+        assertThat(new HashSet<String>(results).size(), equalTo(1));
+        assertThat(scanCache.size(), equalTo(1));
+    }
+
+    @Test
+    public void testForgetsScansOverlappingAnOutputDirectory() throws Exception {
+        createFileSet("**/*.java").getDirectoryScanner(project);
+        final CachingFileSet notes = createFileSet("**/*.txt");
+        notes.setDir(new File(sourceDir, "org"));
+        notes.getDirectoryScanner(project);
+
+        scanCache.invalidate(new File[] {new File(baseDir, "classes")});
+        assertThat(scanCache.size(), equalTo(2));
+
+        new File(sourceDir, "org/example/Gizmo.java").createNewFile();
+        scanCache.invalidate(new File[] {new File(sourceDir, "org/example")});
+        assertThat(scanCache.size(), equalTo(0));
+        assertThat(createFileSet("**/*.java").getDirectoryScanner(project).getIncludedFiles().length, equalTo(3));
+    }
+
+    @Test
+    public void testForgetsScansOverlappingATargetsDeclaredOutputs() {
+        project.setProperty("pant.outputs.generate", "classes, src/org/example");
+        scanCache = ScanCache.forBuild(project);
+        createFileSet("**/*.java").getDirectoryScanner(project);
+
+        scanCache.invalidateOutputsOf("compile");
+        assertThat(scanCache.size(), equalTo(1));
+
+        scanCache.invalidateOutputsOf("generate");
+        assertThat(scanCache.size(), equalTo(0));
+    }
+
+    @Test
+    public void testWorksOutNotIncludedFilesFromTheSharedScan() {
+        createFileSet("**/*.java").getDirectoryScanner(project);
+
+        final String[] notIncluded = createFileSet("**/*.java").getDirectoryScanner(project).getNotIncludedFiles();
+
+        assertThat(Arrays.asList(notIncluded),
+                   equalTo(Arrays.asList("org" + File.separator + "example" + File.separator + "notes.txt")));
+    }
+
+    @Test
+    public void testRescansAfterATargetWritesToItsDeclaredOutputs() throws Exception {
+        final File buildFile = new File(baseDir, "build.xml");
+        final FileWriter writer = new FileWriter(buildFile);
+        writer.write("<project name='scan'>"
+                     + "<typedef name='cachedfileset' classname='" + CachingFileSet.class.getName() + "'/>"
+                     + "<property name='pant.outputs.generate' value='src/org/example'/>"
+                     + "<target name='before'>"
+                     + "<cachedfileset id='sources' dir='src' includes='**/*.java'/>"
+                     + "<resourcecount property='before.count' refid='sources'/></target>"
+                     + "<target name='generate' depends='before'><touch file='src/org/example/Gizmo.java'/></target>"
+                     + "<target name='after' depends='generate'><resourcecount property='after.count' refid='sources'/>"
+                     + "</target>"
+                     + "</project>");
+        writer.close();
+
+        final Project build = new Project();
+        build.init();
+        ProjectHelper.configureProject(build, buildFile);
+        new ParallelExecutor().executeTargets(build, new String[] {"after"});
+
+        assertThat(build.getProperty("before.count"), equalTo("2"));
+        assertThat(build.getProperty("after.count"), equalTo("3"));
+    }
+
+    private CachingFileSet createFileSet(final String includes) {
+        final CachingFileSet fileSet = new CachingFileSet();
+        fileSet.setProject(project);
+        fileSet.setDir(sourceDir);
+        fileSet.setIncludes(includes);
+        return fileSet;
+    }
+
+    private static void deleteAll(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child: children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
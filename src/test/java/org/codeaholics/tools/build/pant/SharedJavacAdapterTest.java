@@ -0,0 +1,194 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.ToolProvider;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.property.LocalProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedJavacAdapterTest {
+    private static final int MODULES = 4;
+
+    private File baseDir;
+    private Project project;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(ToolProvider.getSystemJavaCompiler() != null);
+
+        baseDir = File.createTempFile("pant-javac", "");
+        baseDir.delete();
+        baseDir.mkdirs();
+
+        final StringBuilder targets = new StringBuilder();
+        for (int module = 0; module < MODULES; module++) {
+            write("module" + module + "/org/example/Widget" + module + ".java",
+                  "package org.example; public class Widget" + module + " { Gadget gadget; }");
+            write("module" + module + "/org/example/Gadget.java",
+                  "package org.example; class Gadget { }");
+            targets.append("<target name='module").append(module).append("'>")
+                   .append("<mkdir dir='classes").append(module).append("'/>")
+                   .append("<javac srcdir='module").append(module).append("' destdir='classes").append(module)
+                   .append("' includeantruntime='false' compiler='").append(SharedJavacAdapter.class.getName())
+                   .append("'/></target>");
+        }
+        write("broken/org/example/Broken.java", "package org.example; public class Broken { Missing missing; }");
+
+        write("build.xml", "<project name='javac'>" + targets
+                           + "<target name='broken'><mkdir dir='broken-classes'/>"
+                           + "<javac srcdir='broken' destdir='broken-classes' includeantruntime='false' compiler='"
+                           + SharedJavacAdapter.class.getName() + "'/></target>"
+                           + "<target name='lib'><delete dir='lib-classes'/><mkdir dir='lib-classes'/>"
+                           + "<javac srcdir='lib' destdir='lib-classes' includeantruntime='false'/>"
+                           + "<jar destfile='lib.jar' basedir='lib-classes'/></target>"
+                           + "<target name='client'><delete dir='client-classes'/><mkdir dir='client-classes'/>"
+                           + "<javac srcdir='client' destdir='client-classes' classpath='lib.jar'"
+                           + " includeantruntime='false' compiler='" + SharedJavacAdapter.class.getName() + "'/>"
+                           + "</target>"
+                           + "</project>");
+
+        project = new Project();
+        project.init();
+        ProjectHelper.configureProject(project, new File(baseDir, "build.xml"));
+    }
+
+    @After
+    public void tearDown() {
+        if (baseDir != null) {
+            deleteAll(baseDir);
+        }
+    }
+
+    @Test
+    public void testCompilesAndHandsTheFileManagerBack() {
+        project.executeTarget("module0");
+        final int idle = SharedJavacAdapter.getIdleCount();
+        project.executeTarget("module1");
+
+        assertThat(new File(baseDir, "classes0/org/example/Widget0.class").isFile(), equalTo(true));
+        assertThat(new File(baseDir, "classes1/org/example/Widget1.class").isFile(), equalTo(true));
+        // the second compile reused the first's file manager
+        assertThat(SharedJavacAdapter.getIdleCount(), equalTo(idle));
+    }
+
+    @Test
+    public void testKeepsConcurrentCompilesApart() throws Exception {
+        final List<Throwable> failures = Collections.synchronizedList(new LinkedList<Throwable>());
+        final ExecutorService executorService = Executors.newFixedThreadPool(MODULES);
+        for (int module = 0; module < MODULES; module++) {
+            final String targetName = "module" + module;
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // as <parallel> does; otherwise the threads share the local property stack they inherit
+                        LocalProperties.get(project).copy();
+                        project.executeTarget(targetName);
+                    } catch (final Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            });
+        }
+        executorService.shutdown();
+        executorService.awaitTermination(60, TimeUnit.SECONDS);
+
+        assertThat(failures.toString(), failures.isEmpty(), equalTo(true));
+        for (int module = 0; module < MODULES; module++) {
+            // each module's Gadget came from its own source path
+            assertThat(new File(baseDir, "classes" + module + "/org/example/Gadget.class").isFile(), equalTo(true));
+        }
+        assertThat(SharedJavacAdapter.getIdleCount(), lessThanOrEqualTo(MODULES + 1));
+    }
+
+    @Test
+    public void testSeesAJarRewrittenWithinTheSameTimestamp() throws Exception {
+        write("lib/org/lib/Api.java", "package org.lib; public class Api { public static void a() { } }");
+        write("client/org/example/Client.java", "package org.example; class Client { { org.lib.Api.a(); } }");
+        project.executeTarget("lib");
+        // once round the pool, so that every file manager in it has the jar open
+        final int idle = Math.max(1, SharedJavacAdapter.getIdleCount());
+        for (int compile = 0; compile < idle; compile++) {
+            project.executeTarget("client");
+        }
+
+        final File jar = new File(baseDir, "lib.jar");
+        final long lastModified = jar.lastModified();
+        write("lib/org/lib/Api.java",
+              "package org.lib; public class Api { public static void a() { } public static void b() { } }");
+        write("client/org/example/Client.java", "package org.example; class Client { { org.lib.Api.b(); } }");
+        jar.delete();
+        project.executeTarget("lib");
+        // as if rebuilt within the same second, on a file system which only keeps whole seconds
+        jar.setLastModified(lastModified);
+
+        project.executeTarget("client");
+
+        assertThat(new File(baseDir, "client-classes/org/example/Client.class").isFile(), equalTo(true));
+    }
+
+    @Test
+    public void testFailsTheBuildOnCompileErrors() {
+        try {
+            project.executeTarget("broken");
+            fail();
+        } catch (final BuildException e) {
+            assertThat(e.getMessage(), containsString("Compile failed"));
+        }
+    }
+
+    private void write(final String name, final String content) throws IOException {
+        final File file = new File(baseDir, name);
+        file.getParentFile().mkdirs();
+        final FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    }
+
+    private static void deleteAll(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child: children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
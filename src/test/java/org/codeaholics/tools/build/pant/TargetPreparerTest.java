@@ -0,0 +1,144 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.tools.ant.AntTypeDefinition;
+import org.apache.tools.ant.ComponentHelper;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.UnknownElement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TargetPreparerTest {
+    private File buildFile;
+    private Project project;
+    private RecordingClassLoader classLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        buildFile = File.createTempFile("pant-prepare", ".xml");
+
+        final FileWriter writer = new FileWriter(buildFile);
+        writer.write("<project name='prepare'>"
+                     + "<target name='upcoming'>"
+                     + "<prepared message='${not.set.yet}'><nested/></prepared>"
+                     + "<not-defined-until-later/>"
+                     + "</target>"
+                     + "</project>");
+        writer.close();
+
+        project = new Project();
+        project.init();
+        ProjectHelper.configureProject(project, buildFile);
+
+        classLoader = new RecordingClassLoader();
+        final AntTypeDefinition definition = new AntTypeDefinition();
+        definition.setName("prepared");
+        definition.setClassName(PreparedTask.class.getName());
+        definition.setClassLoader(classLoader);
+        ComponentHelper.getComponentHelper(project).addDataTypeDefinition(definition);
+    }
+
+    @After
+    public void tearDown() {
+        buildFile.delete();
+    }
+
+    @Test
+    public void testLoadsTaskClassesWithoutConfiguringTasks() {
+        final Target target = (Target) project.getTargets().get("upcoming");
+
+        new TargetPreparer(project).prepareNow(target);
+
+        assertThat(classLoader.getRequested(), hasItem(PreparedTask.class.getName()));
+        for (final Task task: target.getTasks()) {
+            // configuring now would expand properties before their predecessors could set them
+            assertThat(((UnknownElement) task).getRealThing(), nullValue());
+        }
+    }
+
+    @Test
+    public void testLeavesTargetsWhichHaveStartedAlone() {
+        final Target target = (Target) project.getTargets().get("upcoming");
+        final DependencyGraphEntry dependencyGraphEntry =
+                new DependencyGraphEntry(target, DependencyGraphEntry.UNPHASED, null, null);
+        dependencyGraphEntry.setState(TargetState.RUNNING);
+
+        dependencyGraphEntry.prepare(new TargetPreparer(project));
+
+        // once running, its tasks are the target's own, and may be released when it's done
+        assertThat(classLoader.getRequested(), not(hasItem(PreparedTask.class.getName())));
+    }
+
+    @Test
+    public void testIsOnUnlessTurnedOff() {
+        final TargetPreparer targetPreparer = TargetPreparer.startUnlessDisabled(project);
+        assertThat(targetPreparer, notNullValue());
+        targetPreparer.stop();
+
+        project.setProperty("pant.prepare", "false");
+        assertThat(TargetPreparer.startUnlessDisabled(project), nullValue());
+    }
+
+    public static class PreparedTask extends Task {
+        public void setMessage(final String message) {
+            // not interested
+        }
+
+        public Nested createNested() {
+            return new Nested();
+        }
+    }
+
+    public static class Nested {
+        // nothing to configure
+    }
+
+    private static final class RecordingClassLoader extends ClassLoader {
+        private final List<String> requested = Collections.synchronizedList(new LinkedList<String>());
+
+        public RecordingClassLoader() {
+            super(TargetPreparerTest.class.getClassLoader());
+        }
+
+        public List<String> getRequested() {
+            return requested;
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            requested.add(name);
+            return super.loadClass(name, resolve);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShardsTaskTest {
+    private File baseDir;
+    private File classesDir;
+    private File historyDir;
+    private Project project;
+    private List<String> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = File.createTempFile("pant-shards", "");
+        baseDir.delete();
+        classesDir = new File(baseDir, "classes/org/example");
+        classesDir.mkdirs();
+        historyDir = new File(baseDir, "reports");
+        historyDir.mkdirs();
+
+        project = new Project();
+        project.init();
+        project.setBaseDir(baseDir);
+        final MessageRecorder messageRecorder = MessageRecorder.allMessages();
+        messages = messageRecorder.getMessages();
+        project.addBuildListener(messageRecorder);
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(baseDir);
+    }
+
+    @Test
+    public void testBalancesLongestFirstOntoTheLightestShard() {
+        final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+        durations.put("E", 100L);
+        durations.put("A", 500L);
+        durations.put("C", 300L);
+        durations.put("B", 400L);
+        durations.put("D", 200L);
+
+        final List<List<String>> balanced = TestShardsTask.balance(durations, 2);
+
+        assertThat(balanced, equalTo(Arrays.asList(Arrays.asList("A", "D", "E"), Arrays.asList("B", "C"))));
+    }
+
+    @Test
+    public void testLeavesOutEmptyShards() {
+        final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+        durations.put("A", 100L);
+        durations.put("B", 100L);
+
+        assertThat(TestShardsTask.balance(durations, 8).size(), equalTo(2));
+    }
+
+    @Test
+    public void testReadsDurationsFromPerClassAndMergedReports() throws Exception {
+        write(new File(historyDir, "TEST-org.example.SlowTest.xml"),
+              "<testsuite name='org.example.SlowTest' time='12.5' tests='1'/>");
+        write(new File(historyDir, "TESTS-TestSuites.xml"),
+              "<testsuites><testsuite package='org.example' name='QuickTest' time='0.25'/></testsuites>");
+        write(new File(historyDir, "TEST-org.example.Broken.xml"), "<testsuite");
+
+        final Map<String, Long> durations = JUnitReportHistory.load(project, historyDir);
+
+        assertThat(durations.get("org.example.SlowTest"), equalTo(12500L));
+        assertThat(durations.get("org.example.QuickTest"), equalTo(250L));
+        assertThat(durations.size(), equalTo(2));
+    }
+
+    @Test
+    public void testCallsTheTargetOncePerShardOnTheSharedPool() throws Exception {
+        for (final String testClass: new String[] {"SlowTest", "ATest", "BTest", "CTest"}) {
+            new File(classesDir, testClass + ".class").createNewFile();
+        }
+        // CTest has no history, so counts as average
+        write(new File(historyDir, "TESTS-TestSuites.xml"),
+              "<testsuites><testsuite package='org.example' name='SlowTest' time='30'/>"
+              + "<testsuite package='org.example' name='ATest' time='1'/>"
+              + "<testsuite package='org.example' name='BTest' time='1'/></testsuites>");
+
+        final File buildFile = new File(baseDir, "build.xml");
+        write(buildFile, "<project name='shards'>"
+                         + "<taskdef name='testshards' classname='" + TestShardsTask.class.getName() + "'/>"
+                         + "<target name='shard'>"
+                         + "<loadfile property='shard' srcfile='${pant.shard.includesfile}'>"
+                         + "<filterchain><tokenfilter><filetokenizer/>"
+                         + "<replaceregex pattern='\\s+' replace=' ' flags='g'/>"
+                         + "</tokenfilter><striplinebreaks/></filterchain></loadfile>"
+                         + "<echo>shard ${pant.shard.index} of ${pant.shard.count}: ${shard}</echo>"
+                         + "</target>"
+                         + "<target name='test'>"
+                         + "<testshards target='shard' shards='2' historydir='reports'>"
+                         + "<fileset dir='classes' includes='**/*Test.class'/>"
+                         + "</testshards>"
+                         + "</target>"
+                         + "</project>");
+        ProjectHelper.configureProject(project, buildFile);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            project.addReference(ParallelExecutor.EXECUTOR_SERVICE_REFERENCE, executorService);
+            project.executeTarget("test");
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertThat(messages, hasItem("shard 1 of 2: org/example/SlowTest.class "));
+        assertThat(messages, hasItem("shard 2 of 2: org/example/ATest.class org/example/BTest.class "
+                                     + "org/example/CTest.class "));
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        final FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    }
+
+    private static void deleteAll(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child: children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,137 @@
+package org.codeaholics.tools.build.pant;
+
+/*
+ *   Copyright 2010-2011 Danny Yates
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.codeaholics.tools.build.pant.AntTestHelper.configureProject;
+import static org.codeaholics.tools.build.pant.AntTestHelper.writeBuildFile;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkerPoolTest {
+    private File buildFile;
+    private Project project;
+    private WorkerPool workerPool;
+    private List<String> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        buildFile = writeBuildFile("pant-worker",
+                "<project name='worker'>"
+                + "<target name='isolated'>"
+                + "<echo>worker sees ${fromCoordinator}</echo>"
+                + "<property name='fromWorker' value='set in ${ant.project.name}'/>"
+                + "</target>"
+                + "<target name='broken'><fail>broken in the worker</fail></target>"
+                + "<target name='skipped' unless='fromWorker'><fail>should have been skipped</fail></target>"
+                + "</project>");
+
+        final MessageRecorder messageRecorder = MessageRecorder.labelledMessages();
+        messages = messageRecorder.getMessages();
+        project = configureProject(buildFile, messageRecorder);
+
+        workerPool = new WorkerPool(project, 1);
+    }
+
+    @After
+    public void tearDown() {
+        workerPool.shutdown();
+        buildFile.delete();
+    }
+
+    @Test
+    public void testPassesPropertiesBothWaysAndRelaysOutput() {
+        project.setProperty("fromCoordinator", "the coordinator's value");
+
+        workerPool.execute(getTarget("isolated"));
+
+        assertThat(messages, hasItem("[echo] worker sees the coordinator's value"));
+        assertThat(project.getProperty("fromWorker"), equalTo("set in worker"));
+    }
+
+    @Test
+    public void testReportsFailuresAndKeepsTheWorker() {
+        try {
+            workerPool.execute(getTarget("broken"));
+            fail("Expected the worker's failure to be rethrown");
+        } catch (final BuildException e) {
+            assertThat(e.getMessage(), containsString("broken in the worker"));
+        }
+
+        workerPool.execute(getTarget("isolated"));
+        workerPool.execute(getTarget("skipped"));
+
+        assertThat(messages, not(hasItem(containsString("should have been skipped"))));
+    }
+
+    @Test
+    public void testSizesThePoolForTheIsolatedTargets() {
+        final Set<String> isolatedTargets = new HashSet<String>(Arrays.asList("isolated", "broken", "skipped"));
+
+        assertThat(WorkerPool.forBuild(project, Collections.<String>emptySet(), 4, false), nullValue());
+
+        final WorkerPool agentsOnly = WorkerPool.forBuild(project, Collections.<String>emptySet(), 4, true);
+        assertThat(agentsOnly.getWorkerCount(), equalTo(0));
+        agentsOnly.shutdown();
+
+        project.setProperty("pant.workers", "0");
+        final WorkerPool atLeastOne = WorkerPool.forBuild(project, isolatedTargets, 2, false);
+        assertThat(atLeastOne.getWorkerCount(), equalTo(1));
+        atLeastOne.shutdown();
+    }
+
+    @Test(timeout = 60000)
+    public void testReplacesAWorkerWhichCouldNotLoadTheBuildFile() {
+        project.setUserProperty(MagicNames.ANT_FILE, new File(buildFile.getPath() + ".missing").getPath());
+        final WorkerPool brokenPool = new WorkerPool(project, 1);
+        try {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    brokenPool.execute(getTarget("isolated"));
+                    fail("Expected the worker's failure to load the build file to be rethrown");
+                } catch (final BuildException e) {
+                    assertThat(e.getMessage(), containsString("failed to load the build file"));
+                }
+            }
+        } finally {
+            brokenPool.shutdown();
+        }
+    }
+
+    private Target getTarget(final String targetName) {
+        return (Target) project.getTargets().get(targetName);
+    }
+}